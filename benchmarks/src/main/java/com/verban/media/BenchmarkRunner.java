@@ -0,0 +1,26 @@
+package com.verban.media;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.*;
+
+/**
+* Runs the benchmarks with allocation profiling, saving the results as JSON so runs can be compared.
+* Any of the usual JMH command line options can be given, e.g. a benchmark name regex, or -p size=1000.
+*
+* @author Michael Verban (2020)
+*/
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws Exception{
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		Options options = new OptionsBuilder()
+			.parent(commandLine)
+			.addProfiler(GCProfiler.class)
+			.resultFormat(ResultFormatType.JSON)
+			.result(commandLine.getResult().orElse("target/jmh-result.json"))
+			.build();
+		new Runner(options).run();
+	}
+}
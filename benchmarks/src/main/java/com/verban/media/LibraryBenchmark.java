@@ -0,0 +1,237 @@
+package com.verban.media;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+* Benchmarks for the Library operations whose cost grows with the size of the library.
+*
+* @author Michael Verban (2020)
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx3g"})
+public class LibraryBenchmark {
+
+	@Param({"1000", "10000", "100000", "1000000"})
+	public int size;
+
+	private Library library;
+	private List<Song> songs;
+	private File libraryFile;
+	private File saveFile;
+	// Files and albums looked up, in a fixed random order
+	private File[] lookupFiles;
+	private String[][] lookupAlbums;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException{
+		library = SyntheticLibrary.library(size);
+		songs = SyntheticLibrary.songs(size);
+		libraryFile = File.createTempFile("bench", ".library");
+		saveFile = File.createTempFile("bench-save", ".library");
+		library.save(libraryFile);
+
+		Random random = new Random(SyntheticLibrary.SEED);
+		lookupFiles = new File[1024];
+		lookupAlbums = new String[1024][];
+		for(int i = 0; i < lookupFiles.length; i++){
+			Song s = songs.get(random.nextInt(size));
+			lookupFiles[i] = s.getFile();
+			lookupAlbums[i] = new String[]{s.getOriginalAlbum(), s.getArtistName()};
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown(){
+		libraryFile.delete();
+		saveFile.delete();
+	}
+
+	@Benchmark
+	public Library load() throws IOException{
+		Library loaded = new Library();
+		loaded.load(libraryFile);
+		return loaded;
+	}
+
+	@Benchmark
+	public void save() throws IOException{
+		library.save(saveFile);
+	}
+
+	/**
+	* The snapshot an autosave takes, which runs on the thread that owns the library and copies every song.
+	*/
+	@Benchmark
+	public LibrarySnapshot snapshot(){
+		return library.snapshot();
+	}
+
+	@Benchmark
+	public Library validate(){
+		library.validate();
+		return library;
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public Song getSong(){
+		next = (next + 1) & 1023;
+		return library.getSong(lookupFiles[next]);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public Album getAlbum(){
+		next = (next + 1) & 1023;
+		return library.getAlbum(lookupAlbums[next][0], lookupAlbums[next][1]);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public List<Song> search(){
+		next = (next + 1) & 1023;
+		// Half typed artist name plus a word from the album, as if typing
+		return library.search(lookupAlbums[next][1].substring(0, 4) + " " + lookupAlbums[next][0], 50);
+	}
+
+	@Benchmark
+	public Library addSongs(){
+		Library fresh = new Library();
+		fresh.addSongs(songs);
+		return fresh;
+	}
+
+	/**
+	* Average runtime of the songs from the 1990s, going through the song objects.
+	*/
+	@Benchmark
+	public double scanSongs(){
+		long total = 0;
+		int count = 0;
+		for(Song s : library.getSongs()){
+			if(s.getYear() >= 1990 && s.getYear() < 2000){
+				total += s.getRuntime();
+				count++;
+			}
+		}
+		return total / (double)count;
+	}
+
+	/**
+	* The same as scanSongs, going through the columns.
+	*/
+	@Benchmark
+	public double scanColumns(){
+		SongColumns columns = library.getColumns();
+		int[] years = columns.column(SongColumns.Column.YEAR);
+		int[] runtimes = columns.column(SongColumns.Column.RUNTIME);
+		long total = 0;
+		int count = 0;
+		for(int id = 1; id < columns.idLimit(); id++){
+			if(columns.contains(id) && years[id] >= 1990 && years[id] < 2000){
+				total += runtimes[id];
+				count++;
+			}
+		}
+		return total / (double)count;
+	}
+
+	@Benchmark
+	public List<Song> sortSongsByYear(){
+		List<Song> sorted = new ArrayList<Song>(library.getSongs());
+		sorted.sort(Comparator.comparingInt(Song::getYear));
+		return sorted;
+	}
+
+	@Benchmark
+	public int[] sortColumnsByYear(){
+		return library.getColumns().sortedIds(SongColumns.Column.YEAR);
+	}
+
+	/**
+	* Rock songs from the 1990s over five minutes, best rated first, going through the song objects.
+	*/
+	@Benchmark
+	public List<Song> filterSongs(){
+		List<Song> found = new ArrayList<Song>();
+		for(Song s : library.getSongs()){
+			if(s.getGenre().equals("Rock") && s.getYear() >= 1990 && s.getYear() <= 1999 && s.getRuntime() >= 300)
+				found.add(s);
+		}
+		found.sort((a, b) -> Double.compare(b.getRating(), a.getRating()));
+		return found;
+	}
+
+	/**
+	* The same as filterSongs, as a query, which starts from the genre index.
+	*/
+	@Benchmark
+	public List<Song> query(){
+		return library.query(new SongQuery().genre("Rock").years(1990, 1999).runtimes(300, Integer.MAX_VALUE)
+			.sortBy(SongQuery.Order.RATING, true));
+	}
+
+	/**
+	* Songs from 1975, a query the year index narrows down the most.
+	*/
+	@Benchmark
+	public List<Song> queryYear(){
+		return library.query(new SongQuery().years(1975, 1975).limit(100));
+	}
+
+	/**
+	* Songs per genre, then per artist among the rock songs of the 1990s, going through the song objects.
+	*/
+	@Benchmark
+	public Map<String, Integer> countSongs(){
+		Map<String, Integer> genres = new HashMap<String, Integer>();
+		Map<String, Integer> artists = new HashMap<String, Integer>();
+		for(Song s : library.getSongs()){
+			genres.merge(s.getGenre(), 1, Integer::sum);
+			if(s.getGenre().equals("Rock") && s.getYear() >= 1990 && s.getYear() <= 1999)
+				artists.merge(s.getArtistName(), 1, Integer::sum);
+		}
+		return artists;
+	}
+
+	/**
+	* The same as countSongs, through the facets.
+	*/
+	@Benchmark
+	public Map<SongFacets.Facet, Map<String, Integer>> countFacets(){
+		SongFacets facets = library.getFacets();
+		facets.counts(SongFacets.Facet.GENRE);
+		return facets.drillDown(Map.of(SongFacets.Facet.GENRE, "Rock", SongFacets.Facet.DECADE, "1990s"));
+	}
+
+	/**
+	* A fresh library for each call of removeSongs, with the songs of the first tenth of its albums to remove.
+	*/
+	@State(Scope.Thread)
+	public static class Removal {
+		Library library;
+		List<Song> toRemove;
+
+		@Setup(Level.Invocation)
+		public void setup(LibraryBenchmark benchmark){
+			library = SyntheticLibrary.library(benchmark.size);
+			toRemove = new ArrayList<Song>(library.getSongs().subList(0, benchmark.size / 10));
+		}
+	}
+
+	@Benchmark
+	@Measurement(iterations = 5, batchSize = 1)
+	public Library removeSongs(Removal removal){
+		removal.library.removeSongs(removal.toRemove);
+		return removal.library;
+	}
+}
@@ -0,0 +1,49 @@
+package com.verban.media;
+
+import java.io.*;
+import java.lang.management.*;
+
+/**
+* Measures how much heap a library takes per song. JMH measures time and allocation, not what stays live,
+* so this is run on its own:
+*     java -cp target/benchmarks.jar com.verban.media.LibraryFootprint [size]
+* Two libraries are measured: one imported, with every song's tags made separately as if each file had been read,
+* and one loaded from a saved file.
+*
+* @author Michael Verban (2020)
+*/
+public class LibraryFootprint {
+
+	public static void main(String[] args) throws IOException{
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		File f = File.createTempFile("footprint", ".library");
+		try{
+			long before = usedHeap();
+			Library imported = SyntheticLibrary.library(size);
+			report("Imported", size, usedHeap() - before);
+			imported.save(f);
+			imported.closeJournal();
+			imported = null;
+
+			before = usedHeap();
+			Library loaded = new Library(f);
+			report("Loaded", size, usedHeap() - before);
+			loaded.closeJournal();
+		}finally{
+			f.delete();
+			LibraryJournal.fileFor(f).delete();
+		}
+	}
+
+	private static void report(String what, int size, long bytes){
+		System.out.printf("%s %d songs: %,d bytes, %.1f bytes per song%n", what, size, bytes, bytes / (double)size);
+	}
+
+	private static long usedHeap(){
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		for(int i = 0; i < 5; i++){
+			System.gc();
+		}
+		return memory.getHeapMemoryUsage().getUsed();
+	}
+}
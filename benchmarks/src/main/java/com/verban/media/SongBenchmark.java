@@ -0,0 +1,43 @@
+package com.verban.media;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+* Benchmarks reading tags from a song file.
+* By default this reads the mp3 used by the unit tests, run with -p file=... to measure a different file.
+*
+* @author Michael Verban (2020)
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SongBenchmark {
+
+	@Param({"../src/test/java/com/verban/media/test.mp3"})
+	public String file;
+
+	private File songFile;
+	private TagCache tagCache;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException{
+		songFile = new File(file);
+		tagCache = new TagCache();
+		tagCache.read(songFile);
+	}
+
+	@Benchmark
+	public Song parseTags() throws IOException{
+		return new Song(songFile);
+	}
+
+	@Benchmark
+	public Song cachedTags() throws IOException{
+		return tagCache.read(songFile);
+	}
+}
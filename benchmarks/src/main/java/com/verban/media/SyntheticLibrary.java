@@ -0,0 +1,60 @@
+package com.verban.media;
+
+import java.io.File;
+import java.util.*;
+
+/**
+* Generates libraries of made up songs for benchmarks. The same size and seed always give the same library,
+* so results are comparable between runs.
+*
+* The shape is roughly that of a real collection: 10 tracks per album, 5 albums per artist, a few dozen genres,
+* and a folder per album.
+*
+* @author Michael Verban (2020)
+*/
+public class SyntheticLibrary {
+
+	public static final long SEED = 20200804L;
+
+	private static final String[] GENRES = {"Rock", "Pop", "Jazz", "Blues", "Classical", "Metal", "Folk", "Country",
+		"Electronic", "Hip-Hop", "Soul", "Funk", "Reggae", "Punk", "Ambient", "Soundtrack", "Indie", "Alternative",
+		"R&B", "Latin", "World", "Gospel", "Disco", "House", "Techno", "Trance", "Ska", "Grunge", "Opera", "Swing"};
+
+	private SyntheticLibrary(){}
+
+	/**
+	* Creates the songs for a library of the given size.
+	*/
+	public static List<Song> songs(int size){
+		Random random = new Random(SEED);
+		List<Song> songs = new ArrayList<Song>(size);
+		for(int i = 0; i < size; i++){
+			int album = i / 10;
+			int artist = album / 5;
+			String artistName = "Artist " + artist;
+			String albumName = "Album " + album;
+			File file = new File("/music/" + artistName + "/" + albumName, String.format("%02d Track %d.mp3", i % 10 + 1, i));
+			Song s = new Song(file, "Track " + i, artistName, albumName, GENRES[artist % GENRES.length],
+				120 + random.nextInt(480), 1950 + random.nextInt(70), i % 10 + 1, 10);
+			s.setRating(random.nextInt(6));
+			songs.add(s);
+		}
+		return songs;
+	}
+
+	/**
+	* Creates a library of the given size, with a playlist for every 1000 songs holding 100 random songs each.
+	*/
+	public static Library library(int size){
+		Library library = new Library();
+		List<Song> songs = songs(size);
+		library.addSongs(songs);
+		Random random = new Random(SEED);
+		for(int p = 0; p < Math.max(1, size / 1000); p++){
+			for(int t = 0; t < 100; t++){
+				library.addSongToPlaylist(songs.get(random.nextInt(size)), "Playlist " + p);
+			}
+		}
+		return library;
+	}
+}
@@ -10,7 +10,8 @@ public class Album extends Media {
 
 	private static final long serialVersionUID=19834754;
 
-	private List<Song> tracks;
+	// Stored as song ids, see TrackList
+	private TrackList tracks;
 
 	/**
 	* Creates a new empty album with the specified title and artist.
@@ -28,10 +29,16 @@ public class Album extends Media {
 	* @param tracks the in-order list of songs on this Album
 	*/
 	public Album(String title, String artistName, Song... tracks){
-		this.title = title;
-		this.tracks = new ArrayList<Song>();
+		this(title, artistName, new SongTable());
 		this.tracks.addAll(Arrays.asList(tracks));
-		this.year = year;
+	}
+
+	/**
+	* Creates a new empty album whose tracks are ids in the given table, normally the library's.
+	*/
+	Album(String title, String artistName, SongTable table){
+		this.title = title;
+		this.tracks = new TrackList(table);
 		this.artistName = artistName;
 	}
 
@@ -50,6 +57,13 @@ public class Album extends Media {
 		tracks.add(s);
 	}
 
+	/**
+	* Moves this album onto another table of songs, which must hold every track with the same id.
+	*/
+	void setSongTable(SongTable table){
+		tracks.setTable(table);
+	}
+
 	/**
 	* Attempts to remove the specified song from this album
 	* @return true if the song was in the album and was removed, false otherwise.
@@ -58,6 +72,14 @@ public class Album extends Media {
 		return tracks.remove(s);
 	}
 
+	/**
+	* Removes every track that is one of the songs, in one pass over the album.
+	* @return true if any were removed
+	*/
+	boolean removeTracks(Collection<Song> songs){
+		return !songs.isEmpty() && tracks.removeAll(songs);
+	}
+
 	/**
 	* Returns a copy of the list of tracks in this Album.
 	* @return a copy of the list of tracks in this Album
@@ -73,6 +95,13 @@ public class Album extends Media {
 		return tracks.size();
 	}
 
+	/**
+	* Returns the ids of the tracks on this Album, in order.
+	*/
+	int[] getTrackIds(){
+		return tracks.toIdArray();
+	}
+
 	@Override
 	public boolean equals(Object o){
 		if(o instanceof Album){
@@ -43,6 +43,13 @@ public class Artist implements Serializable{
 		return albums.remove(a);
 	}
 
+	/**
+	* Returns the number of albums this artist has.
+	*/
+	public int numAlbums(){
+		return albums.size();
+	}
+
 	/**
 	* Attempts to retrieve the album with the specified name if it exists in this artists list
 	* @param name the name of the album to attempt to retrieve
@@ -0,0 +1,161 @@
+package com.verban.media;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+/**
+* Saves a Library to its file in the background every so often, whenever it has changed since the last save.
+* If the library is recording its changes in a journal they are already on disk, so the file is only rewritten
+* once the journal has grown past COMPACT_LENGTH, letting the journal start over.
+*
+* The snapshot of the library is taken through the snapshotter passed in (for example Platform::runLater), so on the
+* thread that owns the library. That is not free: it copies every song (see LibrarySnapshot), which takes around 35 ms
+* and 85 MB for a million songs (LibraryBenchmark.snapshot), so one is only taken when the file is due to be rewritten.
+* Writing the file happens on the autosaver's own thread, through the same temp file and rename as Library.save,
+* so a crash at any point leaves a file that can be loaded.
+*
+* @author Michael Verban (2020)
+*/
+public class Autosaver implements Closeable {
+
+	/**
+	* Told about saves that failed. Called from the autosaver thread, not the UI thread.
+	*/
+	public interface ErrorListener{
+		void failed(File file, IOException e);
+	}
+
+	// Size in bytes the journal can grow to before the library file is rewritten
+	static final long COMPACT_LENGTH = 1 << 20;
+	// Milliseconds between checks for close while waiting on a snapshot
+	private static final long SNAPSHOT_POLL = 100;
+
+	private final Library library;
+	private final Executor snapshotter;
+	private final ScheduledExecutorService saver;
+	private volatile File file;
+	// Change count of the library the last time it was saved, or loaded from the file
+	private volatile long savedModCount;
+	private volatile ErrorListener errorListener;
+	private volatile boolean closed = false;
+
+	/**
+	* Starts saving the library to file every interval, if it has changed.
+	* This must be called from the thread the snapshotter runs on, with the library in sync with the file.
+	* @param library the library to save
+	* @param file the file to save to
+	* @param snapshotter runs the snapshots of the library, for example Platform::runLater
+	* @param interval time between saves
+	* @param unit unit of interval
+	*/
+	public Autosaver(Library library, File file, Executor snapshotter, long interval, TimeUnit unit){
+		this.library = library;
+		this.snapshotter = snapshotter;
+		this.file = file;
+		this.savedModCount = library.getModCount();
+		this.saver = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "autosaver");
+			t.setDaemon(true);
+			return t;
+		});
+		saver.scheduleWithFixedDelay(this::saveIfChanged, interval, interval, unit);
+	}
+
+	/**
+	* Sets the listener told about failed saves, replacing any previous one.
+	*/
+	public void setErrorListener(ErrorListener errorListener){
+		this.errorListener = errorListener;
+	}
+
+	/**
+	* Switches to saving to another file, after the library was loaded from or saved to it.
+	* Like the constructor, this must be called from the thread the snapshotter runs on.
+	*/
+	public void setFile(File file){
+		this.file = file;
+		this.savedModCount = library.getModCount();
+	}
+
+	public File getFile(){
+		return file;
+	}
+
+	/**
+	* Tests whether the library has changed since it was last saved. Changes recorded in a journal count as saved.
+	* This must be called from the thread the snapshotter runs on.
+	*/
+	public boolean isDirty(){
+		return !library.hasJournal() && library.getModCount() != savedModCount;
+	}
+
+	// Whether the library file should be rewritten now
+	private boolean needsSaving(){
+		return library.hasJournal() ? library.getJournalLength() >= COMPACT_LENGTH : isDirty();
+	}
+
+	/**
+	* Saves the library in the background as soon as possible, if it has changed.
+	*/
+	public void saveNow(){
+		if(!closed)
+			saver.execute(this::saveIfChanged);
+	}
+
+	/**
+	* Stops autosaving, waiting for a save that is already being written to finish.
+	* Changes made since the last save are not saved, check isDirty and call Library.save for that.
+	*/
+	@Override
+	public void close(){
+		closed = true;
+		saver.shutdown();
+		try{
+			saver.awaitTermination(1, TimeUnit.MINUTES);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void saveIfChanged(){
+		File f = file;
+		LibrarySnapshot snapshot;
+		try{
+			snapshot = takeSnapshot();
+		}catch(InterruptedException e){
+			return;
+		}
+		if(snapshot == null)
+			return;
+		try{
+			library.writeSnapshot(f, snapshot);
+			if(f.equals(file))
+				savedModCount = snapshot.getModCount();
+		}catch(IOException e){
+			ErrorListener listener = errorListener;
+			if(listener != null)
+				listener.failed(f, e);
+		}
+	}
+
+	/**
+	* Takes a snapshot through the snapshotter, or returns null if it is not needed yet or the autosaver was closed.
+	* The thread closing the autosaver may well be the snapshotter's, so this gives up on close rather than waiting.
+	*/
+	private LibrarySnapshot takeSnapshot() throws InterruptedException{
+		CompletableFuture<LibrarySnapshot> future = CompletableFuture.supplyAsync(
+			() -> closed || !needsSaving() ? null : library.snapshot(), snapshotter);
+		while(true){
+			try{
+				return future.get(SNAPSHOT_POLL, TimeUnit.MILLISECONDS);
+			}catch(TimeoutException e){
+				if(closed){
+					future.cancel(false);
+					return null;
+				}
+			}catch(ExecutionException e){
+				return null;
+			}
+		}
+	}
+}
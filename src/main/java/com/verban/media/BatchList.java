@@ -0,0 +1,158 @@
+package com.verban.media;
+
+import java.util.*;
+import java.util.function.Predicate;
+import javafx.collections.*;
+
+/**
+* The observable list the library keeps its songs, albums and artists in. Unlike an FXCollections list, any number of
+* changes can be gathered into one batch, which listeners see as a single change once the batch ends, see Library.batch.
+* A table showing the list then lays itself out once for a whole import, rather than once per song.
+*
+* Items whose data changed, but are still the same items, are reported as updated (ListChangeListener.Change.wasUpdated)
+* rather than being removed and added back.
+*
+* Like TrackList, bulk changes (addAll, removeAll, removeIf, setAll) are reported as a single change.
+*
+* @author Michael Verban (2020)
+*/
+class BatchList<E> extends ObservableListBase<E> {
+
+	private final ArrayList<E> items = new ArrayList<E>();
+
+	/**
+	* Starts gathering changes, until the matching endBatch. Batches can be nested, only the outermost one reports.
+	*/
+	void beginBatch(){
+		beginChange();
+	}
+
+	void endBatch(){
+		endChange();
+	}
+
+	/**
+	* Reports that the item at the index has changed, without replacing it.
+	*/
+	void updated(int index){
+		Objects.checkIndex(index, items.size());
+		beginChange();
+		nextUpdate(index);
+		endChange();
+	}
+
+	@Override
+	public E get(int index){
+		return items.get(index);
+	}
+
+	@Override
+	public int size(){
+		return items.size();
+	}
+
+	@Override
+	public void add(int index, E item){
+		items.add(index, item);
+		modCount++;
+		beginChange();
+		nextAdd(index, index + 1);
+		endChange();
+	}
+
+	@Override
+	public E set(int index, E item){
+		E old = items.set(index, item);
+		beginChange();
+		nextSet(index, old);
+		endChange();
+		return old;
+	}
+
+	@Override
+	public E remove(int index){
+		E old = items.remove(index);
+		modCount++;
+		beginChange();
+		nextRemove(index, old);
+		endChange();
+		return old;
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends E> added){
+		return addAll(items.size(), added);
+	}
+
+	@Override
+	public boolean addAll(int index, Collection<? extends E> added){
+		Objects.checkIndex(index, items.size() + 1);
+		if(added.isEmpty())
+			return false;
+		int before = items.size();
+		items.addAll(index, added);
+		modCount++;
+		beginChange();
+		nextAdd(index, index + items.size() - before);
+		endChange();
+		return true;
+	}
+
+	@Override
+	public boolean removeIf(Predicate<? super E> filter){
+		beginChange();
+		try{
+			int kept = 0;
+			int size = items.size();
+			for(int i = 0; i < size; i++){
+				E item = items.get(i);
+				if(filter.test(item))
+					nextRemove(kept, item);
+				else
+					items.set(kept++, item);
+			}
+			boolean removed = kept < size;
+			if(removed){
+				items.subList(kept, size).clear();
+				modCount++;
+			}
+			return removed;
+		}finally{
+			endChange();
+		}
+	}
+
+	@Override
+	public boolean removeAll(Collection<?> removed){
+		return removeIf(removed::contains);
+	}
+
+	@Override
+	public boolean retainAll(Collection<?> kept){
+		return removeIf(item -> !kept.contains(item));
+	}
+
+	@Override
+	public void clear(){
+		if(items.isEmpty())
+			return;
+		List<E> removed = new ArrayList<E>(items);
+		items.clear();
+		modCount++;
+		beginChange();
+		nextRemove(0, removed);
+		endChange();
+	}
+
+	@Override
+	public boolean setAll(Collection<? extends E> all){
+		beginChange();
+		try{
+			clear();
+			addAll(all);
+			return true;
+		}finally{
+			endChange();
+		}
+	}
+}
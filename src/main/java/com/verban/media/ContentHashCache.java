@@ -0,0 +1,169 @@
+package com.verban.media;
+
+import com.verban.media.tags.AudioPayload;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+* Remembers how long the audio in each song file is and what it hashes to (see AudioPayload), so that looking for
+* duplicates again only has to read the files that changed since. Like TagCache, entries are keyed by the canonical
+* path of the file, and are only used while the size and last modified time of the file still match.
+*
+* The length is found by reading the tags, which is cheap, and the hash by reading all of the audio, which is not.
+* So an entry can have a length but no hash yet, if the file never needed hashing.
+*
+* The cache is safe to use from several threads at once.
+*
+* @author Michael Verban (2020)
+*/
+public class ContentHashCache {
+
+	// "MLHC"
+	private static final int MAGIC = 0x4D4C4843;
+	private static final int VERSION = 1;
+
+	private final File cacheFile;
+	private final ConcurrentHashMap<String, Entry> entries;
+	private volatile boolean modified = false;
+
+	/**
+	* Creates an empty cache that is only kept in memory.
+	*/
+	public ContentHashCache(){
+		this.cacheFile = null;
+		this.entries = new ConcurrentHashMap<String, Entry>();
+	}
+
+	/**
+	* Creates a cache stored in the given file, reading in the entries already there.
+	* If the file does not exist yet the cache starts empty, and the file is created on the first save.
+	* @param cacheFile the file to keep the cache in
+	* @throws IOException if the file exists but cannot be read
+	* @throws FileFormatException if the file is not a content hash cache
+	*/
+	public ContentHashCache(File cacheFile) throws IOException{
+		this.cacheFile = cacheFile;
+		this.entries = new ConcurrentHashMap<String, Entry>();
+		if(cacheFile.isFile()){
+			load();
+		}
+	}
+
+	/**
+	* Returns the number of bytes of audio in a song file, leaving out its tags.
+	* @throws IOException if the file cannot be read
+	*/
+	public long payloadLength(File file) throws IOException{
+		return lookup(file, false).payloadLength;
+	}
+
+	/**
+	* Returns the hash of the audio in a song file, see AudioPayload.hash. Files with the same audio have the same hash,
+	* whatever their tags are.
+	* @throws IOException if the file cannot be read
+	*/
+	public long hash(File file) throws IOException{
+		return lookup(file, true).hash;
+	}
+
+	/**
+	* Returns the entry for a file, finding its audio and hashing it if there is no entry for it as it is now.
+	*/
+	private Entry lookup(File file, boolean hashed) throws IOException{
+		String path = file.getCanonicalPath();
+		long size = file.length();
+		long lastModified = file.lastModified();
+
+		Entry entry = entries.get(path);
+		if(entry != null && entry.size == size && entry.lastModified == lastModified && (entry.hashed || !hashed))
+			return entry;
+
+		AudioPayload payload = AudioPayload.find(file);
+		entry = new Entry();
+		entry.size = size;
+		entry.lastModified = lastModified;
+		entry.payloadLength = payload.getLength();
+		if(hashed){
+			entry.hash = payload.hash(file);
+			entry.hashed = true;
+		}
+		entries.put(path, entry);
+		modified = true;
+		return entry;
+	}
+
+	/**
+	* Returns the number of files in the cache.
+	*/
+	public int size(){
+		return entries.size();
+	}
+
+	/**
+	* Writes the cache out to its file, if it was created with one and anything changed since it was loaded or last saved.
+	* The file is replaced atomically, so a failed save leaves the previous cache intact.
+	*/
+	public void save() throws IOException{
+		if(cacheFile == null || !modified)
+			return;
+		modified = false;
+
+		File parent = cacheFile.getAbsoluteFile().getParentFile();
+		if(parent != null)
+			parent.mkdirs();
+		File temp = new File(cacheFile.getPath() + ".tmp");
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))){
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			// Take a copy, so the count matches even if entries are added while saving
+			List<Map.Entry<String, Entry>> all = new ArrayList<Map.Entry<String, Entry>>(entries.entrySet());
+			out.writeInt(all.size());
+			for(Map.Entry<String, Entry> e : all){
+				Entry entry = e.getValue();
+				out.writeUTF(e.getKey());
+				out.writeLong(entry.size);
+				out.writeLong(entry.lastModified);
+				out.writeLong(entry.payloadLength);
+				out.writeBoolean(entry.hashed);
+				out.writeLong(entry.hash);
+			}
+		}catch(IOException e){
+			modified = true;
+			throw e;
+		}
+		Files.move(temp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void load() throws IOException{
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))){
+			if(in.readInt() != MAGIC)
+				throw new FileFormatException("Not a content hash cache file");
+			if(in.readInt() != VERSION)
+				throw new FileFormatException("Unsupported content hash cache version");
+			int count = in.readInt();
+			for(int i = 0; i < count; i++){
+				String path = in.readUTF();
+				Entry entry = new Entry();
+				entry.size = in.readLong();
+				entry.lastModified = in.readLong();
+				entry.payloadLength = in.readLong();
+				entry.hashed = in.readBoolean();
+				entry.hash = in.readLong();
+				entries.put(path, entry);
+			}
+		}catch(EOFException e){
+			throw new FileFormatException("Content hash cache file is truncated");
+		}
+	}
+
+	/**
+	* The audio length and hash of one file, and the size and modification time the file had when they were found.
+	*/
+	private static class Entry {
+		long size, lastModified, payloadLength, hash;
+		boolean hashed;
+	}
+}
@@ -0,0 +1,156 @@
+package com.verban.media;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+* Finds songs in a library that are copies of the same recording in different files, even if their tags differ.
+* Two songs are the same when the audio in their files is byte for byte the same, see AudioPayload.
+*
+* Hashing every file would read the whole library, so candidates are narrowed down first:
+* 1. Songs are grouped by runtime, which is already known. A song with a runtime of its own has no duplicates.
+* 2. The rest are grouped by how many bytes of audio their files have, which only needs their tags read.
+* 3. Only the songs still sharing a group are hashed, reading all of their audio through a memory mapping.
+* Stages 2 and 3 run on a pool of threads, and what they find is kept in a ContentHashCache,
+* so running it again only reads files that are new or have changed.
+*
+* Finding only reads, Library.mergeDuplicates merges what was found.
+*
+* @author Michael Verban (2020)
+*/
+public class DuplicateFinder {
+
+	/**
+	* Receives progress updates while looking for duplicates.
+	* Updates are sent from the thread running the search, not the UI thread.
+	*/
+	public interface ProgressListener{
+		/**
+		* @param stage what is being done, for example "Hashing audio"
+		* @param done how much of the stage is done
+		* @param total how much there is to do in the stage
+		*/
+		void progress(String stage, int done, int total);
+	}
+
+	private final int threads;
+	private ContentHashCache hashCache = new ContentHashCache();
+	private volatile boolean cancelled = false;
+
+	/**
+	* Creates a finder that reads a file per processor at once.
+	*/
+	public DuplicateFinder(){
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	* Creates a finder that reads up to threads files at once.
+	* @param threads the number of files to read at once
+	*/
+	public DuplicateFinder(int threads){
+		if(threads < 1)
+			throw new IllegalArgumentException("Need at least one thread");
+		this.threads = threads;
+	}
+
+	/**
+	* Sets the cache to keep audio lengths and hashes in between searches.
+	* @param hashCache the cache to use, or null to only keep them for this finder
+	*/
+	public void setHashCache(ContentHashCache hashCache){
+		this.hashCache = hashCache != null ? hashCache : new ContentHashCache();
+	}
+
+	/**
+	* Stops a running search as soon as possible, find then throws CancellationException.
+	*/
+	public void cancel(){
+		cancelled = true;
+	}
+
+	/**
+	* Finds the songs that have the same audio as another.
+	* The songs are only read, so this can run off of the UI thread on a copy of the library's song list.
+	* Songs whose files cannot be read are left out.
+	* @param songs the songs to search
+	* @param listener receives progress updates, may be null
+	* @return each group of songs with the same audio, in the order they were given, with groups of at least 2
+	* @throws CancellationException if the search was cancelled
+	*/
+	public List<List<Song>> find(Collection<Song> songs, ProgressListener listener) throws InterruptedException{
+		Map<Integer, List<Song>> byRuntime = new LinkedHashMap<Integer, List<Song>>();
+		for(Song song : songs){
+			byRuntime.computeIfAbsent(song.getRuntime(), r -> new ArrayList<Song>()).add(song);
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "duplicate-finder");
+			t.setDaemon(true);
+			return t;
+		});
+		try{
+			Map<List<Object>, List<Song>> byLength = group(pool, candidates(byRuntime.values()),
+				song -> List.of(song.getRuntime(), hashCache.payloadLength(song.getFile())), "Reading tags", listener);
+			Map<List<Object>, List<Song>> byHash = group(pool, candidates(byLength.values()),
+				song -> List.of(song.getRuntime(), hashCache.payloadLength(song.getFile()), hashCache.hash(song.getFile())),
+				"Hashing audio", listener);
+			return clusters(byHash.values());
+		}finally{
+			pool.shutdownNow();
+		}
+	}
+
+	// The songs in groups of at least 2
+	private static List<Song> candidates(Collection<List<Song>> groups){
+		List<Song> candidates = new ArrayList<Song>();
+		for(List<Song> group : groups){
+			if(group.size() > 1)
+				candidates.addAll(group);
+		}
+		return candidates;
+	}
+
+	private static List<List<Song>> clusters(Collection<List<Song>> groups){
+		List<List<Song>> clusters = new ArrayList<List<Song>>();
+		for(List<Song> group : groups){
+			if(group.size() > 1)
+				clusters.add(Collections.unmodifiableList(group));
+		}
+		return clusters;
+	}
+
+	private interface Key{
+		List<Object> of(Song song) throws IOException;
+	}
+
+	/**
+	* Works out the key of each song on the pool, and groups the songs by it, keeping their order.
+	* Songs whose key cannot be worked out are dropped.
+	*/
+	private Map<List<Object>, List<Song>> group(ExecutorService pool, List<Song> songs, Key key, String stage,
+		ProgressListener listener) throws InterruptedException{
+		CompletionService<List<Object>> done = new ExecutorCompletionService<List<Object>>(pool);
+		List<Future<List<Object>>> futures = new ArrayList<Future<List<Object>>>(songs.size());
+		for(Song song : songs){
+			futures.add(done.submit(() -> key.of(song)));
+		}
+		// Report progress roughly every percent, rather than once per file
+		int step = Math.max(1, songs.size() / 100);
+		for(int i = 1; i <= songs.size(); i++){
+			if(cancelled)
+				throw new CancellationException("Duplicate search cancelled");
+			done.take();
+			if(listener != null && (i % step == 0 || i == songs.size()))
+				listener.progress(stage, i, songs.size());
+		}
+		Map<List<Object>, List<Song>> groups = new LinkedHashMap<List<Object>, List<Song>>();
+		for(int i = 0; i < songs.size(); i++){
+			try{
+				groups.computeIfAbsent(futures.get(i).get(), k -> new ArrayList<Song>()).add(songs.get(i));
+			}catch(ExecutionException e){} // Unreadable, so it cant be compared
+		}
+		return groups;
+	}
+}
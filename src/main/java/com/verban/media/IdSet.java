@@ -0,0 +1,41 @@
+package com.verban.media;
+
+import java.util.*;
+
+/**
+* A sorted set of song ids, for the postings of QueryIndexes and SongFacets.
+* Songs are mostly added in id order, which just appends.
+*
+* @author Michael Verban (2020)
+*/
+class IdSet {
+	int[] ids = new int[4];
+	int size = 0;
+
+	void add(int id){
+		if(size == 0 || id > ids[size - 1]){
+			if(size == ids.length)
+				ids = Arrays.copyOf(ids, size * 2);
+			ids[size++] = id;
+			return;
+		}
+		int i = Arrays.binarySearch(ids, 0, size, id);
+		if(i >= 0)
+			return;
+		i = -i - 1;
+		if(size == ids.length)
+			ids = Arrays.copyOf(ids, size * 2);
+		System.arraycopy(ids, i, ids, i + 1, size - i);
+		ids[i] = id;
+		size++;
+	}
+
+	boolean remove(int id){
+		int i = Arrays.binarySearch(ids, 0, size, id);
+		if(i < 0)
+			return false;
+		System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+		size--;
+		return true;
+	}
+}
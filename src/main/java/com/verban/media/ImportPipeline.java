@@ -0,0 +1,156 @@
+package com.verban.media;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+* Imports whole folders of songs in three stages:
+* 1. Discovery: the folder is walked and every file with a song extension is collected.
+* 2. Parsing: each file is turned into a Song on a fixed pool of worker threads, so tag parsing uses every core.
+*    If a TagCache is set, files that have not changed since they were last read skip tag parsing entirely.
+* 3. Committing: parsed songs are handed to the committer in batches, rather than one at a time.
+*
+* The pipeline blocks the thread that calls importFolder, so it should be run off of the UI thread.
+* When the songs go into a Library that is shown in the UI the committer should hand each batch over to the UI thread.
+*
+* @author Michael Verban (2020)
+*/
+public class ImportPipeline {
+
+	/**
+	* Receives progress updates while an import is running.
+	* Updates are sent from the thread running the import, not the UI thread.
+	*/
+	public interface ProgressListener{
+		/**
+		* @param processed the number of files that have been parsed (successfully or not)
+		* @param total the total number of files discovered
+		* @param songsPerSecond the average number of files parsed per second so far
+		*/
+		void progress(int processed, int total, double songsPerSecond);
+	}
+
+	// Maximum number of songs committed in one batch
+	private static final int BATCH_SIZE = 500;
+	// Maximum time in milliseconds a parsed song waits before being committed
+	private static final long BATCH_INTERVAL = 250;
+
+	private final Consumer<List<Song>> committer;
+	private final int threads;
+	private TagCache tagCache;
+	private volatile boolean cancelled = false;
+
+	/**
+	* Creates a pipeline that adds songs directly to the given library, using one worker thread per processor.
+	* Only use this when the library is not being shown in the UI.
+	*/
+	public ImportPipeline(Library library){
+		this(library::mergeSongs, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	* Creates a pipeline that passes each batch of parsed songs to committer.
+	* @param committer receives each batch of songs, called from the importing thread
+	* @param threads the number of worker threads to parse tags with
+	*/
+	public ImportPipeline(Consumer<List<Song>> committer, int threads){
+		if(threads < 1)
+			throw new IllegalArgumentException("Need at least one worker thread");
+		this.committer = committer;
+		this.threads = threads;
+	}
+
+	/**
+	* Sets the cache used to skip reading tags of files that have not changed since they were last read.
+	* @param tagCache the cache to use, or null to always read tags from the files
+	*/
+	public void setTagCache(TagCache tagCache){
+		this.tagCache = tagCache;
+	}
+
+	/**
+	* Imports every song found in the folder, or any of its subfolders.
+	* Files that cannot be read as songs are skipped.
+	* @param folder the folder to import
+	* @param listener receives progress updates, may be null
+	* @return the number of songs successfully read
+	*/
+	public int importFolder(File folder, ProgressListener listener) throws InterruptedException{
+		List<File> files = discover(folder);
+		int total = files.size();
+
+		ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "import-worker");
+			t.setDaemon(true);
+			return t;
+		});
+		CompletionService<Song> parsed = new ExecutorCompletionService<Song>(workers);
+		TagCache cache = tagCache;
+		for(File f : files){
+			parsed.submit(() -> cache != null ? cache.read(f) : new Song(f));
+		}
+
+		int read = 0;
+		List<Song> batch = new ArrayList<Song>();
+		long start = System.nanoTime();
+		long lastCommit = start;
+		try{
+			for(int processed = 1; processed <= total && !cancelled; processed++){
+				try{
+					batch.add(parsed.take().get());
+					read++;
+				}catch(ExecutionException e){} // Not a readable song, skip it.
+
+				long now = System.nanoTime();
+				if(batch.size() >= BATCH_SIZE || now - lastCommit >= BATCH_INTERVAL * 1000000 || processed == total){
+					if(!batch.isEmpty()){
+						committer.accept(batch);
+						batch = new ArrayList<Song>();
+					}
+					lastCommit = now;
+					if(listener != null)
+						listener.progress(processed, total, processed / ((now - start) / 1e9));
+				}
+			}
+			// Anything parsed before a cancel is still worth keeping
+			if(!batch.isEmpty())
+				committer.accept(batch);
+		}finally{
+			workers.shutdownNow();
+		}
+		return read;
+	}
+
+	/**
+	* Finds all files with a song extension in the folder, or any of its subfolders.
+	* @param folder the folder to search
+	* @return the files found, in no particular order
+	*/
+	public List<File> discover(File folder){
+		List<File> found = new ArrayList<File>();
+		Deque<File> toVisit = new ArrayDeque<File>();
+		toVisit.push(folder);
+		while(!toVisit.isEmpty() && !cancelled){
+			File[] contents = toVisit.pop().listFiles();
+			if(contents == null) // Not a directory, or we cant read it.
+				continue;
+			for(File f : contents){
+				if(f.isDirectory()){
+					toVisit.push(f);
+				}else if(Song.isSongFile(f)){
+					found.add(f);
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	* Stops a running import as soon as possible. Songs already parsed are still committed.
+	*/
+	public void cancel(){
+		cancelled = true;
+	}
+}
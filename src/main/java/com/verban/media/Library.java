@@ -1,6 +1,7 @@
 package com.verban.media;
 
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
 import java.io.*;
 import javafx.collections.*;
 /**
@@ -11,19 +12,80 @@ import javafx.collections.*;
 */
 public class Library {
 	// These lists must be able to be updated on the UI automatically, therefore must be observable.
-	private ObservableList<Artist> artists;
-	private ObservableList<Album> albums;
-	private ObservableList<Song> songs;
+	// The songs, albums and artists report a batch of changes as one, see batch.
+	private BatchList<Artist> artists;
+	private BatchList<Album> albums;
+	private BatchList<Song> songs;
 	private ObservableList<Playlist> playlists;
 
+	// Indexes over the lists above, so lookups do not need to scan them. These must be updated with the lists.
+	// Songs are keyed by themselves, as they are equal to any song with the same file, see Song.key
+	private Map<Song, Song> songIndex;
+	// Ids of the songs, which playlists and albums store their tracks as
+	private SongTable songTable;
+	// One copy of each artist, album, genre and folder of the songs
+	private StringPool stringPool;
+	// Albums are keyed by dummy albums, which are equal to any album with the same title and artist.
+	private Map<Album, Album> albumIndex;
+	private Map<String, Artist> artistIndex;
+	private Map<String, Playlist> playlistIndex;
+	// The playlists each song is on, once for each time it is on them, so removing songs only visits their playlists
+	private Map<Song, List<Playlist>> songPlaylists;
+	// Keeps songPlaylists up to date as the tracks of each playlist in the library change
+	private Map<Playlist, ListChangeListener<Song>> playlistWatchers;
+	// The smart playlists on the playlist list, indexed by their rules
+	private final SmartPlaylists smartPlaylists = new SmartPlaylists();
+	// Words in the tags of every song, for searching. Only built on the first search, as it is the slowest part of
+	// loading a large library by far. Null until then.
+	private SearchIndex searchIndex;
+	// The songs' numbers and repeated strings in columns, for scanning. Only built when first asked for, null until then.
+	private SongColumns columns;
+	// Indexes over the columns for queries. Only built on the first query, null until then.
+	private QueryIndexes queryIndexes;
+	// Song counts by genre, year, artist and so on, for browsing. Only built when first asked for, null until then.
+	private SongFacets facets;
+	// Writes edited tags back to the song files
+	private final TagWriter tagWriter;
+	// Counts every change to the songs or playlists, so savers can tell if anything changed since they last saved.
+	// Only changed on the owner, but read from anywhere, see LibraryApplier.snapshot
+	private volatile long modCount = 0;
+	// The only thread allowed to use the library, or null if it is not checked, see setOwner
+	private volatile Thread owner;
+	// Records each change as it is made, next to the file the library was last loaded from or saved to. Null if there is none.
+	private volatile LibraryJournal journal;
+	// Guards writing the library file, and the file and change count it was last written with
+	private final Object saveLock = new Object();
+	private File savedFile;
+	private long savedModCount;
+	// How many batches are running inside each other, and the songs changed in them, refreshed once the outermost ends
+	private int batchDepth = 0;
+	private Set<Song> batchRefresh = new HashSet<Song>();
+
 	/**
 	* Initializes an empty library.
 	*/
 	public Library(){
-		artists = FXCollections.<Artist>observableArrayList();
-		albums = FXCollections.<Album>observableArrayList();
-		songs = FXCollections.<Song>observableArrayList();
+		this(new TagWriter(2));
+	}
+
+	/**
+	* Initializes an empty library whose edited tags are written by the writer given, for tests.
+	*/
+	Library(TagWriter tagWriter){
+		artists = new BatchList<Artist>();
+		albums = new BatchList<Album>();
+		songs = new BatchList<Song>();
 		playlists = FXCollections.<Playlist>observableArrayList();
+		songIndex = new HashMap<Song, Song>();
+		songTable = new SongTable();
+		stringPool = new StringPool();
+		albumIndex = new HashMap<Album, Album>();
+		artistIndex = new HashMap<String, Artist>();
+		playlistIndex = new HashMap<String, Playlist>();
+		songPlaylists = new HashMap<Song, List<Playlist>>();
+		playlistWatchers = new IdentityHashMap<Playlist, ListChangeListener<Song>>();
+		playlists.addListener(this::playlistsChanged);
+		this.tagWriter = tagWriter;
 	}
 
 	/**
@@ -31,65 +93,241 @@ public class Library {
 	* If reading fails, an exception will be thrown.
 	*/
 	public Library(File f) throws IOException{
+		this();
 		load(f);
 	}
 
 	/*
-	File format notes: file should be read/saved with a ObjectIn/OutputStream.
-	First read/write 2 integers: #Songs, #Playlists
-	then call read/writeObject the specified number of times for each type.
+	File format notes: see LibraryFormat. Files are saved in its binary format,
+	files saved with the older ObjectOutputStream format can still be loaded, and are converted on the next save.
+	Once the library has been saved in the binary format, every change is also appended to a journal next to the file
+	(see LibraryJournal) so it is on disk straight away, and the file itself only needs rewriting now and then.
 	*/
 
 	/**
 	* Attempts to load in library information from the specified file, OVERWRITING WHAT IS ALREADY LOADED.
+	* Changes recorded in the file's journal since it was written are replayed, and further changes are recorded there.
 	* If the file cannot be read completely, the data in this object will be unchanged.
 	* @param f the ".library" file to read from
 	* @throws IOException if an error occurs while reading
 	* @throws FileFormatException if the file is not .library, or the data is not in the correct format.
 	*/
 	public void load(File f) throws IOException{
+		checkOwner();
+		checkLibraryFile(f);
+
+		ArrayList<Song> readSongs = new ArrayList<Song>();
+		ArrayList<Playlist> tempPlaylists = new ArrayList<Playlist>();
+		ArrayList<Artist> tempArtists = new ArrayList<Artist>();
+		ArrayList<Album> tempAlbums = new ArrayList<Album>();
+		LibraryJournal.Mark base = null;
+		SongTable table = new SongTable();
+
+		java.nio.ByteBuffer data = LibraryFormat.map(f);
+		if(LibraryFormat.isBinary(data)){
+			base = LibraryFormat.read(data, table, readSongs, tempPlaylists, tempArtists, tempAlbums);
+		}else{
+			try(InputStream in = new BufferedInputStream(new FileInputStream(f))){
+				LibraryFormat.readLegacy(in, readSongs, tempPlaylists);
+			}catch(EOFException e){
+				throw new FileFormatException("Library file " + f + " is truncated");
+			}
+		}
+
+		// Keyed by file, so that duplicate songs are dropped
+		LinkedHashMap<File, Song> tempSongs = new LinkedHashMap<File, Song>();
+		for(Song s : readSongs){
+			if(tempSongs.putIfAbsent(s.getFile(), s) == null)
+				table.add(s);
+		}
+		LinkedHashMap<String, Playlist> tempPlaylistIndex = indexPlaylists(tempPlaylists, tempSongs, table);
+		for(Song s : readSongs){
+			if(tempSongs.get(s.getFile()) != s)
+				table.remove(s);
+		}
+		LibraryJournal replayed = replayJournal(f, base, table, tempSongs, tempPlaylistIndex);
+		closeJournal();
+		journal = replayed;
+
+		songTable = table;
+		stringPool = new StringPool();
+		songs.setAll(tempSongs.values());
+		songIndex.clear();
+		for(Song s : tempSongs.values()){
+			stringPool.intern(s);
+			songIndex.put(s, s);
+		}
+		searchIndex = null;
+		columns = null;
+		queryIndexes = null;
+		facets = null;
+		playlists.setAll(tempPlaylistIndex.values());
+		playlistIndex.clear();
+		playlistIndex.putAll(tempPlaylistIndex);
+		setGraph(tempArtists, tempAlbums, readSongs.size() != tempSongs.size()
+			|| (replayed != null && replayed.mark().seq != base.seq));
+		fillSmartPlaylists();
+		modCount++;
+	}
+
+	/**
+	* Puts in the artists and albums read from a file, with their albums and tracks in the order stored.
+	* Files in the old serialized format do not store them, so they are worked out from the songs.
+	* @param check whether songs may be on the wrong album, as when duplicates were dropped or the journal replayed
+	*/
+	private void setGraph(List<Artist> readArtists, List<Album> readAlbums, boolean check){
+		if(readAlbums.isEmpty() && !songs.isEmpty()){
+			validate();
+			return;
+		}
+		albums.setAll(readAlbums);
+		artists.setAll(readArtists);
+		albumIndex.clear();
+		for(Album a : readAlbums){
+			albumIndex.put(a, a);
+		}
+		artistIndex.clear();
+		for(Artist a : readArtists){
+			artistIndex.put(a.getName(), a);
+		}
+		if(check)
+			checkIntegrity();
+	}
+
+	/**
+	* Throws an exception if the file cannot be a library to load.
+	*/
+	static void checkLibraryFile(File f) throws FileFormatException{
 		if(!f.isFile())
 			throw new FileFormatException("Not a file");
 		String ext = f.getName().substring(f.getName().lastIndexOf(".")+1);
 		if(!(ext.equalsIgnoreCase("library"))){
 			throw new FileFormatException("Not a .library file");
 		}
+	}
 
-		ArrayList<Song> tempSongs = new ArrayList<Song>();
-		ArrayList<Playlist> tempPlaylists = new ArrayList<Playlist>();
-
-		ObjectInputStream in = new ObjectInputStream(new FileInputStream(f));
-		int numSongs = in.readInt();
-		int numPlaylists = in.readInt();
-
-		try{
-			for(int i =0; i < numSongs; i++){
-				Song s = (Song)in.readObject();
-				if(!tempSongs.contains(s)){
-					// ensure no duplicate songs.
-					tempSongs.add(s);
-				}
-			}
-			for(int i =0; i < numPlaylists; i++){
-				tempPlaylists.add((Playlist)in.readObject());
+	/**
+	* Indexes playlists read from a file by title, dropping repeated titles, and moves them onto the library's table.
+	*/
+	private static LinkedHashMap<String, Playlist> indexPlaylists(List<Playlist> read, Map<File, Song> songsByFile,
+		SongTable table){
+		LinkedHashMap<String, Playlist> index = new LinkedHashMap<String, Playlist>();
+		for(Playlist p : read){
+			// Older files gave each playlist its own copies of its songs, and a song repeated in the file can be
+			// a different instance, make sure they use the library's instances.
+			Song[] tracks = p.getAllTracks().toArray(new Song[0]);
+			for(int i = 0; i < tracks.length; i++){
+				tracks[i] = songsByFile.getOrDefault(tracks[i].getFile(), tracks[i]);
 			}
-		}catch(ClassNotFoundException e){
-			throw new FileFormatException("Object data in libary file: " +f.toString() + " is not valid");
+			p.setSongTable(table);
+			p.getAllTracks().setAll(tracks);
+			index.putIfAbsent(p.getTitle(), p);
 		}
+		return index;
+	}
 
-		in.close();
+	/**
+	* Replays the journal of a library file onto what was read from it.
+	* @return the journal to record further changes in, or null if the file does not have one.
+	*/
+	private static LibraryJournal replayJournal(File f, LibraryJournal.Mark base, SongTable table,
+		Map<File, Song> songsByFile, Map<String, Playlist> playlistsByTitle) throws IOException{
+		// Files from before journals, or saved while the journal was broken, have id 0 and nothing to replay
+		if(base == null || base.id == 0)
+			return null;
+		return LibraryJournal.replay(f, base, table, songsByFile, playlistsByTitle);
+	}
 
+	/*
+	Loading in steps, for LibraryLoader: startLoading, then addLoaded for each batch of songs read, then finishLoading.
+	*/
+
+	/**
+	* Empties the library to have a file loaded into it.
+	*/
+	void startLoading(){
+		checkOwner();
+		closeJournal();
 		songs.clear();
-		songs.addAll(tempSongs);
-		albums.clear();
-		artists.clear();
+		songIndex.clear();
+		songTable = new SongTable();
+		stringPool = new StringPool();
+		searchIndex = null;
+		columns = null;
+		queryIndexes = null;
+		facets = null;
 		playlists.clear();
-		playlists.addAll(tempPlaylists);
+		playlistIndex.clear();
 		validate();
+		modCount++;
+	}
+
+	/**
+	* Adds a batch of songs read from a file. Unlike addSongs, the songs are not journaled, are not checked
+	* for being in the library already, and are not put on albums until finishLoading.
+	*/
+	void addLoaded(List<Song> batch){
+		checkOwner();
+		for(Song song : batch){
+			songTable.add(song);
+			stringPool.intern(song);
+		}
+		songs.addAll(batch);
+		for(Song song : batch){
+			songIndex.put(song, song);
+		}
+		modCount++;
+	}
+
+	/**
+	* Adds the playlists, albums and artists read from a file once all of its songs have been added,
+	* and replays its journal.
+	* @param f the file that was loaded
+	* @param base where the file left off in its journal, or null if it is not in the binary format
+	* @param songCount the number of songs in the file, more than were added if it repeats any
+	* @param idLimit one more than any song id the file's library had handed out, which are not handed out again
+	* @param read the playlists read from the file
+	* @param readArtists the artists read from the file, empty if it does not store them
+	* @param readAlbums the albums read from the file, on a table of their own, empty if it does not store them
+	*/
+	void finishLoading(File f, LibraryJournal.Mark base, int songCount, int idLimit, List<Playlist> read,
+		List<Artist> readArtists, List<Album> readAlbums) throws IOException{
+		checkOwner();
+		boolean dropped = songIndex.size() != songCount;
+		songTable.reserve(idLimit);
+		LinkedHashMap<File, Song> loadedSongs = new LinkedHashMap<File, Song>();
+		for(Song s : songs){
+			loadedSongs.put(s.getFile(), s);
+		}
+		LinkedHashMap<String, Playlist> loadedPlaylists = indexPlaylists(read, loadedSongs, songTable);
+		// Read on another thread, into a table of its own, which holds the same songs with the same ids
+		for(Album a : readAlbums){
+			a.setSongTable(songTable);
+		}
+		LibraryJournal replayed = replayJournal(f, base, songTable, loadedSongs, loadedPlaylists);
+		boolean changed = replayed != null && replayed.mark().seq != base.seq;
+		if(changed){
+			// The journal changed songs that are already shown, so put everything back in order
+			songs.setAll(loadedSongs.values());
+			songIndex.clear();
+			for(Song s : loadedSongs.values()){
+				stringPool.intern(s);
+				songIndex.put(s, s);
+			}
+		}
+		journal = replayed;
+		playlists.setAll(loadedPlaylists.values());
+		playlistIndex.clear();
+		playlistIndex.putAll(loadedPlaylists);
+		setGraph(readArtists, readAlbums, dropped || changed);
+		fillSmartPlaylists();
+		modCount++;
 	}
 
 	/**
 	* Attempts to save the data in this library to the specified .library file.
+	* The file is replaced in one step, so if saving fails or is interrupted the previous contents are left intact.
+	* From then on, changes are recorded in a journal next to the file.
 	* @param f the ".library" file to read from
 	* @throws IOException if an error occurs while writing
 	* @throws FileFormatException if the file is not .library
@@ -100,30 +338,192 @@ public class Library {
 			throw new FileFormatException("Not a .library file");
 		}
 
-		ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(f));
-		out.writeInt(songs.size());
-		out.writeInt(playlists.size());
+		LibraryJournal current = journal;
+		if(current == null || !current.getLibraryFile().equals(f)){
+			// A new id, so a journal left next to the file by something else is not replayed onto it
+			closeJournal();
+			journal = LibraryJournal.create(f, ThreadLocalRandom.current().nextLong());
+		}
+		writeSnapshot(f, snapshot());
+	}
+
+	/**
+	* Takes a snapshot of the songs and playlists in this library, which can be saved on another thread.
+	* This must be called wherever the library is safe to read (the UI thread, once it is shown).
+	*/
+	public LibrarySnapshot snapshot(){
+		checkOwner();
+		LibraryJournal current = journal;
+		return new LibrarySnapshot(songs, playlists, artists, albums, songTable.nextId(), modCount,
+			current == null ? null : current.mark());
+	}
 
-		for(Song s : songs){
-			out.writeObject(s);
+	/**
+	* Writes a snapshot to a library file, then drops the records it includes from the journal. Safe to call from
+	* any thread. A snapshot older than one already written to the same file is skipped, so saves that finish out
+	* of order never go back in time.
+	*/
+	void writeSnapshot(File f, LibrarySnapshot snapshot) throws IOException{
+		synchronized(saveLock){
+			if(f.equals(savedFile) && snapshot.getModCount() < savedModCount)
+				return;
+			LibraryFormat.writeAtomically(f, snapshot);
+			savedFile = f;
+			savedModCount = snapshot.getModCount();
+
+			LibraryJournal current = journal;
+			LibraryJournal.Mark mark = snapshot.getJournalMark();
+			if(current != null && mark != null && current.getLibraryFile().equals(f)){
+				try{
+					current.compact(mark);
+				}catch(IOException e){
+					// The file is saved, but further changes cannot be journaled
+					dropJournal(current);
+				}
+			}
 		}
-		for(Playlist p : playlists){
-			out.writeObject(p);
+	}
+
+	/**
+	* Tests whether changes to this library are being recorded in a journal as they are made.
+	* Until it has been loaded from or saved to a file, it has no journal.
+	*/
+	public boolean hasJournal(){
+		return journal != null;
+	}
+
+	/**
+	* Returns the size in bytes of the journal, or 0 if there is none. Safe to call from any thread.
+	*/
+	public long getJournalLength(){
+		LibraryJournal current = journal;
+		return current == null ? 0 : current.length();
+	}
+
+	/**
+	* Forces the journal to disk and stops recording changes in it, for example before exiting.
+	*/
+	public void closeJournal(){
+		LibraryJournal current = journal;
+		journal = null;
+		if(current != null){
+			try{
+				current.close();
+			}catch(IOException e){}
 		}
+	}
 
-		out.close();
+	/**
+	* Appends a change to the journal. If that fails, the journal is dropped, and changes from then on are only saved
+	* by saving the whole library.
+	*/
+	private void journal(JournalEntry entry){
+		LibraryJournal current = journal;
+		if(current == null)
+			return;
+		try{
+			entry.writeTo(current);
+		}catch(IOException e){
+			dropJournal(current);
+		}
+	}
+
+	private void dropJournal(LibraryJournal broken){
+		if(journal == broken)
+			journal = null;
+		try{
+			broken.close();
+		}catch(IOException e){}
+	}
+
+	private interface JournalEntry{
+		void writeTo(LibraryJournal journal) throws IOException;
+	}
+
+	/**
+	* Confines the library to one thread from now on. The library does no locking, so it must only ever be used
+	* on one thread at a time, and once it is shown that is the UI thread. Other threads go through a LibraryApplier.
+	* With an owner set, changing or snapshotting the library on any other thread throws IllegalStateException,
+	* rather than quietly corrupting its albums and artists.
+	* @param owner the thread that owns the library, or null to stop checking
+	*/
+	public void setOwner(Thread owner){
+		this.owner = owner;
+	}
+
+	// Throws if the library has an owner and this is not it
+	private void checkOwner(){
+		Thread t = owner;
+		if(t != null && t != Thread.currentThread())
+			throw new IllegalStateException("Library used on " + Thread.currentThread().getName() + ", it is owned by "
+				+ t.getName());
+	}
+
+	/**
+	* Returns a count of the changes made to the songs and playlists of this library. Safe to call from any thread.
+	* If the count is the same as when a snapshot was taken, nothing has changed since.
+	*/
+	public long getModCount(){
+		return modCount;
+	}
+
+	/**
+	* Checks that every song in the library is on exactly one album, the one matching its tags, and that albums only
+	* hold songs in the library, fixing anything that is wrong. Loading trusts the albums and artists stored in the file,
+	* so this is only needed if a file may have been damaged, or to be sure.
+	* @return true if everything was already right
+	*/
+	public boolean checkIntegrity(){
+		checkOwner();
+		boolean ok = true;
+		Set<Song> placed = Collections.newSetFromMap(new IdentityHashMap<Song, Boolean>());
+		List<Album> emptied = new ArrayList<Album>();
+		for(Album album : albums){
+			if(albumIndex.get(album) != album){
+				albumIndex.putIfAbsent(album, album);
+				ok = false;
+			}
+			if(!getArtist(album.getArtistName()).hasAlbum(album)){
+				getArtist(album.getArtistName()).addAlbum(album);
+				ok = false;
+			}
+			for(Song track : album.getAllTracks()){
+				// A track whose song has left the table comes back as null
+				boolean belongs = track != null && songIndex.get(track) == track && album.getTitle().equals(track.getOriginalAlbum())
+					&& album.getArtistName().equals(track.getArtistName());
+				if(!belongs || !placed.add(track)){
+					album.removeTrack(track);
+					ok = false;
+				}
+			}
+			if(album.numTracks() == 0)
+				emptied.add(album);
+		}
+		for(Song song : songs){
+			if(!placed.contains(song)){
+				getAlbum(song.getOriginalAlbum(), song.getArtistName()).addTrack(song);
+				ok = false;
+			}
+		}
+		if(dropEmptyAlbums(emptied))
+			ok = false;
+		return ok;
 	}
 
 	/**
 	* This method tells the library to go through and ensure there is only one instance of every song, album, and artist.
 	* This ensures that changes made to one object will reflect accross all places that object is used.
-	* This should only be needed immediately after loading a library, to coalesce all the deserialized instances into one.
+	* This is only needed after loading a library from a file that does not store its albums and artists,
+	* to coalesce all the deserialized instances into one. See checkIntegrity for checking a library that does.
 	*
 	* Note that this method acheives this by clearing the Album and Artist lists, and rebuilding them from the ground up using just data in the Song objects.
 	*/
 	public void validate(){
+		checkOwner();
 		albums.clear();
 		artists.clear();
+		albumIndex.clear();
+		artistIndex.clear();
 
 		for(Song song : songs){
 			// We are always part of an album, regardless of how much info we have on it
@@ -133,6 +533,32 @@ public class Library {
 		// We dont need to do anything more, becuase in the creation of the needed albums, they were automatically added to the artists.
 	}
 
+	/**
+	* Makes any number of changes to the library as one. Views of the song, album and artist lists get a single change
+	* for each list once the changes are done, rather than one for every song added, edited or removed. Batches can be
+	* nested, only the outermost one reports. The changes themselves are made (and journaled) straight away, so the
+	* library can be read as usual inside the batch.
+	*
+	* Playlists report their changes as they are made, as the library keeps track of their songs through them.
+	* @param changes makes the changes, by calling this library's methods as usual
+	*/
+	public void batch(Runnable changes){
+		checkOwner();
+		artists.beginBatch();
+		albums.beginBatch();
+		songs.beginBatch();
+		batchDepth++;
+		try{
+			changes.run();
+		}finally{
+			if(--batchDepth == 0)
+				flushRefresh();
+			songs.endBatch();
+			albums.endBatch();
+			artists.endBatch();
+		}
+	}
+
 	public ObservableList<Song> getSongs(){
 		return songs;
 	}
@@ -142,12 +568,86 @@ public class Library {
 	* If it does not exist, returns null
 	*/
 	public Song getSong(File songFile){
-		for(Song song : songs){
-			if(song.getFile().equals(songFile)){
-				return song;
+		return songIndex.get(Song.key(songFile));
+	}
+
+	/**
+	* Searches the title, artist, album, and genre of every song for the words in the query.
+	* Each word may be the start of a word in the song, so this can be used to search as the user types.
+	* The first search after loading builds the index the search runs on, and takes longer than the rest.
+	* @param query the words to search for
+	* @param limit the most songs to return
+	* @return the songs matching every word in the query, best match first
+	*/
+	public List<Song> search(String query, int limit){
+		checkOwner();
+		if(searchIndex == null){
+			searchIndex = new SearchIndex();
+			for(Song s : songs){
+				searchIndex.add(s);
+			}
+		}
+		return searchIndex.search(query, limit);
+	}
+
+	/**
+	* Returns the songs' numbers and repeated strings in columns, indexed by song id, to scan, sort and count the
+	* whole library quickly. The columns are built on the first call, then kept in step with the songs as they change.
+	* The same object is returned until a file is loaded into the library.
+	*/
+	public SongColumns getColumns(){
+		checkOwner();
+		if(columns == null){
+			columns = new SongColumns();
+			for(Song s : songs){
+				columns.put(s);
 			}
 		}
-		return null;
+		return columns;
+	}
+
+	/**
+	* Finds the songs matching a query, in the order it asks for. The first query builds indexes over the columns
+	* (see getColumns), which are then kept in step with the songs, so later queries only visit the songs that the best
+	* index for them points to, or scan the columns if there is no index that narrows them down enough.
+	* @param query the songs to find
+	* @return the songs found, after the query's offset and up to its limit
+	*/
+	public List<Song> query(SongQuery query){
+		checkOwner();
+		int[] ids = queryIndexes().run(query);
+		List<Song> found = new ArrayList<Song>(ids.length);
+		for(int id : ids){
+			found.add(songTable.get(id));
+		}
+		return found;
+	}
+
+	/**
+	* Describes how a query would be run, for example "genre index, 1200 songs" or "full scan, 100000 songs",
+	* with the number of songs it would go through.
+	*/
+	public String explain(SongQuery query){
+		checkOwner();
+		return queryIndexes().explain(query);
+	}
+
+	/**
+	* Returns the counts of songs by genre, decade, year, artist and album, and within any of them picked, for browsing
+	* the library. They are built over the columns (see getColumns) on the first call, then kept in step with the songs.
+	* The same object is returned until a file is loaded into the library.
+	*/
+	public SongFacets getFacets(){
+		checkOwner();
+		if(facets == null)
+			facets = new SongFacets(getColumns());
+		return facets;
+	}
+
+	private QueryIndexes queryIndexes(){
+		if(queryIndexes == null)
+			queryIndexes = new QueryIndexes(getColumns());
+		return queryIndexes;
 	}
 
 	public ObservableList<Album> getAlbums(){
@@ -160,18 +660,71 @@ public class Library {
 	* A newly created album is also automatically added to the album list of its artist.
 	*/
 	public Album getAlbum(String title, String artistName){
-		Album test = new Album(title, artistName);
-		int i = -1;
-		if((i = albums.indexOf(test)) > -1){
-			return albums.get(i);
+		checkOwner();
+		Album test = new Album(title, artistName, songTable);
+		Album album = albumIndex.get(test);
+		if(album != null){
+			return album;
 		}else{
 			albums.add(test);
+			albumIndex.put(test, test);
 			Artist artist = getArtist(artistName);
 			artist.addAlbum(test);
 			return test;
 		}
 	}
 
+	// Returns the album instance with the title and artist, or null if there is none
+	private Album findAlbum(String title, String artistName){
+		return albumIndex.get(new Album(title, artistName, songTable));
+	}
+
+	/**
+	* Removes the albums that have no tracks left from the library, along with any artists left without albums.
+	* The album and artist lists are each changed once, however many are removed.
+	* @param candidates albums that may have been left empty
+	* @return true if anything was removed
+	*/
+	private boolean dropEmptyAlbums(Collection<Album> candidates){
+		Set<Album> empty = new HashSet<Album>();
+		for(Album album : candidates){
+			if(album.numTracks() == 0 && albumIndex.get(album) == album)
+				empty.add(album);
+		}
+		if(empty.isEmpty())
+			return false;
+		albums.removeAll(empty);
+		Set<Artist> emptyArtists = new HashSet<Artist>();
+		for(Album album : empty){
+			albumIndex.remove(album);
+			Artist artist = artistIndex.get(album.getArtistName());
+			if(artist != null){
+				artist.removeAlbum(album);
+				if(artist.numAlbums() == 0)
+					emptyArtists.add(artist);
+			}
+		}
+		artists.removeAll(emptyArtists);
+		for(Artist artist : emptyArtists){
+			artistIndex.remove(artist.getName());
+		}
+		return true;
+	}
+
+	/**
+	* Groups songs by the album they are on now, going by their tags, keeping them in order.
+	* Songs whose album does not exist are left out.
+	*/
+	private Map<Album, Set<Song>> groupByAlbum(Collection<Song> grouped){
+		Map<Album, Set<Song>> byAlbum = new LinkedHashMap<Album, Set<Song>>();
+		for(Song song : grouped){
+			Album album = findAlbum(song.getOriginalAlbum(), song.getArtistName());
+			if(album != null)
+				byAlbum.computeIfAbsent(album, a -> new LinkedHashSet<Song>()).add(song);
+		}
+		return byAlbum;
+	}
+
 	public ObservableList<Artist> getArtists(){
 		return artists;
 	}
@@ -181,13 +734,15 @@ public class Library {
 	* If it does not, a new one is created and added to the artist list, then returned.
 	*/
 	public Artist getArtist(String name){
-		Artist test = new Artist(name);
-		int i = -1;
-		if((i = artists.indexOf(test)) > -1){
-			return artists.get(i);
+		checkOwner();
+		Artist artist = artistIndex.get(name);
+		if(artist != null){
+			return artist;
 		}else{
-			artists.add(test);
-			return test;
+			artist = new Artist(name);
+			artists.add(artist);
+			artistIndex.put(name, artist);
+			return artist;
 		}
 	}
 
@@ -200,13 +755,17 @@ public class Library {
 	* If it does not, a new one is created and added to the playlist list, then returned.
 	*/
 	public Playlist getPlaylist(String title){
-		Playlist test = new Playlist(title);
-		int i = -1;
-		if((i = playlists.indexOf(test)) > -1){
-			return playlists.get(i);
+		checkOwner();
+		Playlist playlist = playlistIndex.get(title);
+		if(playlist != null){
+			return playlist;
 		}else{
-			playlists.add(test);
-			return test;
+			playlist = new Playlist(title, songTable);
+			playlists.add(playlist);
+			playlistIndex.put(title, playlist);
+			modCount++;
+			journal(j -> j.createPlaylist(title));
+			return playlist;
 		}
 	}
 
@@ -215,12 +774,7 @@ public class Library {
 	* @return true if there is a playlist with the given name, false otherwise
 	*/
 	public boolean playlistExists(String name){
-		for(Playlist p : playlists){
-			if(p.getTitle().equals(name)){
-				return true;
-			}
-		}
-		return false;
+		return playlistIndex.containsKey(name);
 	}
 
 	/**
@@ -229,8 +783,15 @@ public class Library {
 	* @param song the song to add.
 	*/
 	public void addSong(Song song){
-		if(!songs.contains(song)){ // If the file already exists in this library, dont add it
+		checkOwner();
+		if(!songIndex.containsKey(song)){ // If the file already exists in this library, dont add it
+			songTable.add(song);
+			stringPool.intern(song);
 			songs.add(song);
+			songIndex.put(song, song);
+			indexAdded(song);
+			modCount++;
+			journal(j -> j.songs(List.of(song)));
 
 			//Always add to the album, regardless of how blank it is
 			Album album = getAlbum(song.getOriginalAlbum(), song.getArtistName());
@@ -239,7 +800,201 @@ public class Library {
 	}
 
 	/**
-	* Updates a song to have the new specified tag data, also commits those files to the underlying file.
+	* Adds all of the specified songs to the library as a single change to the song list.
+	* Songs that are already in the library (or repeated in the collection) are skipped.
+	* Each new song is also added to its album, creating the album and artist if needed.
+	* @param newSongs the songs to add.
+	*/
+	public void addSongs(Collection<Song> newSongs){
+		checkOwner();
+		List<Song> toAdd = new ArrayList<Song>();
+		for(Song song : newSongs){
+			if(songIndex.putIfAbsent(song, song) == null)
+				toAdd.add(song);
+		}
+		if(toAdd.isEmpty())
+			return;
+
+		for(Song song : toAdd){
+			songTable.add(song);
+			stringPool.intern(song);
+		}
+		songs.addAll(toAdd);
+		modCount++;
+		journal(j -> j.songs(toAdd));
+		for(Song song : toAdd){
+			indexAdded(song);
+			Album album = getAlbum(song.getOriginalAlbum(), song.getArtistName());
+			album.addTrack(song);
+		}
+	}
+
+	/**
+	* Merges freshly scanned songs into the library. Songs for files not yet in the library are added as in addSongs.
+	* Songs for files already in the library replace the tag data of the existing song if it differs,
+	* moving it to a different album if needed. The existing Song instances are kept.
+	* @param scanned the songs read from disk
+	*/
+	public void mergeSongs(Collection<Song> scanned){
+		checkOwner();
+		List<Song> added = new ArrayList<Song>();
+		Map<Song, Song> rescanned = new HashMap<Song, Song>();
+		for(Song song : scanned){
+			Song existing = songIndex.get(song);
+			if(existing == null){
+				added.add(song);
+			}else if(existing != song && !existing.hasSameTags(song)){
+				rescanned.put(existing, song);
+			}
+		}
+		// One change to the song list for both the new songs and the rescanned ones
+		batch(() -> {
+			retag(rescanned.keySet(), s -> s.copyTagsFrom(rescanned.get(s)));
+			Set<Song> changed = rescanned.keySet();
+			addSongs(added);
+			refresh(changed);
+			journal(j -> j.songs(changed));
+		});
+	}
+
+	/**
+	* Removes the specified song from the library, see removeSongs.
+	* @param song the song to remove
+	*/
+	public void removeSong(Song song){
+		removeSongs(List.of(song));
+	}
+
+	/**
+	* Removes the specified songs from the library, and from their albums and any playlists that contain them.
+	* Albums left without tracks are removed, and so are artists left without albums.
+	* Songs that are not in the library are ignored.
+	*
+	* Each album and playlist that held any of the songs is gone through once, and only those are visited,
+	* so removing a large part of the library takes time in proportion to the songs and tracks involved.
+	* @param toRemove the songs to remove
+	*/
+	public void removeSongs(Collection<Song> toRemove){
+		checkOwner();
+		Set<Song> removed = new HashSet<Song>();
+		for(Song song : toRemove){
+			Song existing = songIndex.remove(song);
+			if(existing != null){
+				removed.add(existing);
+				indexRemoved(existing);
+			}
+		}
+		if(removed.isEmpty())
+			return;
+
+		Map<Album, Set<Song>> byAlbum = groupByAlbum(removed);
+		for(Map.Entry<Album, Set<Song>> entry : byAlbum.entrySet()){
+			entry.getKey().removeTracks(entry.getValue());
+		}
+		dropEmptyAlbums(byAlbum.keySet());
+
+		songs.removeAll(removed);
+		modCount++;
+		journal(j -> j.removeSongs(removed));
+		Set<Playlist> holding = Collections.newSetFromMap(new IdentityHashMap<Playlist, Boolean>());
+		for(Song song : removed){
+			holding.addAll(songPlaylists.getOrDefault(song, List.of()));
+		}
+		for(Playlist p : holding){
+			p.getAllTracks().removeAll(removed);
+		}
+		for(Song song : removed){
+			songTable.remove(song);
+		}
+	}
+
+	/**
+	* Merges each group of duplicate songs, for example from a DuplicateFinder, into the first song in the group
+	* that is still in the library. It takes the place of the others on every playlist they were on, and gets the
+	* highest rating of the group, then the others are removed from the library. Their files are left alone.
+	* @param duplicates the groups of songs to merge
+	*/
+	public void mergeDuplicates(List<List<Song>> duplicates){
+		checkOwner();
+		// The ratings, replaced tracks and removals all reach the song list as one change
+		batch(() -> {
+			Map<Song, Song> replaced = new LinkedHashMap<Song, Song>();
+			for(List<Song> group : duplicates){
+				Song kept = null;
+				for(Song song : group){
+					Song existing = songIndex.get(song);
+					if(existing == null || existing == kept)
+						continue;
+					if(kept == null){
+						kept = existing;
+					}else{
+						replaced.put(existing, kept);
+						if(existing.getRating() > kept.getRating())
+							setRating(kept, existing.getRating());
+					}
+				}
+			}
+			if(replaced.isEmpty())
+				return;
+
+			for(Map.Entry<Song, Song> e : replaced.entrySet()){
+				List<Playlist> on = songPlaylists.get(e.getKey());
+				if(on == null)
+					continue;
+				// Copied, replacing tracks changes the index
+				for(Playlist p : new ArrayList<Playlist>(on)){
+					// Smart playlists drop the removed songs by themselves, and the kept one is already there if it matches
+					if(p instanceof SmartPlaylist)
+						continue;
+					ObservableList<Song> tracks = p.getAllTracks();
+					for(int i = 0; i < tracks.size(); i++){
+						if(e.getKey().equals(tracks.get(i)))
+							tracks.set(i, e.getValue());
+					}
+				}
+			}
+			modCount++;
+			journal(j -> j.replaceSongs(replaced));
+			removeSongs(replaced.keySet());
+		});
+	}
+
+	/**
+	* Points songs at the files they were moved to, for example from a LibraryHealthCheck. The songs stay where they are
+	* in the song list, albums and playlists. A song is skipped if it is not in the library, or if its new file already is.
+	* @param moved each song, with the file it is at now
+	*/
+	public void relocateSongs(Map<Song, File> moved){
+		checkOwner();
+		Map<Song, File> relocated = new LinkedHashMap<Song, File>();
+		for(Map.Entry<Song, File> e : moved.entrySet()){
+			Song song = songIndex.get(e.getKey());
+			File to = e.getValue();
+			if(song == null || songIndex.containsKey(Song.key(to)))
+				continue;
+			// Take it out of everything keyed by its file, then put it back under the new one
+			File from = song.getFile();
+			songIndex.remove(song);
+			List<Playlist> on = songPlaylists.remove(song);
+			if(searchIndex != null)
+				searchIndex.remove(song);
+			song.setFile(to);
+			stringPool.intern(song);
+			songIndex.put(song, song);
+			if(on != null)
+				songPlaylists.put(song, on);
+			if(searchIndex != null)
+				searchIndex.add(song);
+			relocated.put(song, from);
+		}
+		refresh(relocated.keySet());
+		journal(j -> j.relocate(relocated));
+	}
+
+	/**
+	* Updates a song to have the new specified tag data. The change is made in the library immediately,
+	* and the tags are queued to be written back to the file in the background by the TagWriter.
+	* Writes that fail are reported to the TagWriter's FailureListener.
 	* @param song the original Song
 	* @param title the new song title
 	* @param originalAlbum the new song Album
@@ -249,47 +1004,313 @@ public class Library {
 	* @param albumTrackNumber the new number of the track on its album
 	* @param albumTracks the new number of tracks on the album
 	*
-	* @return true if the data was updated and the tag write succeded, false otherwise.
+	* @return true if the data was updated and the tag write was queued.
 	*/
 	public boolean updateSong(Song song, String title, String originalAlbum, String artistName, int year, String genre, int albumTrackNumber, int albumTracks){
+		checkOwner();
 		//TODO maybe ensure the file is the master object in the library using getSong(song.getFile())?
 
-		song.setTitle(title);
-		song.setGenre(genre);
-		song.setAlbumTrackNumber(albumTrackNumber);
-		song.setAlbumTracks(albumTracks);
+		setTags(song, title, originalAlbum, artistName, year, genre, albumTrackNumber, albumTracks);
 
-		//If album changed in any way, remove it from the old one and add it to the new one
-		if(!song.getOriginalAlbum().equals(originalAlbum) || song.getYear() != year || !song.getArtistName().equals(artistName)) {
-			//TODO deal with empty albums/artists, though a save and reload of the library will remove them
-			getAlbum(song.getOriginalAlbum(), song.getArtistName()).removeTrack(song);
-			song.setOriginalAlbum(originalAlbum);
-			song.setYear(year);
-			song.setArtistName(artistName);
-			getAlbum(originalAlbum, artistName).addTrack(song);
-		}
 		// Ensure that the list updates
-		songs.remove(song);
-		songs.add(song);
+		refresh(Set.of(song));
+		journal(j -> j.songs(List.of(song)));
+
+		tagWriter.submit(song);
+		return true;
+	}
+
+	/**
+	* Gives every song in the collection the same album, artist, year, and genre, for example to fix up a whole box set at once.
+	* Any of these that are null are left as they are on each song. The song list is updated once,
+	* and all the tag writes are queued together, see updateSong.
+	* @param toUpdate the songs to change
+	* @param originalAlbum the new album, or null
+	* @param artistName the new artist, or null
+	* @param year the new year, or null
+	* @param genre the new genre, or null
+	*/
+	public void updateSongs(Collection<Song> toUpdate, String originalAlbum, String artistName, Integer year, String genre){
+		checkOwner();
+		Set<Song> changed = new LinkedHashSet<Song>(toUpdate);
+		retag(changed, song -> {
+			if(originalAlbum != null)
+				song.setOriginalAlbum(originalAlbum);
+			if(artistName != null)
+				song.setArtistName(artistName);
+			if(year != null)
+				song.setYear(year);
+			if(genre != null)
+				song.setGenre(genre);
+		});
+		refresh(changed);
+		journal(j -> j.songs(changed));
+		tagWriter.submitAll(changed);
+	}
+
+	/**
+	* Returns the writer that saves edited tags back to song files, to listen for failures or wait for it to finish.
+	*/
+	public TagWriter getTagWriter(){
+		return tagWriter;
+	}
+
+	/**
+	* Changes the tags of a song in memory, moving it to its new album if needed, and keeping the search index in step.
+	*/
+	private void setTags(Song song, String title, String originalAlbum, String artistName, int year, String genre, int albumTrackNumber, int albumTracks){
+		retag(List.of(song), s -> {
+			s.setTitle(title);
+			s.setGenre(genre);
+			s.setAlbumTrackNumber(albumTrackNumber);
+			s.setAlbumTracks(albumTracks);
+			s.setOriginalAlbum(originalAlbum);
+			s.setYear(year);
+			s.setArtistName(artistName);
+		});
+	}
+
+	/**
+	* Changes the tags of songs in memory with retag, moving the songs whose album or artist changed to their new album,
+	* and keeping the indexes over the songs in step. Albums and artists left empty are removed.
+	* Each album the songs were on is gone through once, rather than once per song.
+	*/
+	private void retag(Collection<Song> toRetag, java.util.function.Consumer<Song> retag){
+		Map<Album, Set<Song>> before = groupByAlbum(toRetag);
+		for(Song song : toRetag){
+			retag.accept(song);
+			stringPool.intern(song);
+			indexChanged(song);
+		}
+		for(Map.Entry<Album, Set<Song>> entry : before.entrySet()){
+			Album old = entry.getKey();
+			Set<Song> moved = new LinkedHashSet<Song>();
+			for(Song song : entry.getValue()){
+				if(!old.getTitle().equals(song.getOriginalAlbum()) || !old.getArtistName().equals(song.getArtistName()))
+					moved.add(song);
+			}
+			old.removeTracks(moved);
+			for(Song song : moved){
+				getAlbum(song.getOriginalAlbum(), song.getArtistName()).addTrack(song);
+			}
+		}
+		dropEmptyAlbums(before.keySet());
+	}
+
+	/**
+	* Reports each of the changed songs as updated in the song list, so that views of the list show their new data.
+	* In a batch this waits for the batch to end, so the song list is only gone through once.
+	*/
+	private void refresh(Set<Song> changed){
+		if(changed.isEmpty())
+			return;
+		modCount++;
+		batchRefresh.addAll(changed);
+		if(batchDepth == 0)
+			flushRefresh();
+	}
+
+	private void flushRefresh(){
+		if(batchRefresh.isEmpty())
+			return;
+		Set<Song> changed = batchRefresh;
+		batchRefresh = new HashSet<Song>();
+		songs.beginBatch();
+		try{
+			for(int i = 0; i < songs.size(); i++){
+				if(changed.contains(songs.get(i)))
+					songs.updated(i);
+			}
+		}finally{
+			songs.endBatch();
+		}
+	}
+
+	/*
+	The search index, columns, query indexes and facets are built over the songs when first needed,
+	then kept in step through these.
+	*/
+
+	private void indexAdded(Song song){
+		if(searchIndex != null)
+			searchIndex.add(song);
+		if(columns != null)
+			columns.put(song);
+		if(queryIndexes != null)
+			queryIndexes.add(song.getId());
+		if(facets != null)
+			facets.add(song.getId());
+		smartPlaylists.refresh(song, songPlaylists.get(song));
+	}
+
+	private void indexRemoved(Song song){
+		if(searchIndex != null)
+			searchIndex.remove(song);
+		// The query indexes and facets find what to remove from the columns, so they go first
+		if(queryIndexes != null)
+			queryIndexes.remove(song.getId());
+		if(facets != null)
+			facets.remove(song.getId());
+		if(columns != null)
+			columns.remove(song);
+	}
+
+	private void indexChanged(Song song){
+		// Songs can be edited without being in the library, which must not put them in its indexes
+		if(songIndex.get(song) != song)
+			return;
+		if(searchIndex != null)
+			searchIndex.update(song);
+		if(queryIndexes != null)
+			queryIndexes.remove(song.getId());
+		if(facets != null)
+			facets.remove(song.getId());
+		if(columns != null)
+			columns.put(song);
+		if(queryIndexes != null)
+			queryIndexes.add(song.getId());
+		if(facets != null)
+			facets.add(song.getId());
+		if(!smartPlaylists.isEmpty())
+			smartPlaylists.refresh(song, songPlaylists.get(song));
+	}
+
+	// Starts or stops keeping track of the songs on playlists added to or removed from the library
+	private void playlistsChanged(ListChangeListener.Change<? extends Playlist> change){
+		while(change.next()){
+			for(Playlist p : change.getRemoved()){
+				ListChangeListener<Song> watcher = playlistWatchers.remove(p);
+				if(watcher != null){
+					p.getAllTracks().removeListener(watcher);
+					for(Song s : p.getAllTracks()){
+						unindexTrack(s, p);
+					}
+					if(p instanceof SmartPlaylist)
+						smartPlaylists.remove((SmartPlaylist)p);
+				}
+			}
+			for(Playlist p : change.getAddedSubList()){
+				if(playlistWatchers.containsKey(p))
+					continue;
+				ListChangeListener<Song> watcher = c -> {
+					while(c.next()){
+						for(Song s : c.getRemoved()){
+							unindexTrack(s, p);
+						}
+						for(Song s : c.getAddedSubList()){
+							indexTrack(s, p);
+						}
+					}
+				};
+				playlistWatchers.put(p, watcher);
+				p.getAllTracks().addListener(watcher);
+				for(Song s : p.getAllTracks()){
+					indexTrack(s, p);
+				}
+				if(p instanceof SmartPlaylist)
+					smartPlaylists.add((SmartPlaylist)p);
+			}
+		}
+	}
 
-		return song.writeTags();
+	private void indexTrack(Song song, Playlist p){
+		if(song != null)
+			songPlaylists.computeIfAbsent(song, s -> new ArrayList<Playlist>(1)).add(p);
+	}
+
+	private void unindexTrack(Song song, Playlist p){
+		List<Playlist> on = song == null ? null : songPlaylists.get(song);
+		if(on != null){
+			on.remove(p);
+			if(on.isEmpty())
+				songPlaylists.remove(song);
+		}
 	}
 
 	/**
 	* Creates a new playlist with the given name.
 	*/
 	public void createPlaylist(String name){
-		Playlist p = new Playlist(name);
-		playlists.add(p);
+		getPlaylist(name);
+	}
+
+	/**
+	* Creates a smart playlist, holding every song in the library that matches the rule from now on, see SmartPlaylist.
+	* Editing a song only checks it against the smart playlists it could join or leave, see SmartPlaylists.
+	* @param name the title of the playlist
+	* @param rule the conditions its songs must meet, which is copied
+	* @return the new playlist, with every song already matching the rule
+	* @throws IllegalArgumentException if there is already a playlist with the title, or the rule has an order or limit
+	*/
+	public SmartPlaylist createSmartPlaylist(String name, SongQuery rule){
+		checkOwner();
+		if(playlistIndex.containsKey(name))
+			throw new IllegalArgumentException("There is already a playlist called " + name);
+		SmartPlaylist playlist = new SmartPlaylist(name, rule, songTable);
+		fill(playlist);
+		playlists.add(playlist);
+		playlistIndex.put(name, playlist);
+		modCount++;
+		journal(j -> j.createSmartPlaylist(name, playlist.rule()));
+		return playlist;
+	}
+
+	// Finds every song matching a smart playlist's rule, for a new playlist or one just loaded
+	private void fill(SmartPlaylist playlist){
+		// With no order given, a query returns songs in id order, which smart playlists are kept in
+		playlist.getTrackList().setAll(query(playlist.rule()));
 	}
 
+	// Fills the smart playlists loaded from a file, only their rules are saved
+	private void fillSmartPlaylists(){
+		for(Playlist p : playlists){
+			if(p instanceof SmartPlaylist)
+				fill((SmartPlaylist)p);
+		}
+	}
+
+	/**
+	* Adds a song to the end of the playlist with the title, creating it if there is none.
+	* @throws IllegalArgumentException if it is a smart playlist, which picks its own songs
+	*/
 	public void addSongToPlaylist(Song song, String playlistTitle){
-		Playlist playlist = getPlaylist(playlistTitle);
+		checkOwner();
+		Playlist playlist = editablePlaylist(playlistTitle);
 		playlist.addTrack(song);
+		modCount++;
+		journal(j -> j.addToPlaylist(playlistTitle, song));
 	}
 
+	/**
+	* Removes a song from the playlist with the title, creating it if there is none.
+	* @throws IllegalArgumentException if it is a smart playlist, which picks its own songs
+	*/
 	public void removeSongFromPlaylist(Song song, String playlistTitle){
-		Playlist playlist = getPlaylist(playlistTitle);
-		playlist.removeTrack(song);
+		checkOwner();
+		Playlist playlist = editablePlaylist(playlistTitle);
+		if(playlist.removeTrack(song)){
+			modCount++;
+			journal(j -> j.removeFromPlaylist(playlistTitle, song));
+		}
+	}
+
+	// The playlist with the title, as getPlaylist, as long as it is one whose tracks can be changed by hand
+	private Playlist editablePlaylist(String title){
+		Playlist playlist = getPlaylist(title);
+		if(playlist instanceof SmartPlaylist)
+			throw new IllegalArgumentException("Songs can not be added to or removed from smart playlist " + title);
+		return playlist;
+	}
+
+	/**
+	* Changes the rating of a song. Ratings are only kept in the library, not written to the song file.
+	*/
+	public void setRating(Song song, double rating){
+		checkOwner();
+		song.setRating(rating);
+		if(songIndex.get(song) == song)
+			indexChanged(song);
+		refresh(Set.of(song));
+		journal(j -> j.rating(song));
 	}
 }
@@ -0,0 +1,118 @@
+package com.verban.media;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+* The one way into a Library from other threads. A library is only ever changed and read on the thread that owns it
+* (the UI thread, once it is shown), so that it never has to lock and its observable lists can be shown as they are.
+* Everything else goes through an applier:
+* - Changes from any thread are queued with execute, and run in order on the owner. However many are queued, the owner
+*   is only asked to run them once per burst, so an import or a watcher sending hundreds of batches does not flood the
+*   UI thread with a task per batch. Each run is one Library.batch, so views of the library only see one change per run.
+* - Reads from any thread use snapshot, which returns an immutable LibrarySnapshot. If nothing has changed since the
+*   last one it is returned straight away without going to the owner at all, otherwise a new one is taken the next
+*   time the owner runs the queue.
+*
+* Since only the owner changes the library, parallel imports cannot interleave their changes to the albums and artists,
+* each batch is applied whole before the next.
+*
+* An applier is an Executor, so it can be passed as the applier of a LibraryLoader, LibraryWatcher, or Autosaver,
+* or used to hand batches from an ImportPipeline to the library.
+*
+* @author Michael Verban (2020)
+*/
+public class LibraryApplier implements Executor {
+
+	// Longest a run of the queue goes on for in nanoseconds before letting the owner do something else, one frame at 60Hz
+	private static final long DRAIN_BUDGET = TimeUnit.MILLISECONDS.toNanos(16);
+
+	private final Library library;
+	private final Executor owner;
+	private final ConcurrentLinkedQueue<Runnable> changes = new ConcurrentLinkedQueue<Runnable>();
+	private final ConcurrentLinkedQueue<CompletableFuture<LibrarySnapshot>> snapshotRequests =
+		new ConcurrentLinkedQueue<CompletableFuture<LibrarySnapshot>>();
+	// Whether a run of the queue has been handed to the owner and not started yet
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+	// The last snapshot taken, handed out until the library changes again
+	private volatile LibrarySnapshot published;
+
+	/**
+	* Creates an applier for a library.
+	* @param library the library to apply changes to
+	* @param owner runs tasks on the thread that owns the library, for example Platform::runLater
+	*/
+	public LibraryApplier(Library library, Executor owner){
+		this.library = library;
+		this.owner = owner;
+	}
+
+	/**
+	* Queues a change to the library, to be run on its owner after every change queued before it.
+	* Safe to call from any thread, including the owner's.
+	*/
+	@Override
+	public void execute(Runnable change){
+		changes.add(change);
+		schedule();
+	}
+
+	/**
+	* Returns a snapshot of the library as it is once every change queued so far has been run.
+	* Safe to call from any thread. If the library has not changed since the last snapshot, that one is returned
+	* without waiting for the owner.
+	*/
+	public CompletableFuture<LibrarySnapshot> snapshot(){
+		LibrarySnapshot current = published;
+		if(current != null && changes.isEmpty() && current.getModCount() == library.getModCount())
+			return CompletableFuture.completedFuture(current);
+		CompletableFuture<LibrarySnapshot> future = new CompletableFuture<LibrarySnapshot>();
+		snapshotRequests.add(future);
+		schedule();
+		return future;
+	}
+
+	private void schedule(){
+		if(scheduled.compareAndSet(false, true))
+			owner.execute(this::drain);
+	}
+
+	/**
+	* Runs the queued changes on the owner, then answers the snapshot requests. If the queue is still not empty once the
+	* budget is used up, the rest is left for another run so the owner can get on with drawing in between.
+	*/
+	private void drain(){
+		// Cleared first, so anything queued from here on schedules another run rather than being missed
+		scheduled.set(false);
+		long start = System.nanoTime();
+		library.batch(() -> {
+			Runnable change;
+			while((change = changes.poll()) != null){
+				try{
+					change.run();
+				}catch(RuntimeException e){
+					// One broken change should not hold up the rest, report it as the owner would have
+					Thread t = Thread.currentThread();
+					t.getUncaughtExceptionHandler().uncaughtException(t, e);
+				}
+				if(System.nanoTime() - start > DRAIN_BUDGET)
+					break;
+			}
+		});
+		if(!changes.isEmpty()){
+			schedule();
+			return;
+		}
+		if(snapshotRequests.isEmpty())
+			return;
+		LibrarySnapshot current = published;
+		if(current == null || current.getModCount() != library.getModCount()){
+			current = library.snapshot();
+			published = current;
+		}
+		CompletableFuture<LibrarySnapshot> request;
+		while((request = snapshotRequests.poll()) != null){
+			request.complete(current);
+		}
+	}
+}
@@ -0,0 +1,498 @@
+package com.verban.media;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+* Reads and writes the binary .library format.
+*
+* Layout, all numbers big endian:
+* int MAGIC, int version
+* long journal id, long journal sequence number (see LibraryJournal)
+* int id limit, one more than any song id the library had handed out. Every song id is below it.
+* int #Strings, then each string as an int byte length followed by its UTF-8 bytes.
+* int #Songs, then one fixed size record per song:
+*     int song id
+*     int title, artist, album, genre, folder, file name (indexes into the string table)
+*     int runtime, year, track number, track total
+*     double rating
+* int #Playlists, then for each, in the library's order:
+*     byte kind, PLAYLIST or SMART_PLAYLIST
+*     int title (string index)
+*     for a playlist: int #Tracks, then the id of each track
+*     for a smart playlist: int rule length, then the rule's conditions as written by SongQuery.write. Their tracks
+*     are not stored, they are found again on loading.
+* int #Artists, then each artist's name (string index)
+* int #Albums, then for each: int title (string index), int artist (index in the artists),
+*     int #Tracks, then the id of each track, in album order.
+*
+* Ids are checked against the id limit before anything is sized by them, so a damaged id cannot make loading
+* allocate tables that large.
+*
+* Storing the albums and artists means loading can link them up directly instead of working them out from the songs.
+*
+* Every string is only stored once, so artist, album and genre names, and the folders songs are in, cost 4 bytes per song.
+*
+* Song records are a fixed size, so they are read straight out of a memory mapping of the file (see map).
+* Strings are only decoded the first time a record refers to them.
+*
+* Files written before this format existed are Java serialization streams, see readLegacy.
+*
+* @author Michael Verban (2020)
+*/
+class LibraryFormat {
+
+	// "MLIB"
+	static final int MAGIC = 0x4D4C4942;
+	static final int VERSION = 1;
+	// Kinds of playlist, stored before each one
+	private static final byte PLAYLIST = 0, SMART_PLAYLIST = 1;
+	private static final boolean WINDOWS = System.getProperty("os.name", "").startsWith("Windows");
+	// Bytes in one song record
+	static final int RECORD_SIZE = 11 * 4 + 8;
+
+	private LibraryFormat(){}
+
+	/**
+	* Writes the snapshot to a file, so that the file always holds either its old contents or the whole new library.
+	* The data is written to a temporary file next to it, forced to disk, then moved over the file in one step.
+	*/
+	static void writeAtomically(File f, LibrarySnapshot snapshot) throws IOException{
+		File temp = new File(f.getPath() + ".tmp");
+		try(FileOutputStream file = new FileOutputStream(temp)){
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+			write(out, snapshot);
+			file.getChannel().force(true);
+		}catch(IOException e){
+			temp.delete();
+			throw e;
+		}
+		Files.move(temp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		// Make the rename itself durable. Not every platform can open a folder, which just leaves it to the OS.
+		File folder = f.getAbsoluteFile().getParentFile();
+		try(FileChannel dir = FileChannel.open(folder.toPath(), StandardOpenOption.READ)){
+			dir.force(true);
+		}catch(IOException e){}
+	}
+
+	/**
+	* Writes the songs, playlists, artists and albums of the snapshot to out.
+	* Playlist and album tracks that are not in the songs are left out.
+	*/
+	static void write(DataOutputStream out, LibrarySnapshot snapshot) throws IOException{
+		List<Song> songs = snapshot.getSongs();
+		List<String> playlists = snapshot.getPlaylistTitles();
+		StringTable strings = new StringTable();
+		// Ids of the songs being written, tracks with any other id are left out
+		BitSet written = new BitSet();
+		int[] records = new int[songs.size() * 6];
+		for(int i = 0; i < songs.size(); i++){
+			Song s = songs.get(i);
+			String folder = s.getFile().getParent();
+			records[i*6] = strings.add(s.getTitle());
+			records[i*6+1] = strings.add(s.getArtistName());
+			records[i*6+2] = strings.add(s.getOriginalAlbum());
+			records[i*6+3] = strings.add(s.getGenre());
+			records[i*6+4] = strings.add(folder == null ? "" : folder);
+			records[i*6+5] = strings.add(s.getFile().getName());
+			written.set(s.getId());
+		}
+		int[] playlistTitles = new int[playlists.size()];
+		for(int i = 0; i < playlists.size(); i++){
+			playlistTitles[i] = strings.add(playlists.get(i));
+		}
+		List<String> artists = snapshot.getArtistNames();
+		int[] artistNames = new int[artists.size()];
+		for(int i = 0; i < artists.size(); i++){
+			artistNames[i] = strings.add(artists.get(i));
+		}
+		List<String> albums = snapshot.getAlbumTitles();
+		int[] albumTitles = new int[albums.size()];
+		for(int i = 0; i < albums.size(); i++){
+			albumTitles[i] = strings.add(albums.get(i));
+		}
+
+		LibraryJournal.Mark mark = snapshot.getJournalMark();
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(mark == null ? 0 : mark.id);
+		out.writeLong(mark == null ? 0 : mark.seq);
+		out.writeInt(Math.max(snapshot.getIdLimit(), written.length()));
+
+		out.writeInt(strings.size());
+		for(String s : strings.list){
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+
+		out.writeInt(songs.size());
+		for(int i = 0; i < songs.size(); i++){
+			Song s = songs.get(i);
+			out.writeInt(s.getId());
+			for(int j = 0; j < 6; j++){
+				out.writeInt(records[i*6+j]);
+			}
+			out.writeInt(s.getRuntime());
+			out.writeInt(s.getYear());
+			out.writeInt(s.getAlbumTrackNumber());
+			out.writeInt(s.getAlbumTracks());
+			out.writeDouble(s.getRating());
+		}
+
+		out.writeInt(playlists.size());
+		for(int i = 0; i < playlists.size(); i++){
+			SongQuery rule = snapshot.getPlaylistRule(i);
+			out.writeByte(rule == null ? PLAYLIST : SMART_PLAYLIST);
+			out.writeInt(playlistTitles[i]);
+			if(rule == null){
+				writeTracks(out, snapshot.getPlaylistTrackIds(i), written);
+			}else{
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				rule.write(new DataOutputStream(bytes));
+				out.writeInt(bytes.size());
+				bytes.writeTo(out);
+			}
+		}
+
+		out.writeInt(artistNames.length);
+		for(int i = 0; i < artistNames.length; i++){
+			out.writeInt(artistNames[i]);
+		}
+		out.writeInt(albumTitles.length);
+		for(int i = 0; i < albumTitles.length; i++){
+			out.writeInt(albumTitles[i]);
+			out.writeInt(snapshot.getAlbumArtist(i));
+			writeTracks(out, snapshot.getAlbumTrackIds(i), written);
+		}
+		out.flush();
+	}
+
+	// Writes the number of tracks, then the id of each, leaving out songs that were not written
+	private static void writeTracks(DataOutputStream out, int[] tracks, BitSet written) throws IOException{
+		int n = 0;
+		for(int id : tracks){
+			if(id > 0 && written.get(id))
+				n++;
+		}
+		out.writeInt(n);
+		for(int id : tracks){
+			if(id > 0 && written.get(id))
+				out.writeInt(id);
+		}
+	}
+
+	/**
+	* Maps a library file into memory to be read, without copying it onto the heap.
+	*/
+	static ByteBuffer map(File f) throws IOException{
+		try(FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)){
+			if(channel.size() > Integer.MAX_VALUE)
+				throw new FileFormatException("Library file is too large");
+			if(!WINDOWS){
+				// The mapping stays valid after the channel is closed
+				return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+			// Windows will not replace a file that is mapped, and a mapping is only released once it is garbage
+			// collected, so saving over the file right after loading it would fail. Read it into memory instead.
+			ByteBuffer data = ByteBuffer.allocate((int)channel.size());
+			while(data.hasRemaining() && channel.read(data) >= 0);
+			data.flip();
+			return data;
+		}
+	}
+
+	/**
+	* Tests whether the buffer starts with the header of this format.
+	*/
+	static boolean isBinary(ByteBuffer in){
+		return in.remaining() >= 4 && in.getInt(in.position()) == MAGIC;
+	}
+
+	/**
+	* Reads a library written by write, adding its songs, playlists, artists and albums to the given lists.
+	* @param in the library, usually from map
+	* @param table the table to add the songs to, which the playlists and albums are read into
+	* @return where the file leaves off in its journal. Files without a journal have id 0.
+	* @throws FileFormatException if the data is not in this format, was written by a newer version, or is cut short.
+	*/
+	static LibraryJournal.Mark read(ByteBuffer in, SongTable table, List<Song> songs, List<Playlist> playlists,
+		List<Artist> artists, List<Album> albums) throws IOException{
+		Reader reader = new Reader(in, table);
+		while(reader.hasNextSong()){
+			songs.add(reader.nextSong());
+		}
+		playlists.addAll(reader.readPlaylists());
+		reader.readGraph(artists, albums);
+		return reader.getMark();
+	}
+
+	/**
+	* Reads a library written by write one song at a time, so the songs can be used while the rest are read.
+	* The header and string offsets are read when it is created, then every song, then the playlists.
+	*/
+	static class Reader {
+		private final ByteBuffer in;
+		private final LibraryJournal.Mark mark;
+		private final Strings strings;
+		private final SongTable table;
+		private final int numSongs;
+		// Every stored song id must be below this
+		private final int idLimit;
+		private int read = 0;
+
+		/**
+		* @param in the library, usually from map
+		* @param table the table to add the songs to as they are read
+		* @throws FileFormatException if the data is not in this format, was written by a newer version, or is cut short.
+		*/
+		Reader(ByteBuffer in, SongTable table) throws FileFormatException{
+			this.in = in;
+			this.table = table;
+			in.order(ByteOrder.BIG_ENDIAN);
+			try{
+				if(in.getInt() != MAGIC)
+					throw new FileFormatException("Not a binary library file");
+				int version = in.getInt();
+				if(version != VERSION)
+					throw new FileFormatException("Unsupported library file version: " + version);
+				mark = new LibraryJournal.Mark(in.getLong(), in.getLong(), 0, 0);
+				idLimit = in.getInt();
+				if(idLimit < 1)
+					throw new FileFormatException("Library file has a bad id limit: " + idLimit);
+				// Ids of songs removed before the save are not handed out again
+				table.reserve(idLimit);
+
+				// Only find where each string is for now
+				int[] stringOffsets = new int[checkCount(in.getInt())];
+				for(int i = 0; i < stringOffsets.length; i++){
+					stringOffsets[i] = in.position();
+					int length = checkCount(in.getInt());
+					in.position(in.position() + length);
+				}
+				strings = new Strings(in, stringOffsets);
+
+				numSongs = checkCount(in.getInt());
+				if((long)numSongs * RECORD_SIZE > in.remaining())
+					throw new FileFormatException("Library file is truncated");
+			}catch(RuntimeException e){
+				throw corrupt(e);
+			}
+		}
+
+		/**
+		* Returns where the file leaves off in its journal. Files without a journal have id 0.
+		*/
+		LibraryJournal.Mark getMark(){
+			return mark;
+		}
+
+		int songCount(){
+			return numSongs;
+		}
+
+		boolean hasNextSong(){
+			return read < numSongs;
+		}
+
+		Song nextSong() throws FileFormatException{
+			try{
+				int id = in.getInt();
+				if(id < 1 || id >= idLimit)
+					throw new FileFormatException("Library file has a song id out of range: " + id);
+				String title = strings.get(in.getInt());
+				String artistName = strings.get(in.getInt());
+				String originalAlbum = strings.get(in.getInt());
+				String genre = strings.get(in.getInt());
+				String folder = strings.get(in.getInt());
+				String name = strings.get(in.getInt());
+				File file = folder.isEmpty() ? new File(name) : new File(folder, name);
+				Song song = new Song(file, title, artistName, originalAlbum, genre,
+					in.getInt(), in.getInt(), in.getInt(), in.getInt());
+				song.setRating(in.getDouble());
+				song.setId(id);
+				table.add(song);
+				read++;
+				return song;
+			}catch(RuntimeException e){
+				throw corrupt(e);
+			}
+		}
+
+		/**
+		* Reads the playlists, which must only be done once every song has been read.
+		* Smart playlists are read with no tracks.
+		*/
+		List<Playlist> readPlaylists() throws FileFormatException{
+			try{
+				int numPlaylists = checkCount(in.getInt());
+				List<Playlist> playlists = new ArrayList<Playlist>(numPlaylists);
+				for(int i = 0; i < numPlaylists; i++){
+					byte kind = in.get();
+					if(kind == SMART_PLAYLIST){
+						playlists.add(readSmartPlaylist());
+						continue;
+					}
+					if(kind != PLAYLIST)
+						throw new FileFormatException("Library file has an unknown kind of playlist: " + kind);
+					Playlist p = new Playlist(strings.get(in.getInt()), table);
+					int numTracks = checkCount(in.getInt());
+					for(int j = 0; j < numTracks; j++){
+						p.addTrack(nextTrack());
+					}
+					playlists.add(p);
+				}
+				return playlists;
+			}catch(RuntimeException e){
+				throw corrupt(e);
+			}
+		}
+
+		private SmartPlaylist readSmartPlaylist() throws FileFormatException{
+			String title = strings.get(in.getInt());
+			byte[] rule = new byte[checkCount(in.getInt())];
+			in.get(rule);
+			return new SmartPlaylist(title, readRule(rule), table);
+		}
+
+		private static SongQuery readRule(byte[] rule) throws FileFormatException{
+			try{
+				return SongQuery.read(new DataInputStream(new ByteArrayInputStream(rule)));
+			}catch(FileFormatException e){
+				throw e;
+			}catch(IOException e){
+				throw new FileFormatException("Library file has a smart playlist rule cut short");
+			}
+		}
+
+		/**
+		* Reads the artists and albums, which must only be done once the playlists have been read.
+		* Each album is added to its artist, in the order the albums are stored.
+		*/
+		void readGraph(List<Artist> artists, List<Album> albums) throws FileFormatException{
+			try{
+				Artist[] readArtists = new Artist[checkCount(in.getInt())];
+				for(int i = 0; i < readArtists.length; i++){
+					readArtists[i] = new Artist(strings.get(in.getInt()));
+					artists.add(readArtists[i]);
+				}
+				int numAlbums = checkCount(in.getInt());
+				for(int i = 0; i < numAlbums; i++){
+					String title = strings.get(in.getInt());
+					Artist artist = readArtists[in.getInt()];
+					Album album = new Album(title, artist.getName(), table);
+					int numTracks = checkCount(in.getInt());
+					for(int j = 0; j < numTracks; j++){
+						album.addTrack(nextTrack());
+					}
+					artist.addAlbum(album);
+					albums.add(album);
+				}
+			}catch(RuntimeException e){
+				throw corrupt(e);
+			}
+		}
+
+		// Reads a track of a playlist or album
+		private Song nextTrack(){
+			int track = in.getInt();
+			Song song = table.get(track);
+			if(song == null)
+				throw new IndexOutOfBoundsException("No song " + track);
+			return song;
+		}
+
+		// Turns what goes wrong reading a damaged buffer into the exception loaders expect
+		private static FileFormatException corrupt(RuntimeException e){
+			if(e instanceof BufferUnderflowException || e instanceof IllegalArgumentException)
+				return new FileFormatException("Library file is truncated");
+			if(e instanceof IndexOutOfBoundsException)
+				return new FileFormatException("Library file refers to data it does not contain");
+			throw e;
+		}
+	}
+
+	/**
+	* Reads a library saved with Java serialization, the format used before this one.
+	* First 2 integers: #Songs, #Playlists, then that many Song and Playlist objects.
+	*/
+	static void readLegacy(InputStream stream, List<Song> songs, List<Playlist> playlists) throws IOException{
+		ObjectInputStream in = new ObjectInputStream(stream);
+		int numSongs = in.readInt();
+		int numPlaylists = in.readInt();
+		try{
+			for(int i = 0; i < numSongs; i++){
+				songs.add((Song)in.readObject());
+			}
+			for(int i = 0; i < numPlaylists; i++){
+				playlists.add((Playlist)in.readObject());
+			}
+		}catch(ClassNotFoundException | ClassCastException e){
+			throw new FileFormatException("Object data in libary file is not valid");
+		}
+	}
+
+	// Guards against allocating huge arrays from a corrupt count.
+	private static int checkCount(int count) throws FileFormatException{
+		if(count < 0)
+			throw new FileFormatException("Library file is corrupt");
+		return count;
+	}
+
+	/**
+	* The string table of a mapped file, decoding each string the first time it is asked for.
+	*/
+	private static class Strings {
+		private final ByteBuffer data;
+		private final int[] offsets;
+		private final String[] decoded;
+
+		Strings(ByteBuffer data, int[] offsets){
+			this.data = data;
+			this.offsets = offsets;
+			this.decoded = new String[offsets.length];
+		}
+
+		String get(int i){
+			String s = decoded[i];
+			if(s == null){
+				int length = data.getInt(offsets[i]);
+				byte[] bytes = new byte[length];
+				ByteBuffer string = data.duplicate();
+				string.position(offsets[i] + 4);
+				string.get(bytes);
+				s = new String(bytes, StandardCharsets.UTF_8);
+				decoded[i] = s;
+			}
+			return s;
+		}
+	}
+
+	/**
+	* Assigns each distinct string an index, in the order they are first added.
+	*/
+	private static class StringTable {
+		private HashMap<String, Integer> indexes = new HashMap<String, Integer>();
+		private List<String> list = new ArrayList<String>();
+
+		int add(String s){
+			if(s == null)
+				s = "";
+			Integer i = indexes.get(s);
+			if(i == null){
+				i = list.size();
+				indexes.put(s, i);
+				list.add(s);
+			}
+			return i;
+		}
+
+		int size(){
+			return list.size();
+		}
+	}
+}
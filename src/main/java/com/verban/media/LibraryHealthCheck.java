@@ -0,0 +1,341 @@
+package com.verban.media;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+* Checks that the files of a library's songs are still there, and looks for the missing ones in folders they may have
+* been moved to.
+*
+* Files are looked at on a pool of threads, one file per slot at a time. On a network drive every look is a round trip,
+* so the check takes about total / slots round trips instead of total. Local disks answer from the OS cache, where the
+* default is plenty, slow mounts are worth giving more slots.
+*
+* A missing song is matched to a file in the search folders that is not in the library already:
+* 1. If the TagCache has the size and fingerprint the file had, by a file with the same size and fingerprint.
+* 2. Otherwise (or if that finds nothing, say because its tags were edited since), by a file with the same name and
+*    the same tags, and the same size if that is known.
+* A song is only matched when exactly one file fits and that file fits no other missing song, anything less certain
+* is left to the user.
+*
+* Checking only reads, Report.apply makes the fixes.
+*
+* @author Michael Verban (2020)
+*/
+public class LibraryHealthCheck {
+
+	/**
+	* Receives progress updates while a check is running.
+	* Updates are sent from the thread running the check, not the UI thread.
+	*/
+	public interface ProgressListener{
+		/**
+		* @param stage what is being done, for example "Checking files"
+		* @param done how much of the stage is done
+		* @param total how much there is to do in the stage
+		*/
+		void progress(String stage, int done, int total);
+	}
+
+	/**
+	* Number of files looked at at once by default.
+	*/
+	public static final int DEFAULT_SLOTS = 16;
+
+	private final int slots;
+	private TagCache tagCache;
+	private volatile boolean cancelled = false;
+
+	/**
+	* Creates a health check that looks at DEFAULT_SLOTS files at once.
+	*/
+	public LibraryHealthCheck(){
+		this(DEFAULT_SLOTS);
+	}
+
+	/**
+	* Creates a health check that looks at up to slots files at once.
+	* @param slots the number of files to look at at once, around the number of requests the storage can serve in parallel
+	*/
+	public LibraryHealthCheck(int slots){
+		if(slots < 1)
+			throw new IllegalArgumentException("Need at least one slot");
+		this.slots = slots;
+	}
+
+	/**
+	* Sets the cache to find the sizes and fingerprints of missing files in, and to read the tags of candidates through.
+	* @param tagCache the cache to use, or null to match moved files by name and tags only
+	*/
+	public void setTagCache(TagCache tagCache){
+		this.tagCache = tagCache;
+	}
+
+	/**
+	* Stops a running check as soon as possible, check then throws CancellationException. The next check runs as usual.
+	*/
+	public void cancel(){
+		cancelled = true;
+	}
+
+	/**
+	* Checks the files of the songs, looking for the missing ones in the search folders and all of their subfolders.
+	* The songs are only read, so this can run off of the UI thread on a copy of the library's song list.
+	* @param songs the songs to check
+	* @param searchFolders where to look for moved files, may be empty
+	* @param listener receives progress updates, may be null
+	* @return what was found
+	* @throws CancellationException if the check was cancelled
+	*/
+	public Report check(Collection<Song> songs, Collection<File> searchFolders, ProgressListener listener) throws InterruptedException{
+		ExecutorService pool = Executors.newFixedThreadPool(slots, r -> {
+			Thread t = new Thread(r, "health-check");
+			t.setDaemon(true);
+			return t;
+		});
+		try{
+			List<Callable<Missing>> stats = new ArrayList<Callable<Missing>>(songs.size());
+			for(Song song : songs){
+				stats.add(() -> song.getFile().isFile() ? null : missing(song));
+			}
+			List<Missing> missing = new ArrayList<Missing>();
+			for(Missing m : runAll(pool, stats, "Checking files", listener)){
+				if(m != null)
+					missing.add(m);
+			}
+			Map<Song, File> moved = new LinkedHashMap<Song, File>();
+			if(!missing.isEmpty() && !searchFolders.isEmpty())
+				moved = findMoved(pool, missing, songs, searchFolders, listener);
+
+			List<Song> stillMissing = new ArrayList<Song>();
+			for(Missing m : missing){
+				if(!moved.containsKey(m.song))
+					stillMissing.add(m.song);
+			}
+			return new Report(songs.size(), stillMissing, moved);
+		}finally{
+			pool.shutdownNow();
+			cancelled = false;
+		}
+	}
+
+	// What is known about a missing song's file from when it was last read
+	private Missing missing(Song song){
+		Missing m = new Missing(song);
+		if(tagCache != null){
+			try{
+				m.size = tagCache.recordedSize(song.getFile());
+				m.fingerprint = tagCache.recordedFingerprint(song.getFile());
+			}catch(IOException e){} // Just means nothing is known about it
+		}
+		return m;
+	}
+
+	/**
+	* Lists the search folders for song files that are not in the library, then matches the missing songs to them.
+	*/
+	private Map<Song, File> findMoved(ExecutorService pool, List<Missing> missing, Collection<Song> songs,
+		Collection<File> searchFolders, ProgressListener listener) throws InterruptedException{
+		Set<File> known = new HashSet<File>();
+		for(Song song : songs){
+			known.add(song.getFile());
+		}
+
+		// Each level of folders is listed in parallel, along with the sizes of the new song files in them
+		Map<Long, List<File>> bySize = new HashMap<Long, List<File>>();
+		Map<String, List<File>> byName = new HashMap<String, List<File>>();
+		Map<File, Long> sizes = new HashMap<File, Long>();
+		List<File> level = new ArrayList<File>(searchFolders);
+		while(!level.isEmpty()){
+			List<Callable<Listing>> listings = new ArrayList<Callable<Listing>>(level.size());
+			for(File folder : level){
+				listings.add(() -> list(folder, known));
+			}
+			level = new ArrayList<File>();
+			for(Listing listing : runAll(pool, listings, "Searching folders", listener)){
+				if(listing == null)
+					continue;
+				level.addAll(listing.folders);
+				for(Map.Entry<File, Long> e : listing.songs.entrySet()){
+					if(sizes.put(e.getKey(), e.getValue()) == null){
+						bySize.computeIfAbsent(e.getValue(), s -> new ArrayList<File>()).add(e.getKey());
+						byName.computeIfAbsent(e.getKey().getName(), s -> new ArrayList<File>()).add(e.getKey());
+					}
+				}
+			}
+		}
+
+		// Fingerprints are kept, a file of a common size may be a candidate for several songs
+		ConcurrentHashMap<File, Long> fingerprints = new ConcurrentHashMap<File, Long>();
+		List<Callable<List<File>>> matches = new ArrayList<Callable<List<File>>>(missing.size());
+		for(Missing m : missing){
+			matches.add(() -> {
+				List<File> found = new ArrayList<File>();
+				if(m.fingerprint != 0){
+					for(File candidate : bySize.getOrDefault(m.size, List.of())){
+						if(fingerprints.computeIfAbsent(candidate, this::fingerprintOrZero) == m.fingerprint)
+							found.add(candidate);
+					}
+				}
+				if(found.isEmpty()){
+					for(File candidate : byName.getOrDefault(m.song.getFile().getName(), List.of())){
+						if((m.size < 0 || sizes.get(candidate) == m.size) && hasSameTags(candidate, m.song))
+							found.add(candidate);
+					}
+				}
+				return found;
+			});
+		}
+		List<List<File>> found = runAll(pool, matches, "Matching moved files", listener);
+		// A file that fits more than one song could be any of them, so it is left alone for all of them
+		Map<File, Integer> fits = new HashMap<File, Integer>();
+		for(List<File> candidates : found){
+			for(File candidate : candidates){
+				fits.merge(candidate, 1, Integer::sum);
+			}
+		}
+		Map<Song, File> moved = new LinkedHashMap<Song, File>();
+		for(int i = 0; i < missing.size(); i++){
+			List<File> candidates = found.get(i);
+			if(candidates.size() == 1 && fits.get(candidates.get(0)) == 1)
+				moved.put(missing.get(i).song, candidates.get(0));
+		}
+		return moved;
+	}
+
+	// Lists a folder's subfolders, and the song files in it that are not in the library with their sizes
+	private static Listing list(File folder, Set<File> known){
+		Listing listing = new Listing();
+		File[] contents = folder.listFiles();
+		if(contents == null) // Not a directory, or we cant read it.
+			return listing;
+		for(File f : contents){
+			if(f.isDirectory()){
+				listing.folders.add(f);
+			}else if(Song.isSongFile(f) && !known.contains(f)){
+				listing.songs.put(f, f.length());
+			}
+		}
+		return listing;
+	}
+
+	private long fingerprintOrZero(File file){
+		try{
+			return TagCache.fingerprint(file);
+		}catch(IOException e){
+			return 0;
+		}
+	}
+
+	private boolean hasSameTags(File candidate, Song song){
+		try{
+			Song read = tagCache != null ? tagCache.read(candidate) : new Song(candidate);
+			return read.hasSameTags(song);
+		}catch(IOException e){
+			return false;
+		}
+	}
+
+	/**
+	* Runs the jobs on the pool, returning their results in the same order. A job that fails gives null.
+	*/
+	private <T> List<T> runAll(ExecutorService pool, List<Callable<T>> jobs, String stage, ProgressListener listener)
+		throws InterruptedException{
+		CompletionService<T> done = new ExecutorCompletionService<T>(pool);
+		List<Future<T>> futures = new ArrayList<Future<T>>(jobs.size());
+		for(Callable<T> job : jobs){
+			futures.add(done.submit(job));
+		}
+		// Report progress roughly every percent, rather than once per file
+		int step = Math.max(1, jobs.size() / 100);
+		for(int i = 1; i <= jobs.size(); i++){
+			if(cancelled)
+				throw new CancellationException("Health check cancelled");
+			done.take();
+			if(listener != null && (i % step == 0 || i == jobs.size()))
+				listener.progress(stage, i, jobs.size());
+		}
+		List<T> results = new ArrayList<T>(jobs.size());
+		for(Future<T> future : futures){
+			try{
+				results.add(future.get());
+			}catch(ExecutionException e){
+				results.add(null);
+			}
+		}
+		return results;
+	}
+
+	private static class Missing {
+		final Song song;
+		long size = -1;
+		long fingerprint = 0;
+
+		Missing(Song song){
+			this.song = song;
+		}
+	}
+
+	private static class Listing {
+		final List<File> folders = new ArrayList<File>();
+		final Map<File, Long> songs = new HashMap<File, Long>();
+	}
+
+	/**
+	* What a health check found.
+	*/
+	public static class Report {
+		private final int checked;
+		private final List<Song> missing;
+		private final Map<Song, File> moved;
+
+		Report(int checked, List<Song> missing, Map<Song, File> moved){
+			this.checked = checked;
+			this.missing = Collections.unmodifiableList(missing);
+			this.moved = Collections.unmodifiableMap(moved);
+		}
+
+		/**
+		* Returns the number of songs checked.
+		*/
+		public int getChecked(){
+			return checked;
+		}
+
+		/**
+		* Returns the songs whose files are gone, and could not be found anywhere else.
+		*/
+		public List<Song> getMissing(){
+			return missing;
+		}
+
+		/**
+		* Returns the songs whose files are gone but were found somewhere else, with where they were found.
+		*/
+		public Map<Song, File> getMoved(){
+			return moved;
+		}
+
+		/**
+		* Tests whether every song's file was where the library expected it.
+		*/
+		public boolean isHealthy(){
+			return missing.isEmpty() && moved.isEmpty();
+		}
+
+		/**
+		* Fixes the library: moved songs are pointed at their new files, and missing songs are removed if asked.
+		* Like every change to the library, this has to run on the thread that owns it, normally the UI thread.
+		* @param library the library that was checked
+		* @param removeMissing whether to remove the songs that could not be found
+		*/
+		public void apply(Library library, boolean removeMissing){
+			library.batch(() -> {
+				library.relocateSongs(moved);
+				if(removeMissing)
+					library.removeSongs(missing);
+			});
+		}
+	}
+}
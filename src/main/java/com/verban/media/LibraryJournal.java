@@ -0,0 +1,519 @@
+package com.verban.media;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+* An append only log of the changes made to a Library since its .library file was last written, kept next to it
+* as "name.library.journal". Loading the library replays the journal on top of the file, so a change is saved as soon
+* as its record is appended, without rewriting the whole library.
+*
+* Layout, all numbers big endian:
+* int MAGIC, int version, long id (the same id is stored in the .library file the journal belongs to)
+* then records, each as int payload length, int CRC32 of the payload, then the payload:
+*     long sequence number, byte operation, then the operation's data (see the append methods)
+*
+* Song records end with the song's id. Journals written before songs had ids leave it off, and those songs are
+* given new ids when replayed.
+*
+* Records are handed to the OS as soon as they are appended, so they survive the program crashing, but are only
+* forced to disk by sync, close and compact. A record cut short by a crash fails its checksum and is dropped, along
+* with anything after it. Every record has a sequence number, and the .library file stores the last one it includes,
+* so records that made it into the file are skipped if the journal was not compacted afterwards.
+*
+* Compacting writes a new journal with only the records appended since a snapshot, once that snapshot has been saved.
+*
+* @author Michael Verban (2020)
+*/
+class LibraryJournal implements Closeable {
+
+	// "MLJN"
+	static final int MAGIC = 0x4D4C4A4E;
+	static final int VERSION = 1;
+	private static final int HEADER_LENGTH = 16;
+
+	// Operations
+	private static final byte SONG = 1, REMOVE_SONG = 2, CREATE_PLAYLIST = 3, ADD_TO_PLAYLIST = 4,
+		REMOVE_FROM_PLAYLIST = 5, RATING = 6, RELOCATE = 7, REPLACE_SONG = 8, SMART_PLAYLIST = 9;
+
+	/**
+	* Where a snapshot of the library was taken, relative to the journal.
+	*/
+	static class Mark {
+		final long id;
+		// Last sequence number included in the snapshot
+		final long seq;
+		// Length of the journal when the snapshot was taken, only meaningful for the same generation
+		final long offset;
+		final int generation;
+
+		Mark(long id, long seq, long offset, int generation){
+			this.id = id;
+			this.seq = seq;
+			this.offset = offset;
+			this.generation = generation;
+		}
+	}
+
+	private final File libraryFile;
+	private final File file;
+	private final long id;
+	private long seq;
+	// Bytes of valid records in the file, 0 if the file has not been written by this journal yet
+	private long length;
+	// Counts compactions, which move records around in the file
+	private int generation = 0;
+	private FileChannel channel;
+
+	// Records waiting to be written, and the one being built
+	private final ByteArrayOutputStream frames = new ByteArrayOutputStream(256);
+	private final ByteArrayOutputStream payload = new ByteArrayOutputStream(256);
+	private final DataOutputStream record = new DataOutputStream(payload);
+	private final CRC32 crc = new CRC32();
+
+	/**
+	* Creates a journal for a library file. Nothing is written until the first append or compact,
+	* which replace whatever is in the journal file past length.
+	*/
+	private LibraryJournal(File libraryFile, long id, long seq, long length){
+		this.libraryFile = libraryFile;
+		this.file = fileFor(libraryFile);
+		this.id = id;
+		this.seq = seq;
+		this.length = length;
+	}
+
+	/**
+	* Creates an empty journal for a library file that is about to be written with a new id.
+	*/
+	static LibraryJournal create(File libraryFile, long id){
+		return new LibraryJournal(libraryFile, id, 0, 0);
+	}
+
+	static File fileFor(File libraryFile){
+		return new File(libraryFile.getPath() + ".journal");
+	}
+
+	/**
+	* Replays the journal of a library file into the songs and playlists read from it, and returns the journal
+	* ready to append to. A journal belonging to a different version of the file is ignored, and will be replaced.
+	* @param libraryFile the .library file
+	* @param base where the .library file left off
+	* @param table the table of the songs read from the file, songs added by the journal are added to it
+	* @param songs the songs read from the file, keyed by file
+	* @param playlists the playlists read from the file, keyed by title
+	*/
+	static LibraryJournal replay(File libraryFile, Mark base, SongTable table, Map<File, Song> songs,
+		Map<String, Playlist> playlists) throws IOException{
+		File file = fileFor(libraryFile);
+		if(!file.isFile())
+			return new LibraryJournal(libraryFile, base.id, base.seq, 0);
+		ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+		if(data.remaining() < HEADER_LENGTH || data.getInt() != MAGIC || data.getInt() != VERSION || data.getLong() != base.id)
+			return new LibraryJournal(libraryFile, base.id, base.seq, 0);
+
+		long seq = base.seq;
+		PlaylistIndex holding = new PlaylistIndex(playlists);
+		// The end of the last whole record
+		int valid = HEADER_LENGTH;
+		CRC32 crc = new CRC32();
+		while(data.remaining() >= 8){
+			int start = data.position();
+			int length = data.getInt();
+			int checksum = data.getInt();
+			if(length < 9 || length > data.remaining())
+				break;
+			crc.reset();
+			crc.update(data.array(), data.position(), length);
+			if((int)crc.getValue() != checksum)
+				break;
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(data.array(), data.position(), length));
+			long recordSeq = in.readLong();
+			byte op = in.readByte();
+			if(recordSeq > seq){
+				apply(op, in, table, songs, playlists, holding);
+				seq = recordSeq;
+			}
+			valid = start + 8 + length;
+			data.position(valid);
+		}
+		return new LibraryJournal(libraryFile, base.id, seq, valid);
+	}
+
+	private static void apply(byte op, DataInputStream in, SongTable table, Map<File, Song> songs,
+		Map<String, Playlist> playlists, PlaylistIndex holding) throws IOException{
+		switch(op){
+			case SONG:{
+				Song song = new Song(new File(in.readUTF()), in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(),
+					in.readInt(), in.readInt(), in.readInt(), in.readInt());
+				song.setRating(in.readDouble());
+				Song existing = songs.get(song.getFile());
+				if(existing == null){
+					if(in.available() >= 4)
+						song.setId(in.readInt());
+					table.add(song);
+					songs.put(song.getFile(), song);
+				}else{
+					existing.copyTagsFrom(song);
+					existing.setRating(song.getRating());
+				}
+				break;
+			}
+			case REMOVE_SONG:{
+				Song removed = songs.remove(new File(in.readUTF()));
+				if(removed != null){
+					for(Playlist p : holding.of(removed)){
+						p.getAllTracks().removeIf(removed::equals);
+					}
+					holding.forget(removed);
+					table.remove(removed);
+				}
+				break;
+			}
+			case CREATE_PLAYLIST:{
+				String title = in.readUTF();
+				playlists.computeIfAbsent(title, t -> new Playlist(t, table));
+				break;
+			}
+			case SMART_PLAYLIST:{
+				String title = in.readUTF();
+				SongQuery rule = SongQuery.read(in);
+				// Its tracks are found once the library is loaded
+				playlists.putIfAbsent(title, new SmartPlaylist(title, rule, table));
+				break;
+			}
+			case ADD_TO_PLAYLIST:{
+				String title = in.readUTF();
+				Song song = songs.get(new File(in.readUTF()));
+				if(song != null){
+					Playlist p = playlists.computeIfAbsent(title, t -> new Playlist(t, table));
+					p.addTrack(song);
+					holding.add(song, p);
+				}
+				break;
+			}
+			case REMOVE_FROM_PLAYLIST:{
+				Playlist p = playlists.get(in.readUTF());
+				Song song = songs.get(new File(in.readUTF()));
+				if(p != null && song != null)
+					p.removeTrack(song);
+				break;
+			}
+			case RELOCATE:{
+				Song song = songs.get(new File(in.readUTF()));
+				File moved = new File(in.readUTF());
+				if(song != null && !songs.containsKey(moved)){
+					songs.remove(song.getFile());
+					song.setFile(moved);
+					songs.put(moved, song);
+				}
+				break;
+			}
+			case REPLACE_SONG:{
+				Song replaced = songs.get(new File(in.readUTF()));
+				Song with = songs.get(new File(in.readUTF()));
+				if(replaced != null && with != null){
+					for(Playlist p : new ArrayList<Playlist>(holding.of(replaced))){
+						List<Song> tracks = p.getAllTracks();
+						for(int i = 0; i < tracks.size(); i++){
+							if(replaced.equals(tracks.get(i)))
+								tracks.set(i, with);
+						}
+						holding.add(with, p);
+					}
+				}
+				break;
+			}
+			case RATING:{
+				Song song = songs.get(new File(in.readUTF()));
+				double rating = in.readDouble();
+				if(song != null)
+					song.setRating(rating);
+				break;
+			}
+			default:
+				throw new FileFormatException("Unknown journal operation: " + op);
+		}
+	}
+
+	File getLibraryFile(){
+		return libraryFile;
+	}
+
+	long getId(){
+		return id;
+	}
+
+	/**
+	* Returns the length of the journal file in bytes.
+	*/
+	synchronized long length(){
+		return length;
+	}
+
+	/**
+	* Marks where the journal is up to, for a snapshot of the library being taken now.
+	*/
+	synchronized Mark mark(){
+		return new Mark(id, seq, length, generation);
+	}
+
+	/**
+	* Records that each song was added, or had its tags or rating changed.
+	*/
+	synchronized void songs(Collection<Song> songs) throws IOException{
+		for(Song s : songs){
+			start(SONG);
+			record.writeUTF(s.getFile().getPath());
+			record.writeUTF(text(s.getTitle()));
+			record.writeUTF(text(s.getArtistName()));
+			record.writeUTF(text(s.getOriginalAlbum()));
+			record.writeUTF(text(s.getGenre()));
+			record.writeInt(s.getRuntime());
+			record.writeInt(s.getYear());
+			record.writeInt(s.getAlbumTrackNumber());
+			record.writeInt(s.getAlbumTracks());
+			record.writeDouble(s.getRating());
+			record.writeInt(s.getId());
+			finish();
+		}
+		write();
+	}
+
+	/**
+	* Records that the songs were removed from the library, and so from every playlist.
+	*/
+	synchronized void removeSongs(Collection<Song> songs) throws IOException{
+		for(Song s : songs){
+			start(REMOVE_SONG);
+			record.writeUTF(s.getFile().getPath());
+			finish();
+		}
+		write();
+	}
+
+	/**
+	* Records that songs were moved to new files.
+	* @param moved the songs moved, with the files they were at before
+	*/
+	synchronized void relocate(Map<Song, File> moved) throws IOException{
+		for(Map.Entry<Song, File> e : moved.entrySet()){
+			start(RELOCATE);
+			record.writeUTF(e.getValue().getPath());
+			record.writeUTF(e.getKey().getFile().getPath());
+			finish();
+		}
+		write();
+	}
+
+	/**
+	* Records that songs were replaced by others on every playlist, where they were.
+	* @param replaced the songs replaced, with the songs that took their place
+	*/
+	synchronized void replaceSongs(Map<Song, Song> replaced) throws IOException{
+		for(Map.Entry<Song, Song> e : replaced.entrySet()){
+			start(REPLACE_SONG);
+			record.writeUTF(e.getKey().getFile().getPath());
+			record.writeUTF(e.getValue().getFile().getPath());
+			finish();
+		}
+		write();
+	}
+
+	synchronized void createPlaylist(String title) throws IOException{
+		start(CREATE_PLAYLIST);
+		record.writeUTF(title);
+		finish();
+		write();
+	}
+
+	/**
+	* Records that a smart playlist was created. Only its rule is recorded, not the songs it matched.
+	*/
+	synchronized void createSmartPlaylist(String title, SongQuery rule) throws IOException{
+		start(SMART_PLAYLIST);
+		record.writeUTF(title);
+		rule.write(record);
+		finish();
+		write();
+	}
+
+	synchronized void addToPlaylist(String title, Song song) throws IOException{
+		start(ADD_TO_PLAYLIST);
+		record.writeUTF(title);
+		record.writeUTF(song.getFile().getPath());
+		finish();
+		write();
+	}
+
+	synchronized void removeFromPlaylist(String title, Song song) throws IOException{
+		start(REMOVE_FROM_PLAYLIST);
+		record.writeUTF(title);
+		record.writeUTF(song.getFile().getPath());
+		finish();
+		write();
+	}
+
+	synchronized void rating(Song song) throws IOException{
+		start(RATING);
+		record.writeUTF(song.getFile().getPath());
+		record.writeDouble(song.getRating());
+		finish();
+		write();
+	}
+
+	/**
+	* Drops the records included in a snapshot that has now been saved to the library file, by writing a new journal
+	* with just the records appended since. Does nothing if the journal has been compacted since the snapshot.
+	*/
+	synchronized void compact(Mark saved) throws IOException{
+		if(saved.id != id || saved.generation != generation)
+			return;
+		long start = Math.max(saved.offset, HEADER_LENGTH);
+		ByteBuffer tail = ByteBuffer.allocate((int)Math.max(0, length - start));
+		if(tail.capacity() > 0){
+			open();
+			channel.read(tail, start);
+			tail.flip();
+		}
+		File temp = new File(file.getPath() + ".tmp");
+		try(FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)){
+			out.write(header());
+			while(tail.hasRemaining()){
+				out.write(tail);
+			}
+			out.force(true);
+		}
+		if(channel != null){
+			channel.close();
+			channel = null;
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		length = HEADER_LENGTH + tail.limit();
+		generation++;
+	}
+
+	/**
+	* Forces the appended records to disk.
+	*/
+	synchronized void sync() throws IOException{
+		if(channel != null)
+			channel.force(false);
+	}
+
+	@Override
+	public synchronized void close() throws IOException{
+		if(channel != null){
+			channel.force(false);
+			channel.close();
+			channel = null;
+		}
+	}
+
+	private void start(byte op) throws IOException{
+		payload.reset();
+		record.writeLong(++seq);
+		record.writeByte(op);
+	}
+
+	// Frames the record that was just built, and queues it to be written
+	private void finish(){
+		crc.reset();
+		byte[] bytes = payload.toByteArray();
+		crc.update(bytes);
+		int checksum = (int)crc.getValue();
+		frames.write(bytes.length >>> 24);
+		frames.write(bytes.length >>> 16);
+		frames.write(bytes.length >>> 8);
+		frames.write(bytes.length);
+		frames.write(checksum >>> 24);
+		frames.write(checksum >>> 16);
+		frames.write(checksum >>> 8);
+		frames.write(checksum);
+		frames.write(bytes, 0, bytes.length);
+	}
+
+	private void write() throws IOException{
+		ByteBuffer buffer = ByteBuffer.wrap(frames.toByteArray());
+		frames.reset();
+		open();
+		while(buffer.hasRemaining()){
+			length += channel.write(buffer, length);
+		}
+	}
+
+	// Opens the file for writing, starting a new one if nothing valid has been written to it yet
+	private void open() throws IOException{
+		if(channel != null)
+			return;
+		if(length == 0){
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			ByteBuffer header = header();
+			while(header.hasRemaining()){
+				length += channel.write(header, length);
+			}
+		}else{
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			// Cut off anything left by a crash after the last whole record
+			channel.truncate(length);
+		}
+	}
+
+	private ByteBuffer header(){
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		header.putInt(MAGIC).putInt(VERSION).putLong(id);
+		header.flip();
+		return header;
+	}
+
+	private static String text(String s){
+		return s == null ? "" : s;
+	}
+
+	/**
+	* Which playlists each song may be on while a journal is replayed, so replaying a removal only goes through the
+	* playlists that hold the song instead of every track of every playlist. Built from the playlists the first time
+	* it is needed, which a journal with no removals never does. Playlists are only ever added, so it can still list
+	* one a song has since been taken off, which just costs a look through that playlist.
+	*/
+	private static class PlaylistIndex {
+		private final Map<String, Playlist> playlists;
+		private Map<Song, Set<Playlist>> bySong;
+
+		PlaylistIndex(Map<String, Playlist> playlists){
+			this.playlists = playlists;
+		}
+
+		Set<Playlist> of(Song song){
+			if(bySong == null){
+				bySong = new IdentityHashMap<Song, Set<Playlist>>();
+				for(Playlist p : playlists.values()){
+					for(Song track : p.getAllTracks()){
+						holders(track).add(p);
+					}
+				}
+			}
+			return bySong.getOrDefault(song, Set.of());
+		}
+
+		void add(Song song, Playlist p){
+			if(bySong != null)
+				holders(song).add(p);
+		}
+
+		void forget(Song song){
+			if(bySong != null)
+				bySong.remove(song);
+		}
+
+		private Set<Playlist> holders(Song song){
+			return bySong.computeIfAbsent(song, k -> Collections.newSetFromMap(new IdentityHashMap<Playlist, Boolean>()));
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package com.verban.media;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+* Loads a .library file into a Library a batch of songs at a time, so the songs can be browsed while the rest
+* of a large library is still being read.
+*
+* The file is read on the thread that calls load, so it should be run off of the UI thread. All changes to the
+* library are made through the applier passed in, in order, so that they can be moved onto the UI thread.
+* Unlike Library.load, the library is emptied as soon as the file's header has been read, and is left empty if
+* loading fails or is cancelled after that.
+*
+* The songs can be read while loading, but nothing else should change the library until load returns: the file's
+* journal is only opened once everything has been applied, and the file's playlists replace any made meanwhile.
+*
+* @author Michael Verban (2020)
+*/
+public class LibraryLoader {
+
+	/**
+	* Receives progress updates while a library is loading.
+	* Updates are sent from the thread running the load, not the UI thread.
+	*/
+	public interface ProgressListener{
+		/**
+		* @param loaded the number of songs read so far
+		* @param total the number of songs in the file
+		*/
+		void progress(int loaded, int total);
+	}
+
+	// Maximum number of songs applied in one batch
+	private static final int BATCH_SIZE = 5000;
+	// Maximum time in milliseconds a read song waits before being applied
+	private static final long BATCH_INTERVAL = 100;
+
+	// Where the songs being loaded come from
+	private interface SongSource{
+		boolean hasNext();
+		Song next() throws IOException;
+	}
+
+	private final Library library;
+	private final Executor applier;
+	private volatile boolean cancelled = false;
+
+	/**
+	* Creates a loader for the library.
+	* @param library the library to load into
+	* @param applier runs each change to the library, for example Platform::runLater
+	*/
+	public LibraryLoader(Library library, Executor applier){
+		this.library = library;
+		this.applier = applier;
+	}
+
+	/**
+	* Loads a library file, replacing everything in the library. Returns once the whole file has been applied.
+	* @param f the ".library" file to read from
+	* @param listener receives progress updates, may be null
+	* @return true if the file was loaded, false if loading was cancelled
+	* @throws IOException if an error occurs while reading
+	* @throws FileFormatException if the file is not .library, or the data is not in the correct format.
+	*/
+	public boolean load(File f, ProgressListener listener) throws IOException, InterruptedException{
+		Library.checkLibraryFile(f);
+		ByteBuffer data = LibraryFormat.map(f);
+		if(!LibraryFormat.isBinary(data))
+			return loadLegacy(f, listener);
+
+		SongTable table = new SongTable();
+		LibraryFormat.Reader reader = new LibraryFormat.Reader(data, table);
+		applier.execute(library::startLoading);
+		try{
+			SongSource songs = new SongSource(){
+				public boolean hasNext(){
+					return reader.hasNextSong();
+				}
+				public Song next() throws IOException{
+					return reader.nextSong();
+				}
+			};
+			if(!publish(songs, reader.songCount(), listener))
+				return false;
+			List<Playlist> playlists = reader.readPlaylists();
+			List<Artist> artists = new ArrayList<Artist>();
+			List<Album> albums = new ArrayList<Album>();
+			reader.readGraph(artists, albums);
+			finish(f, reader.getMark(), reader.songCount(), table.nextId(), playlists, artists, albums);
+			return true;
+		}catch(IOException | InterruptedException | RuntimeException e){
+			applier.execute(library::startLoading);
+			throw e;
+		}
+	}
+
+	/**
+	* Loads a file in the old serialized format, which has to be read all at once before any of it is applied.
+	*/
+	private boolean loadLegacy(File f, ProgressListener listener) throws IOException, InterruptedException{
+		List<Song> read = new ArrayList<Song>();
+		List<Playlist> playlists = new ArrayList<Playlist>();
+		try(InputStream in = new BufferedInputStream(new FileInputStream(f))){
+			LibraryFormat.readLegacy(in, read, playlists);
+		}catch(EOFException e){
+			throw new FileFormatException("Library file " + f + " is truncated");
+		}
+		applier.execute(library::startLoading);
+		Iterator<Song> songs = read.iterator();
+		if(!publish(new SongSource(){
+			public boolean hasNext(){
+				return songs.hasNext();
+			}
+			public Song next(){
+				return songs.next();
+			}
+		}, read.size(), listener))
+			return false;
+		finish(f, null, read.size(), 0, playlists, List.of(), List.of());
+		return true;
+	}
+
+	/**
+	* Stops a running load as soon as possible, leaving the library empty.
+	*/
+	public void cancel(){
+		cancelled = true;
+	}
+
+	/**
+	* Hands the songs to the library in batches, dropping any repeated files.
+	* @return false if loading was cancelled
+	*/
+	private boolean publish(SongSource songs, int total, ProgressListener listener) throws IOException{
+		Set<File> seen = new HashSet<File>();
+		List<Song> batch = new ArrayList<Song>();
+		long lastBatch = System.nanoTime();
+		int loaded = 0;
+		while(songs.hasNext()){
+			if(cancelled){
+				applier.execute(library::startLoading);
+				return false;
+			}
+			Song song = songs.next();
+			loaded++;
+			if(seen.add(song.getFile()))
+				batch.add(song);
+
+			long now = System.nanoTime();
+			if(batch.size() >= BATCH_SIZE || now - lastBatch >= BATCH_INTERVAL * 1000000 || !songs.hasNext()){
+				List<Song> ready = batch;
+				applier.execute(() -> library.addLoaded(ready));
+				batch = new ArrayList<Song>();
+				lastBatch = now;
+				if(listener != null)
+					listener.progress(loaded, total);
+			}
+		}
+		return true;
+	}
+
+	/**
+	* Applies the playlists, albums and artists, and the journal, waiting until that and every batch before it
+	* have been applied.
+	*/
+	private void finish(File f, LibraryJournal.Mark base, int songCount, int idLimit, List<Playlist> playlists,
+		List<Artist> artists, List<Album> albums) throws IOException, InterruptedException{
+		CompletableFuture<Void> done = new CompletableFuture<Void>();
+		applier.execute(() -> {
+			try{
+				library.finishLoading(f, base, songCount, idLimit, playlists, artists, albums);
+				done.complete(null);
+			}catch(IOException | RuntimeException e){
+				done.completeExceptionally(e);
+			}
+		});
+		try{
+			done.get();
+		}catch(ExecutionException e){
+			if(e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw (RuntimeException)e.getCause();
+		}
+	}
+}
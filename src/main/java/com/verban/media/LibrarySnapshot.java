@@ -0,0 +1,160 @@
+package com.verban.media;
+
+import java.util.*;
+
+/**
+* The songs, playlists, albums and artists of a Library at one moment, that can be saved or read on another thread
+* while the library itself keeps changing.
+*
+* Taking a snapshot copies each song's values as they are then, so edits made to the library's songs afterwards
+* never show up in it, not even half of one. The copies share the songs' strings and folders, but that is still one
+* object per song made on the thread that owns the library, so taking a snapshot grows with the library (see
+* Autosaver). Playlist and album tracks are copied as their song ids, which is just an array copy for each.
+*
+* @author Michael Verban (2020)
+*/
+public class LibrarySnapshot {
+
+	private final List<Song> songs;
+	private final List<String> playlistTitles;
+	private final int[][] playlistTracks;
+	// The rule of each smart playlist, null for the others
+	private final SongQuery[] playlistRules;
+	private final List<String> artistNames;
+	private final List<String> albumTitles;
+	// Index in artistNames of each album's artist
+	private final int[] albumArtists;
+	private final int[][] albumTracks;
+	// One more than any song id the library has handed out
+	private final int idLimit;
+	private final long modCount;
+	private final LibraryJournal.Mark journalMark;
+
+	LibrarySnapshot(List<Song> songs, List<Playlist> playlists, List<Artist> artists, List<Album> albums, int idLimit,
+		long modCount, LibraryJournal.Mark journalMark){
+		Song[] copies = new Song[songs.size()];
+		for(int i = 0; i < copies.length; i++){
+			copies[i] = songs.get(i).copy();
+		}
+		this.songs = Collections.unmodifiableList(Arrays.asList(copies));
+		String[] titles = new String[playlists.size()];
+		this.playlistTracks = new int[playlists.size()][];
+		this.playlistRules = new SongQuery[playlists.size()];
+		for(int i = 0; i < titles.length; i++){
+			Playlist p = playlists.get(i);
+			titles[i] = p.getTitle();
+			if(p instanceof SmartPlaylist){
+				// Only the rule is saved, and it never changes
+				playlistRules[i] = ((SmartPlaylist)p).rule();
+				playlistTracks[i] = new int[0];
+			}else{
+				playlistTracks[i] = p.getTrackIds();
+			}
+		}
+		this.playlistTitles = Collections.unmodifiableList(Arrays.asList(titles));
+
+		List<String> names = new ArrayList<String>(artists.size());
+		HashMap<String, Integer> artistNumbers = new HashMap<String, Integer>();
+		for(Artist a : artists){
+			if(artistNumbers.putIfAbsent(a.getName(), names.size()) == null)
+				names.add(a.getName());
+		}
+		String[] albumTitles = new String[albums.size()];
+		this.albumArtists = new int[albums.size()];
+		this.albumTracks = new int[albums.size()][];
+		for(int i = 0; i < albumTitles.length; i++){
+			Album album = albums.get(i);
+			albumTitles[i] = album.getTitle();
+			Integer artist = artistNumbers.get(album.getArtistName());
+			if(artist == null){
+				artist = names.size();
+				artistNumbers.put(album.getArtistName(), artist);
+				names.add(album.getArtistName());
+			}
+			albumArtists[i] = artist;
+			albumTracks[i] = album.getTrackIds();
+		}
+		this.artistNames = Collections.unmodifiableList(names);
+		this.albumTitles = Collections.unmodifiableList(Arrays.asList(albumTitles));
+		this.idLimit = idLimit;
+		this.modCount = modCount;
+		this.journalMark = journalMark;
+	}
+
+	/**
+	* Returns copies of the library's songs as they were when this snapshot was taken, with the same ids.
+	* Changing them changes nothing in the library.
+	*/
+	public List<Song> getSongs(){
+		return songs;
+	}
+
+	/**
+	* Returns the titles of the playlists, in the same order as getPlaylistTrackIds.
+	*/
+	public List<String> getPlaylistTitles(){
+		return playlistTitles;
+	}
+
+	/**
+	* Returns the song ids of the tracks of the nth playlist in getPlaylistTitles. The array must not be changed.
+	* Tracks can refer to songs that are not in getSongs, if they were not in the library.
+	*/
+	int[] getPlaylistTrackIds(int n){
+		return playlistTracks[n];
+	}
+
+	/**
+	* Returns the rule of the nth playlist in getPlaylistTitles if it is a smart playlist, or null if it is not.
+	* The rule must not be changed.
+	*/
+	SongQuery getPlaylistRule(int n){
+		return playlistRules[n];
+	}
+
+	public List<String> getArtistNames(){
+		return artistNames;
+	}
+
+	/**
+	* Returns the titles of the albums, in the same order as getAlbumTrackIds.
+	*/
+	public List<String> getAlbumTitles(){
+		return albumTitles;
+	}
+
+	/**
+	* Returns the index in getArtistNames of the artist of the nth album.
+	*/
+	public int getAlbumArtist(int n){
+		return albumArtists[n];
+	}
+
+	/**
+	* Returns the song ids of the tracks of the nth album in getAlbumTitles, in album order. The array must not be changed.
+	*/
+	int[] getAlbumTrackIds(int n){
+		return albumTracks[n];
+	}
+
+	/**
+	* Returns one more than any song id the library had handed out when this snapshot was taken.
+	*/
+	int getIdLimit(){
+		return idLimit;
+	}
+
+	/**
+	* Returns the library's change count when this snapshot was taken, see Library.getModCount.
+	*/
+	public long getModCount(){
+		return modCount;
+	}
+
+	/**
+	* Returns where the library's journal was up to when this snapshot was taken, or null if it had none.
+	*/
+	LibraryJournal.Mark getJournalMark(){
+		return journalMark;
+	}
+}
@@ -0,0 +1,267 @@
+package com.verban.media;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+* Keeps a Library in sync with folders on disk while they are being watched.
+* Changes are collected until the folders have been quiet for a moment (or a change has waited too long),
+* then only the files that changed are read, and the library gets one batch of additions, updates, and removals.
+*
+* All changes to the library are made through the applier passed in, so that they can be moved onto the UI thread.
+*
+* @author Michael Verban (2020)
+*/
+public class LibraryWatcher implements Closeable {
+
+	// Time in milliseconds with no events before the pending changes are applied
+	private static final long QUIET_PERIOD = 1000;
+	// Longest time in milliseconds a change waits before it is applied, even if events keep coming
+	private static final long MAX_DELAY = 10000;
+
+	private final Library library;
+	private final Executor applier;
+	private final TagCache tagCache;
+	private final WatchService watchService;
+	private final Map<WatchKey, Path> keys;
+	private final List<Path> roots;
+	private final ExecutorService parsers;
+	private final Thread thread;
+	private volatile boolean closed = false;
+
+	/**
+	* Creates a watcher for the library. Nothing is watched until watch is called.
+	* @param library the library to keep in sync
+	* @param applier runs each batch of changes to the library, for example Platform::runLater
+	* @param tagCache the cache to read tags through, may be null
+	*/
+	public LibraryWatcher(Library library, Executor applier, TagCache tagCache) throws IOException{
+		this.library = library;
+		this.applier = applier;
+		this.tagCache = tagCache;
+		this.watchService = FileSystems.getDefault().newWatchService();
+		this.keys = new ConcurrentHashMap<WatchKey, Path>();
+		this.roots = new CopyOnWriteArrayList<Path>();
+		this.parsers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+			Thread t = new Thread(r, "watcher-parser");
+			t.setDaemon(true);
+			return t;
+		});
+		this.thread = new Thread(this::run, "library-watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	* Starts watching a folder and all of its subfolders. Files already in the folder are not imported,
+	* use an ImportPipeline for that.
+	* @param folder the folder to watch
+	*/
+	public void watch(File folder) throws IOException{
+		Path root = folder.toPath().toAbsolutePath();
+		if(!roots.contains(root)){
+			roots.add(root);
+			register(root, null);
+		}
+	}
+
+	/**
+	* Returns the folders being watched.
+	*/
+	public List<File> getWatchedFolders(){
+		List<File> folders = new ArrayList<File>();
+		for(Path p : roots){
+			folders.add(p.toFile());
+		}
+		return folders;
+	}
+
+	/**
+	* Stops watching all folders. Changes that have not been applied yet are dropped.
+	*/
+	@Override
+	public void close() throws IOException{
+		closed = true;
+		thread.interrupt();
+		parsers.shutdownNow();
+		watchService.close();
+	}
+
+	/**
+	* Registers a folder and all its subfolders with the watch service.
+	* If found is not null, every song file in those folders is added to it.
+	*/
+	private void register(Path folder, Set<Path> found) throws IOException{
+		Files.walkFileTree(folder, new SimpleFileVisitor<Path>(){
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException{
+				keys.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs){
+				if(found != null && Song.isSongFile(file.toFile()))
+					found.add(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e){
+				// Unreadable files and folders cant be in the library anyway.
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private void run(){
+		// Every path that has had an event since the last batch was applied, in order.
+		Set<Path> pending = new LinkedHashSet<Path>();
+		// Song files found by walking the roots after events were lost, to find the songs deleted meanwhile.
+		Set<Path> walked = null;
+		long firstPending = 0;
+		while(!closed){
+			try{
+				WatchKey key;
+				if(pending.isEmpty()){
+					key = watchService.take();
+					firstPending = System.currentTimeMillis();
+				}else{
+					long wait = Math.min(QUIET_PERIOD, firstPending + MAX_DELAY - System.currentTimeMillis());
+					key = wait > 0 ? watchService.poll(wait, TimeUnit.MILLISECONDS) : null;
+				}
+
+				if(key == null){
+					apply(pending, walked);
+					pending = new LinkedHashSet<Path>();
+					walked = null;
+					continue;
+				}
+
+				Path dir = keys.get(key);
+				for(WatchEvent<?> event : key.pollEvents()){
+					if(event.kind() == OVERFLOW){
+						// Events were lost, so check everything that is watched, and look for deletes once applied.
+						walked = new HashSet<Path>();
+						for(Path root : roots){
+							registerQuietly(root, walked);
+						}
+						pending.addAll(walked);
+						continue;
+					}
+					if(dir == null)
+						continue;
+					Path path = dir.resolve((Path)event.context());
+					if(event.kind() == ENTRY_CREATE && Files.isDirectory(path)){
+						// Files may have been put in the folder before we started watching it.
+						registerQuietly(path, pending);
+					}else{
+						pending.add(path);
+					}
+				}
+				if(!key.reset())
+					keys.remove(key);
+			}catch(InterruptedException | ClosedWatchServiceException e){
+				return;
+			}
+		}
+	}
+
+	private void registerQuietly(Path folder, Set<Path> found){
+		try{
+			register(folder, found);
+		}catch(IOException e){
+			// The folder vanished while being registered, its files will show up as deletes.
+		}
+	}
+
+	/**
+	* Reads every changed file that still exists, and applies the batch of changes to the library.
+	* @param walked if events were lost, every song file found under the roots, otherwise null
+	*/
+	private void apply(Set<Path> changed, Set<Path> walked) throws InterruptedException{
+		List<Callable<Song>> reads = new ArrayList<Callable<Song>>();
+		List<File> removed = new ArrayList<File>();
+		for(Path path : changed){
+			File f = path.toFile();
+			if(f.isFile()){
+				if(Song.isSongFile(f))
+					reads.add(() -> tagCache != null ? tagCache.read(f) : new Song(f));
+			}else if(!f.exists()){
+				removed.add(f);
+			}
+		}
+
+		List<Song> updated = new ArrayList<Song>();
+		for(Future<Song> read : parsers.invokeAll(reads)){
+			try{
+				updated.add(read.get());
+			}catch(ExecutionException e){} // Not readable (yet), skip it.
+		}
+
+		if(updated.isEmpty() && removed.isEmpty() && walked == null)
+			return;
+		applier.execute(() -> {
+			library.mergeSongs(updated);
+			List<Song> gone = songsIn(removed);
+			if(walked != null)
+				gone.addAll(missing(walked));
+			library.removeSongs(gone);
+		});
+	}
+
+	/**
+	* Finds the songs in the library under a watched folder whose files were not found walking the folders,
+	* which were deleted while events were being lost. This must run wherever the library is safe to read.
+	*/
+	private List<Song> missing(Set<Path> walked){
+		List<Song> found = new ArrayList<Song>();
+		for(Song s : library.getSongs()){
+			Path p = s.getFile().toPath().toAbsolutePath();
+			if(walked.contains(p))
+				continue;
+			for(Path root : roots){
+				if(p.startsWith(root)){
+					found.add(s);
+					break;
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	* Finds the songs in the library that are one of the files, or inside one of them if it was a folder.
+	* This must run wherever the library is safe to read.
+	*/
+	private List<Song> songsIn(List<File> removed){
+		List<Song> found = new ArrayList<Song>();
+		List<Path> folders = new ArrayList<Path>();
+		for(File f : removed){
+			Song s = library.getSong(f);
+			if(s != null){
+				found.add(s);
+			}else if(!Song.isSongFile(f)){
+				// Might have been a folder, but we cant tell any more.
+				folders.add(f.toPath());
+			}
+		}
+		if(!folders.isEmpty()){
+			for(Song s : library.getSongs()){
+				Path p = s.getFile().toPath().toAbsolutePath();
+				for(Path folder : folders){
+					if(p.startsWith(folder)){
+						found.add(s);
+						break;
+					}
+				}
+			}
+		}
+		return found;
+	}
+}
@@ -2,7 +2,7 @@ package com.verban.media;
 
 import java.util.*;
 import java.io.Serializable;
-import javafx.collections.*;
+import javafx.collections.ObservableList;
 
 /**
 * Represents a playlist that contains a list of songs in order.
@@ -13,15 +13,23 @@ public class Playlist implements Serializable{
 	private static final long serialVersionUID=-278146593L;
 
 	private String title;
-	private ObservableList<Song> tracks;
+	// Stored as song ids, so a long playlist is an int array rather than an array of references
+	private TrackList tracks;
 
 	/**
 	* Creates a new empty playlist with the specified name
 	* @param title the name of this Playlist
 	*/
 	public Playlist(String title){
+		this(title, new SongTable());
+	}
+
+	/**
+	* Creates a new empty playlist whose tracks are ids in the given table, normally the library's.
+	*/
+	Playlist(String title, SongTable table){
 		this.title = title;
-		tracks = FXCollections.<Song>observableArrayList();
+		tracks = new TrackList(table);
 	}
 
 	public void setTitle(String title){
@@ -60,6 +68,24 @@ public class Playlist implements Serializable{
 		return tracks;
 	}
 
+	TrackList getTrackList(){
+		return tracks;
+	}
+
+	/**
+	* Returns the ids of the tracks in this Playlist, in order.
+	*/
+	int[] getTrackIds(){
+		return tracks.toIdArray();
+	}
+
+	/**
+	* Moves this playlist onto another table of songs, which must hold every track with the same id.
+	*/
+	void setSongTable(SongTable table){
+		tracks.setTable(table);
+	}
+
 	@Override
 	public boolean equals(Object o){
 		if(o instanceof Playlist){
@@ -0,0 +1,326 @@
+package com.verban.media;
+
+import java.util.*;
+
+/**
+* Indexes over a library's SongColumns for running SongQuerys, and the code that runs them.
+* Year, runtime and rating have sorted indexes, for ranges, and genre and artist have hash indexes, by their codes.
+* Each index maps a value to the ids of the songs with it, in id order.
+*
+* A query starts from the index that matches the fewest songs, going by how many songs each value it covers has,
+* and checks the rest of its conditions against the columns for just those songs. Where even the best index would
+* match a good part of the library, going straight through the columns is quicker, as it reads them in order rather
+* than jumping about, so the query scans the whole library instead.
+*
+* The library keeps the indexes in step with the columns, see Library.query.
+*
+* @author Michael Verban (2020)
+*/
+class QueryIndexes {
+
+	// How much more a song costs to check through an index than in a scan of the columns, which reads them in order
+	private static final int INDEX_COST = 4;
+
+	private static final SongColumns.Column[] COLUMNS = SongColumns.Column.values();
+	// Stands for the ratings where a column's ordinal is expected, as they have no int column
+	private static final int RATING = -1;
+
+	private final SongColumns columns;
+	private final Index<Integer> years = new Index<Integer>(new TreeMap<Integer, IdSet>());
+	private final Index<Integer> runtimes = new Index<Integer>(new TreeMap<Integer, IdSet>());
+	private final Index<Double> ratings = new Index<Double>(new TreeMap<Double, IdSet>());
+	private final Index<Integer> genres = new Index<Integer>(new HashMap<Integer, IdSet>());
+	private final Index<Integer> artists = new Index<Integer>(new HashMap<Integer, IdSet>());
+
+	/**
+	* Builds the indexes over every song in the columns.
+	*/
+	QueryIndexes(SongColumns columns){
+		this.columns = columns;
+		for(int id = 1; id < columns.idLimit(); id++){
+			if(columns.contains(id))
+				add(id);
+		}
+	}
+
+	/**
+	* Adds the song with the id, as it is in the columns now.
+	*/
+	void add(int id){
+		years.add(columns.get(SongColumns.Column.YEAR, id), id);
+		runtimes.add(columns.get(SongColumns.Column.RUNTIME, id), id);
+		ratings.add(columns.getRating(id), id);
+		genres.add(columns.get(SongColumns.Column.GENRE, id), id);
+		artists.add(columns.get(SongColumns.Column.ARTIST, id), id);
+	}
+
+	/**
+	* Removes the song with the id, as it is in the columns now, so this must be called before the columns change.
+	*/
+	void remove(int id){
+		if(!columns.contains(id))
+			return;
+		years.remove(columns.get(SongColumns.Column.YEAR, id), id);
+		runtimes.remove(columns.get(SongColumns.Column.RUNTIME, id), id);
+		ratings.remove(columns.getRating(id), id);
+		genres.remove(columns.get(SongColumns.Column.GENRE, id), id);
+		artists.remove(columns.get(SongColumns.Column.ARTIST, id), id);
+	}
+
+	/**
+	* Runs a query.
+	* @return the ids of the songs found, in order, after the offset and up to the limit
+	*/
+	int[] run(SongQuery query){
+		Conditions conditions = new Conditions(query);
+		Plan plan = plan(query, conditions);
+		if(plan == null)
+			return new int[0];
+
+		int[] found = new int[Math.min(plan.estimate, columns.idLimit())];
+		int n = 0;
+		if(plan.postings == null){
+			for(int id = 1; id < columns.idLimit(); id++){
+				if(columns.contains(id) && conditions.match(id)){
+					if(n == found.length)
+						found = Arrays.copyOf(found, Math.max(16, n * 2));
+					found[n++] = id;
+				}
+			}
+		}else{
+			// Every song the index gives matches its own condition
+			conditions.covered(plan.column);
+			for(IdSet ids : plan.postings){
+				for(int i = 0; i < ids.size; i++){
+					if(conditions.match(ids.ids[i]))
+						found[n++] = ids.ids[i];
+				}
+			}
+			// Each value's ids are in order, but a range covers several values
+			if(query.order == null && plan.postings.size() > 1)
+				Arrays.sort(found, 0, n);
+		}
+		if(query.order != null)
+			sort(found, n, query.order, query.descending);
+
+		int from = Math.min(query.offset, n);
+		int to = (int)Math.min((long)from + query.limit, n);
+		return Arrays.copyOfRange(found, from, to);
+	}
+
+	/**
+	* Describes how a query would be run, for example "genre index, 1200 songs" or "full scan, 100000 songs".
+	*/
+	String explain(SongQuery query){
+		Conditions conditions = new Conditions(query);
+		Plan plan = plan(query, conditions);
+		if(plan == null)
+			return "nothing to scan, no song can match";
+		return plan.name + ", " + plan.estimate + " songs";
+	}
+
+	/**
+	* Sorts the ids of the songs by the order, then by id. Each song is packed into a long with the value it is sorted by
+	* on top, so they sort as plain numbers.
+	*/
+	private void sort(int[] ids, int n, SongQuery.Order order, boolean descending){
+		int[] values = order.column == null ? null : columns.column(order.column);
+		double[] rated = columns.ratings();
+		long[] keys = new long[n];
+		for(int i = 0; i < n; i++){
+			int id = ids[i];
+			int value = values != null ? values[id] : sortable((float)rated[id]);
+			if(descending)
+				value = ~value;
+			// Flipping the sign bit makes the signed value sort as unsigned, as in SongColumns.sortedIds
+			keys[i] = ((long)(value ^ Integer.MIN_VALUE) << 32) | id;
+		}
+		Arrays.sort(keys);
+		for(int i = 0; i < n; i++){
+			ids[i] = (int)keys[i];
+		}
+	}
+
+	// The bits of a float as an int that sorts the same way as the float
+	private static int sortable(float f){
+		int bits = Float.floatToIntBits(f);
+		return bits ^ ((bits >> 31) & Integer.MAX_VALUE);
+	}
+
+	/**
+	* Picks the index to start from, or a full scan.
+	* @return the plan, or null if no song can match
+	*/
+	private Plan plan(SongQuery query, Conditions conditions){
+		if(conditions.impossible)
+			return null;
+		int year = SongColumns.Column.YEAR.ordinal(), runtime = SongColumns.Column.RUNTIME.ordinal();
+		int genre = SongColumns.Column.GENRE.ordinal(), artist = SongColumns.Column.ARTIST.ordinal();
+		List<Plan> plans = new ArrayList<Plan>();
+		if(conditions.on[year])
+			plans.add(new Plan("year index", year, years.range(conditions.mins[year], conditions.maxes[year])));
+		if(conditions.on[runtime])
+			plans.add(new Plan("runtime index", runtime, runtimes.range(conditions.mins[runtime], conditions.maxes[runtime])));
+		if(query.rated)
+			plans.add(new Plan("rating index", RATING, ratings.range(query.minRating, query.maxRating)));
+		if(conditions.on[genre])
+			plans.add(new Plan("genre index", genre, genres.get(conditions.mins[genre])));
+		if(conditions.on[artist])
+			plans.add(new Plan("artist index", artist, artists.get(conditions.mins[artist])));
+		Plan best = new Plan("full scan", RATING, null);
+		long bestCost = columns.size();
+		for(Plan plan : plans){
+			long cost = (long)plan.estimate * INDEX_COST;
+			if(cost < bestCost){
+				best = plan;
+				bestCost = cost;
+			}
+		}
+		return best;
+	}
+
+	/**
+	* A way to run a query: the postings of the index values to go through, or null to scan everything,
+	* and how many songs that is.
+	*/
+	private class Plan {
+		final String name;
+		// The ordinal of the column the index is on, or RATING
+		final int column;
+		final Collection<IdSet> postings;
+		final int estimate;
+
+		Plan(String name, int column, Collection<IdSet> postings){
+			this.name = name;
+			this.column = column;
+			this.postings = postings;
+			if(postings == null){
+				estimate = columns.size();
+			}else{
+				int n = 0;
+				for(IdSet ids : postings){
+					n += ids.size;
+				}
+				estimate = n;
+			}
+		}
+	}
+
+	/**
+	* The conditions of a query, with strings turned into the codes of their columns.
+	*/
+	private class Conditions {
+		final boolean[] on = new boolean[COLUMNS.length];
+		final int[] mins = new int[COLUMNS.length];
+		final int[] maxes = new int[COLUMNS.length];
+		// The columns that have a condition, and their arrays
+		int[][] checked;
+		int[] checkedColumns;
+		boolean rated;
+		final double minRating, maxRating;
+		final double[] ratingValues;
+		// Whether a string is not in the library at all, or a range is empty
+		boolean impossible = false;
+
+		Conditions(SongQuery query){
+			int count = 0;
+			for(SongColumns.Column c : COLUMNS){
+				int i = c.ordinal();
+				if(query.equals[i] != null){
+					int code = columns.code(c, query.equals[i]);
+					if(code < 0)
+						impossible = true;
+					on[i] = true;
+					mins[i] = maxes[i] = code;
+				}else if(query.ranged[i]){
+					on[i] = true;
+					mins[i] = query.mins[i];
+					maxes[i] = query.maxes[i];
+					if(mins[i] > maxes[i])
+						impossible = true;
+				}
+				if(on[i])
+					count++;
+			}
+			checked = new int[count][];
+			checkedColumns = new int[count];
+			int n = 0;
+			for(SongColumns.Column c : COLUMNS){
+				if(on[c.ordinal()]){
+					checked[n] = columns.column(c);
+					checkedColumns[n++] = c.ordinal();
+				}
+			}
+			rated = query.rated;
+			minRating = query.minRating;
+			maxRating = query.maxRating;
+			ratingValues = columns.ratings();
+			if(rated && minRating > maxRating)
+				impossible = true;
+		}
+
+		/**
+		* Stops checking the condition on a column, or on the ratings, as the songs checked are known to match it.
+		*/
+		void covered(int column){
+			if(column == RATING){
+				rated = false;
+				return;
+			}
+			for(int i = 0; i < checkedColumns.length; i++){
+				if(checkedColumns[i] == column){
+					int last = checkedColumns.length - 1;
+					checked[i] = checked[last];
+					checkedColumns[i] = checkedColumns[last];
+					checked = Arrays.copyOf(checked, last);
+					checkedColumns = Arrays.copyOf(checkedColumns, last);
+					return;
+				}
+			}
+		}
+
+		boolean match(int id){
+			for(int i = 0; i < checked.length; i++){
+				int value = checked[i][id];
+				int c = checkedColumns[i];
+				if(value < mins[c] || value > maxes[c])
+					return false;
+			}
+			if(rated){
+				double rating = ratingValues[id];
+				return rating >= minRating && rating <= maxRating;
+			}
+			return true;
+		}
+	}
+
+	/**
+	* Maps values to the ids of the songs with them. Ranges need the map to be sorted.
+	*/
+	private static class Index<K> {
+		private final Map<K, IdSet> postings;
+
+		Index(Map<K, IdSet> postings){
+			this.postings = postings;
+		}
+
+		void add(K value, int id){
+			postings.computeIfAbsent(value, v -> new IdSet()).add(id);
+		}
+
+		void remove(K value, int id){
+			IdSet ids = postings.get(value);
+			if(ids != null && ids.remove(id) && ids.size == 0)
+				postings.remove(value);
+		}
+
+		Collection<IdSet> get(K value){
+			IdSet ids = postings.get(value);
+			return ids == null ? List.of() : List.of(ids);
+		}
+
+		Collection<IdSet> range(K from, K to){
+			return ((NavigableMap<K, IdSet>)postings).subMap(from, true, to, true).values();
+		}
+	}
+}
@@ -0,0 +1,248 @@
+package com.verban.media;
+
+import java.text.Normalizer;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+* An inverted index over the title, artist, album, and genre of songs, for searching as the user types.
+*
+* Text is split into words, which are lower cased and have accents removed, so "Beyoncé" is found by "beyonce".
+* Every word of a query matches any word in a song that starts with it, so the last word can be half typed.
+* A song has to match every word in the query to be found.
+*
+* Songs are ranked by where each query word matched them, a title beats an artist, which beats an album,
+* which beats a genre, and a whole word beats just a prefix.
+*
+* The index is updated one song at a time, and is not thread safe.
+*
+* @author Michael Verban (2020)
+*/
+public class SearchIndex {
+
+	// Which field a word was found in, in order of importance.
+	private static final int TITLE = 0, ARTIST = 1, ALBUM = 2, GENRE = 3;
+	private static final int[] FIELD_WEIGHTS = {8, 4, 2, 1};
+
+	private static final Pattern ACCENTS = Pattern.compile("\\p{M}+");
+	private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+	// Every word, and the songs it is in. Sorted so all words with a prefix are next to each other.
+	private TreeMap<String, Set<Song>> postings;
+	// The words indexed for each song, so it can be scored and removed.
+	private Map<Song, SongWords> songWords;
+
+	/**
+	* Creates an empty index.
+	*/
+	public SearchIndex(){
+		postings = new TreeMap<String, Set<Song>>();
+		songWords = new HashMap<Song, SongWords>();
+	}
+
+	/**
+	* Lower cases the text and removes any accents from it.
+	*/
+	public static String normalize(String text){
+		if(text == null)
+			return "";
+		String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+		return ACCENTS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	* Splits text into normalized words.
+	*/
+	public static List<String> tokenize(String text){
+		List<String> words = new ArrayList<String>();
+		for(String word : SEPARATORS.split(normalize(text))){
+			if(!word.isEmpty())
+				words.add(word);
+		}
+		return words;
+	}
+
+	/**
+	* Adds a song to the index, replacing what was indexed for it before if it was already in the index.
+	*/
+	public void add(Song song){
+		remove(song);
+		SongWords words = new SongWords(song);
+		songWords.put(song, words);
+		for(String word : words.words){
+			postings.computeIfAbsent(word, w -> new HashSet<Song>()).add(song);
+		}
+	}
+
+	/**
+	* Re-indexes a song whose tags have changed.
+	*/
+	public void update(Song song){
+		add(song);
+	}
+
+	/**
+	* Removes a song from the index, if it is in it.
+	*/
+	public void remove(Song song){
+		SongWords words = songWords.remove(song);
+		if(words == null)
+			return;
+		for(String word : words.words){
+			Set<Song> songs = postings.get(word);
+			if(songs != null){
+				songs.remove(song);
+				if(songs.isEmpty())
+					postings.remove(word);
+			}
+		}
+	}
+
+	/**
+	* Removes every song from the index.
+	*/
+	public void clear(){
+		postings.clear();
+		songWords.clear();
+	}
+
+	/**
+	* Returns the number of songs in the index.
+	*/
+	public int size(){
+		return songWords.size();
+	}
+
+	/**
+	* Finds the songs that best match the query.
+	* @param query the text to search for
+	* @param limit the most songs to return
+	* @return up to limit songs that match every word of the query, best match first.
+	*/
+	public List<Song> search(String query, int limit){
+		List<String> queryWords = tokenize(query);
+		if(queryWords.isEmpty() || limit < 1)
+			return new ArrayList<Song>();
+
+		// Only the songs matching the rarest word need looking at, the other words are checked against each song's own words.
+		Collection<Set<Song>> candidates = null;
+		int fewest = Integer.MAX_VALUE;
+		for(String word : queryWords){
+			Collection<Set<Song>> matches = prefixed(word).values();
+			int count = 0;
+			for(Set<Song> songs : matches){
+				count += songs.size();
+				if(count >= fewest)
+					break;
+			}
+			if(count < fewest){
+				fewest = count;
+				candidates = matches;
+			}
+		}
+
+		// Keep the best limit songs, with the worst of them on top.
+		PriorityQueue<Result> best = new PriorityQueue<Result>();
+		Set<Song> seen = new HashSet<Song>();
+		for(Set<Song> songs : candidates){
+			for(Song song : songs){
+				if(!seen.add(song))
+					continue;
+				int score = songWords.get(song).score(queryWords);
+				if(score > 0){
+					Result r = new Result(song, score);
+					if(best.size() < limit){
+						best.add(r);
+					}else if(r.compareTo(best.peek()) > 0){
+						best.poll();
+						best.add(r);
+					}
+				}
+			}
+		}
+
+		List<Song> results = new ArrayList<Song>(best.size());
+		while(!best.isEmpty()){
+			results.add(best.poll().song);
+		}
+		Collections.reverse(results);
+		return results;
+	}
+
+	/**
+	* Returns every indexed word starting with prefix, and the songs containing it.
+	*/
+	private SortedMap<String, Set<Song>> prefixed(String prefix){
+		return postings.subMap(prefix, prefix + Character.MAX_VALUE);
+	}
+
+	/**
+	* The normalized words of one song, and the most important field each was found in.
+	*/
+	private static class SongWords {
+		String[] words;
+		int[] fields;
+
+		SongWords(Song song){
+			LinkedHashMap<String, Integer> found = new LinkedHashMap<String, Integer>();
+			addAll(found, song.getTitle(), TITLE);
+			addAll(found, song.getArtistName(), ARTIST);
+			addAll(found, song.getOriginalAlbum(), ALBUM);
+			addAll(found, song.getGenre(), GENRE);
+			words = found.keySet().toArray(new String[0]);
+			fields = new int[words.length];
+			int i = 0;
+			for(int field : found.values()){
+				fields[i++] = field;
+			}
+		}
+
+		private static void addAll(Map<String, Integer> found, String text, int field){
+			for(String word : tokenize(text)){
+				// Fields are added most important first, so keep the first one
+				found.putIfAbsent(word, field);
+			}
+		}
+
+		/**
+		* Scores how well this song matches the query, or 0 if any word in it does not match.
+		*/
+		int score(List<String> queryWords){
+			int total = 0;
+			for(String q : queryWords){
+				int bestScore = 0;
+				for(int i = 0; i < words.length; i++){
+					if(words[i].startsWith(q)){
+						int score = FIELD_WEIGHTS[fields[i]] * (words[i].length() == q.length() ? 2 : 1);
+						bestScore = Math.max(bestScore, score);
+					}
+				}
+				if(bestScore == 0)
+					return 0;
+				total += bestScore;
+			}
+			return total;
+		}
+	}
+
+	/**
+	* A scored song, ordered from worst to best match.
+	*/
+	private static class Result implements Comparable<Result> {
+		Song song;
+		int score;
+
+		Result(Song song, int score){
+			this.song = song;
+			this.score = score;
+		}
+
+		@Override
+		public int compareTo(Result o){
+			if(score != o.score)
+				return Integer.compare(score, o.score);
+			// Equal scores go alphabetically, so the results dont jump around while typing.
+			return o.song.toString().compareToIgnoreCase(song.toString());
+		}
+	}
+}
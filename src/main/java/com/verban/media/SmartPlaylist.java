@@ -0,0 +1,67 @@
+package com.verban.media;
+
+/**
+* A playlist whose tracks are every song in the library matching a rule, for example
+*     library.createSmartPlaylist("Good Jazz", new SongQuery().genre("Jazz").ratings(4, 5));
+* The library keeps the tracks up to date as songs are added, edited, rated and removed, so the playlist can be shown
+* like any other. Tracks are kept in the order the songs were added to the library, and cannot be added or removed by hand.
+*
+* Only the rule is saved with the library, the tracks are found again when it is loaded.
+*
+* @author Michael Verban (2020)
+*/
+public class SmartPlaylist extends Playlist {
+
+	private static final long serialVersionUID = 7046123589413L;
+
+	// Smart playlists are never in the old serialized files, so the rule is never serialized
+	private final transient SongQuery rule;
+
+	/**
+	* Creates an empty smart playlist, see Library.createSmartPlaylist.
+	* @throws IllegalArgumentException if the rule sorts or limits the songs, rather than only having conditions
+	*/
+	SmartPlaylist(String title, SongQuery rule, SongTable table){
+		super(title, table);
+		if(!rule.isFilter())
+			throw new IllegalArgumentException("A smart playlist rule can only have conditions, not an order or limit");
+		this.rule = rule.copy();
+	}
+
+	/**
+	* Returns a copy of the rule, changing it does not change the playlist.
+	*/
+	public SongQuery getRule(){
+		return rule.copy();
+	}
+
+	// The rule itself, which must not be changed
+	SongQuery rule(){
+		return rule;
+	}
+
+	@Override
+	public void addTrack(Song s){
+		throw new UnsupportedOperationException("The tracks of a smart playlist come from its rule");
+	}
+
+	@Override
+	public boolean removeTrack(Song s){
+		throw new UnsupportedOperationException("The tracks of a smart playlist come from its rule");
+	}
+
+	/**
+	* Adds the song if it matches the rule and is not a track yet, or removes it if it is one and no longer matches.
+	* The song must be in the library.
+	*/
+	void refresh(Song song){
+		TrackList tracks = getTrackList();
+		int i = tracks.searchId(song.getId());
+		boolean matches = rule.matches(song);
+		if(matches && i < 0){
+			tracks.add(-i - 1, song);
+		}else if(!matches && i >= 0){
+			tracks.remove(i);
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package com.verban.media;
+
+import java.util.*;
+
+/**
+* The smart playlists of a library, indexed by their rules, so that when a song changes only the playlists it could
+* have joined or left are looked at, rather than every rule in the library.
+*
+* Each rule is filed under one of its conditions, the one a song is least likely to meet: its genre, artist or album
+* if it has one, as a song has just one of each, otherwise its years. A changed song then only needs checking against
+* the rules filed under its own genre, artist, album and year, and against the smart playlists it is already on,
+* which it may have to leave. Rules with none of these conditions are checked for every song.
+*
+* Rules filed by year are kept as the years split into spans that every rule either covers whole or not at all,
+* with the rules covering each, so finding the rules for a year is one binary search. Rules are added far less
+* often than songs change, so the spans are just worked out again each time.
+*
+* @author Michael Verban (2020)
+*/
+class SmartPlaylists {
+
+	private final Map<String, List<SmartPlaylist>> byGenre = new HashMap<String, List<SmartPlaylist>>();
+	private final Map<String, List<SmartPlaylist>> byArtist = new HashMap<String, List<SmartPlaylist>>();
+	private final Map<String, List<SmartPlaylist>> byAlbum = new HashMap<String, List<SmartPlaylist>>();
+	private final List<SmartPlaylist> byYear = new ArrayList<SmartPlaylist>();
+	private final List<SmartPlaylist> everywhere = new ArrayList<SmartPlaylist>();
+	private int count = 0;
+
+	// The first year of each span, and the year rules covering it, worked out from byYear
+	private long[] spanStarts = new long[0];
+	private List<SmartPlaylist>[] spanRules = spans(0);
+
+	void add(SmartPlaylist p){
+		SongQuery rule = p.rule();
+		Map<String, List<SmartPlaylist>> index = anchor(rule);
+		if(index != null){
+			index.computeIfAbsent(key(rule, index), k -> new ArrayList<SmartPlaylist>(1)).add(p);
+		}else if(rule.ranged[SongColumns.Column.YEAR.ordinal()]){
+			byYear.add(p);
+			rebuildSpans();
+		}else{
+			everywhere.add(p);
+		}
+		count++;
+	}
+
+	void remove(SmartPlaylist p){
+		SongQuery rule = p.rule();
+		Map<String, List<SmartPlaylist>> index = anchor(rule);
+		boolean removed;
+		if(index != null){
+			String key = key(rule, index);
+			List<SmartPlaylist> filed = index.get(key);
+			removed = filed != null && filed.remove(p);
+			if(filed != null && filed.isEmpty())
+				index.remove(key);
+		}else if(rule.ranged[SongColumns.Column.YEAR.ordinal()]){
+			removed = byYear.remove(p);
+			rebuildSpans();
+		}else{
+			removed = everywhere.remove(p);
+		}
+		if(removed)
+			count--;
+	}
+
+	boolean isEmpty(){
+		return count == 0;
+	}
+
+	/**
+	* Adds the song to the smart playlists whose rules it now matches, and takes it off the ones it no longer does.
+	* @param song a song in the library, which was added or changed
+	* @param on the playlists the song is on now, may be null
+	*/
+	void refresh(Song song, List<Playlist> on){
+		if(count == 0)
+			return;
+		// Leaving a playlist changes the list it is on, so find them first
+		List<SmartPlaylist> current = null;
+		if(on != null){
+			for(Playlist p : on){
+				if(p instanceof SmartPlaylist){
+					if(current == null)
+						current = new ArrayList<SmartPlaylist>(2);
+					current.add((SmartPlaylist)p);
+				}
+			}
+		}
+		if(current != null){
+			for(SmartPlaylist p : current){
+				p.refresh(song);
+			}
+		}
+		refreshAll(song, byGenre.get(text(song.getGenre())));
+		refreshAll(song, byArtist.get(text(song.getArtistName())));
+		refreshAll(song, byAlbum.get(text(song.getOriginalAlbum())));
+		int span = Arrays.binarySearch(spanStarts, song.getYear());
+		if(span < 0)
+			span = -span - 2;
+		if(span >= 0)
+			refreshAll(song, spanRules[span]);
+		refreshAll(song, everywhere);
+	}
+
+	private static void refreshAll(Song song, List<SmartPlaylist> rules){
+		if(rules == null)
+			return;
+		for(SmartPlaylist p : rules){
+			p.refresh(song);
+		}
+	}
+
+	// The index a rule is filed in, or null if it is filed by year or everywhere
+	private Map<String, List<SmartPlaylist>> anchor(SongQuery rule){
+		if(rule.equals[SongColumns.Column.GENRE.ordinal()] != null)
+			return byGenre;
+		if(rule.equals[SongColumns.Column.ARTIST.ordinal()] != null)
+			return byArtist;
+		if(rule.equals[SongColumns.Column.ALBUM.ordinal()] != null)
+			return byAlbum;
+		return null;
+	}
+
+	private String key(SongQuery rule, Map<String, List<SmartPlaylist>> index){
+		SongColumns.Column column = index == byGenre ? SongColumns.Column.GENRE
+			: index == byArtist ? SongColumns.Column.ARTIST : SongColumns.Column.ALBUM;
+		return rule.equals[column.ordinal()];
+	}
+
+	// Tags are compared as the rules store them, with no tag the same as an empty one
+	private static String text(String tag){
+		return tag == null ? "" : tag;
+	}
+
+	/**
+	* Splits the years at every end of a year rule's range, and lists the rules covering each span.
+	* Ends are kept as longs, as a range can run up to Integer.MAX_VALUE.
+	*/
+	private void rebuildSpans(){
+		TreeSet<Long> bounds = new TreeSet<Long>();
+		int y = SongColumns.Column.YEAR.ordinal();
+		for(SmartPlaylist p : byYear){
+			SongQuery rule = p.rule();
+			if(rule.mins[y] > rule.maxes[y])
+				continue;
+			bounds.add((long)rule.mins[y]);
+			bounds.add((long)rule.maxes[y] + 1);
+		}
+		long[] starts = new long[bounds.size()];
+		int n = 0;
+		for(long b : bounds){
+			starts[n++] = b;
+		}
+		List<SmartPlaylist>[] rules = spans(starts.length);
+		for(SmartPlaylist p : byYear){
+			SongQuery rule = p.rule();
+			if(rule.mins[y] > rule.maxes[y])
+				continue;
+			int from = Arrays.binarySearch(starts, rule.mins[y]);
+			int to = Arrays.binarySearch(starts, (long)rule.maxes[y] + 1);
+			for(int i = from; i < to; i++){
+				if(rules[i] == null)
+					rules[i] = new ArrayList<SmartPlaylist>(1);
+				rules[i].add(p);
+			}
+		}
+		spanStarts = starts;
+		spanRules = rules;
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static List<SmartPlaylist>[] spans(int n){
+		return (List<SmartPlaylist>[])new List[n];
+	}
+}
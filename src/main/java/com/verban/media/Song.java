@@ -6,6 +6,7 @@ import java.util.stream.*;
 import org.jaudiotagger.audio.*;
 import org.jaudiotagger.audio.exceptions.*;
 import org.jaudiotagger.tag.*;
+import com.verban.media.tags.*;
 /**
 * Represents a single song held in an audio file. Must point to a valid audio file in the MP3, m4a, WMA, ACC, FLAC, or OGG formats.
 *
@@ -23,26 +24,56 @@ public class Song extends Media {
 	static{
 		PLACEHOLDER = new Song();
 		PLACEHOLDER.title = "";
-		PLACEHOLDER.file = new File("");
+		PLACEHOLDER.setFile(new File(""));
 		PLACEHOLDER_LIST = new LinkedList<Song>();
 		PLACEHOLDER_LIST.add(PLACEHOLDER);
 	}
 
 	private static final long serialVersionUID=234768901L;
+	// Songs were serialized with their whole File, before the folder and name were kept apart
+	private static final ObjectStreamField[] serialPersistentFields = {
+		new ObjectStreamField("runtime", int.class),
+		new ObjectStreamField("file", File.class),
+		new ObjectStreamField("genre", String.class),
+		new ObjectStreamField("originalAlbum", String.class),
+		new ObjectStreamField("albumTrackNumber", int.class),
+		new ObjectStreamField("albumTracks", int.class)
+	};
 
 	// Runtime in seconds
 	private int runtime = 0;
-	// File where this song is
-	private File file;
+	// Folder and name of the file where this song is. Kept apart, so songs in the same folder can share it, see StringPool
+	private File folder;
+	private String fileName;
+	// Hash code of the file, worked out the first time it is needed
+	private transient int hash = 0;
 	// Genre of the song
 	private String genre = "";
 	// The name of the  original Album which this recording of the song came from
 	private String originalAlbum = "";
 	//The track number, and number of tracks on the album this song comes from
 	private int albumTrackNumber=0, albumTracks=0;
+	// Id of this song in the library it belongs to, 0 until it is added to one
+	private transient int id = 0;
 
 	private Song(){}
 
+	/**
+	* Creates a song from already known tag data, without reading the file. Used when loading a library.
+	*/
+	Song(File file, String title, String artistName, String originalAlbum, String genre, int runtime, int year,
+		int albumTrackNumber, int albumTracks){
+		setFile(file);
+		this.title = title;
+		this.artistName = artistName;
+		this.originalAlbum = originalAlbum;
+		this.genre = genre;
+		this.runtime = runtime;
+		this.year = year;
+		this.albumTrackNumber = albumTrackNumber;
+		this.albumTracks = albumTracks;
+	}
+
 	/**
 	* Attempts to read in information from a file and populate this object.
 	* If the file can be read, it will attempt to parse out data, if no tag data can be read, internal fields must be set manually.
@@ -54,13 +85,11 @@ public class Song extends Media {
 	public Song(File file) throws IOException{
 		if(!file.isFile())
 			throw new FileFormatException("Not a file");
-		String s = file.getName().substring(file.getName().lastIndexOf(".")+1);
-		if(!(s.equalsIgnoreCase("mp3") || s.equalsIgnoreCase("m4a") || s.equalsIgnoreCase("wma") ||
-			s.equalsIgnoreCase("acc") || s.equalsIgnoreCase("flac") || s.equalsIgnoreCase("ogg"))) {
+		if(!isSongFile(file)) {
 			throw new FileFormatException(
 				"Not an accepted File type, valid song filetypes are mp3,wma,acc,flac,ogg,m4a");
 		}
-		this.file = file;
+		setFile(file);
 		// Default the title to the name of the file
 		this.title = file.getName();
 		try{
@@ -71,21 +100,75 @@ public class Song extends Media {
 		}
 	}
 
+	/**
+	* Creates a copy of another song, with the same file and tag data.
+	*/
+	Song(Song o){
+		this(o.getFile(), o.title, o.artistName, o.originalAlbum, o.genre, o.runtime, o.year, o.albumTrackNumber, o.albumTracks);
+		setRating(o.getRating());
+	}
+
+	/**
+	* Copies this song as it is now, keeping its id and sharing its folder. Used by LibrarySnapshot, so a snapshot
+	* read on another thread never sees a song halfway through an edit.
+	*/
+	Song copy(){
+		Song copy = new Song();
+		copy.title = title;
+		copy.artistName = artistName;
+		copy.year = year;
+		copy.setRating(getRating());
+		copy.runtime = runtime;
+		copy.folder = folder;
+		copy.fileName = fileName;
+		copy.hash = hash;
+		copy.genre = genre;
+		copy.originalAlbum = originalAlbum;
+		copy.albumTrackNumber = albumTrackNumber;
+		copy.albumTracks = albumTracks;
+		copy.id = id;
+		return copy;
+	}
+
+	/**
+	* Tests whether the given file has one of the extensions accepted as a song (mp3, m4a, wma, acc, flac, ogg).
+	* This only looks at the name of the file, it does not check that the file exists or is readable.
+	* @param file the file to test
+	* @return true if the file has a song extension, false otherwise
+	*/
+	public static boolean isSongFile(File file){
+		String s = file.getName().substring(file.getName().lastIndexOf(".")+1);
+		return s.equalsIgnoreCase("mp3") || s.equalsIgnoreCase("m4a") || s.equalsIgnoreCase("wma") ||
+			s.equalsIgnoreCase("acc") || s.equalsIgnoreCase("flac") || s.equalsIgnoreCase("ogg");
+	}
+
 	/**
 	* Attempts to parse tags out of the file, such as runtime, artist, song name, date, genre, and original album.
+	* Common files are read with a FastTagReader, anything it cannot handle falls back to jaudiotagger.
 	*/
 	private void parseTags() throws CannotReadException, IOException{
+		File file = getFile();
+		TagData data = FastTagReader.read(file);
+		if(data != null){
+			this.runtime = data.getRuntime();
+			this.title = data.getTitle();
+			this.artistName = data.getArtistName();
+			this.year = data.getYear();
+			this.genre = data.getGenre();
+			this.originalAlbum = data.getOriginalAlbum();
+			this.albumTrackNumber = data.getAlbumTrackNumber();
+			this.albumTracks = data.getAlbumTracks();
+			return;
+		}
+
 		try{
-					System.out.println(1);
 			AudioFile f = AudioFileIO.read(file);
-					System.out.println("file read");
 			Tag tag = f.getTagOrCreateAndSetDefault();
 
 			if(tag == null)
 				throw new IOException("Tag missing");//TODO make this work regardless
 
 			AudioHeader head = f.getAudioHeader();
-					System.out.println("tag read");
 
 			this.runtime = head.getTrackLength();
 
@@ -110,8 +193,6 @@ public class Song extends Media {
 			}catch(NumberFormatException | UnsupportedOperationException e ){
 				this.albumTracks = 0;
 			}
-					System.out.println("fully loaded");
-
 
 		}catch(ArrayStoreException | TagException | ReadOnlyFileException | InvalidAudioFrameException e){
 			e.printStackTrace();
@@ -128,7 +209,7 @@ public class Song extends Media {
 	*/
 	public boolean writeTags(){
 		try{
-			AudioFile f = AudioFileIO.read(file);
+			AudioFile f = AudioFileIO.read(getFile());
 			Tag tag = f.getTagOrCreateAndSetDefault();
 			tag.setField(FieldKey.TITLE, this.title);
 			tag.setField(FieldKey.ARTIST, artistName);
@@ -149,6 +230,59 @@ public class Song extends Media {
 		return true;
 	}
 
+	/**
+	* Tests whether this song has exactly the same tag data as another, regardless of the files they are in.
+	*/
+	boolean hasSameTags(Song o){
+		return runtime == o.runtime && year == o.year && albumTrackNumber == o.albumTrackNumber &&
+			albumTracks == o.albumTracks && Objects.equals(title, o.title) && Objects.equals(artistName, o.artistName) &&
+			Objects.equals(originalAlbum, o.originalAlbum) && Objects.equals(genre, o.genre);
+	}
+
+	/**
+	* Points this song at the file it was moved to. The song's equals and hashCode change with it, so it must be taken
+	* out of any hash based collections first, see Library.relocateSongs.
+	*/
+	void setFile(File file){
+		this.folder = file.getParentFile();
+		this.fileName = file.getName();
+		this.hash = 0;
+	}
+
+	/**
+	* Makes this song use the pool's copies of its artist, album, genre and folder, which are the strings that repeat
+	* from song to song. Done whenever a song is added to a library or its tags change.
+	*/
+	void intern(StringPool pool){
+		this.artistName = pool.intern(artistName);
+		this.originalAlbum = pool.intern(originalAlbum);
+		this.genre = pool.intern(genre);
+		this.folder = pool.folder(folder);
+	}
+
+	/**
+	* Returns a song with no tags for the given file, to look songs up by file in hash based collections.
+	*/
+	static Song key(File file){
+		Song key = new Song();
+		key.setFile(file);
+		return key;
+	}
+
+	/**
+	* Replaces the tag data of this song with the tag data of another. The file and rating of this song are kept.
+	*/
+	void copyTagsFrom(Song o){
+		this.title = o.title;
+		this.artistName = o.artistName;
+		this.originalAlbum = o.originalAlbum;
+		this.genre = o.genre;
+		this.runtime = o.runtime;
+		this.year = o.year;
+		this.albumTrackNumber = o.albumTrackNumber;
+		this.albumTracks = o.albumTracks;
+	}
+
 	/**
 	* Returns the runtime of this song in seconds
 	*/
@@ -176,8 +310,20 @@ public class Song extends Media {
 		return out;
 	}
 
+	/**
+	* Returns the file this song is in. A new File is made each time from the folder and name, so this should not be
+	* kept around for long by anything holding on to many songs.
+	*/
 	public File getFile(){
-		return file;
+		return folder == null ? new File(fileName) : new File(folder, fileName);
+	}
+
+	/**
+	* Returns the folder of this song's file, which is the same File for every song in the folder once they are in a
+	* library, or null if the file has no folder.
+	*/
+	File getFolder(){
+		return folder;
 	}
 
 	public String getGenre(){
@@ -207,6 +353,18 @@ public class Song extends Media {
 		this.albumTrackNumber = trackNum;
 	}
 
+	/**
+	* Returns the id this song was given by its library, which stays the same when the library is saved and loaded.
+	* @return the id, or 0 if the song has never been added to a library
+	*/
+	public int getId(){
+		return id;
+	}
+
+	void setId(int id){
+		this.id = id;
+	}
+
 	/**
 	* Returns the number of tracks on the album this song is from.
 	*/
@@ -222,7 +380,11 @@ public class Song extends Media {
 	public boolean equals(Object o){
 		if(o instanceof Song){
 			// If the file is the same, the two Songs must be the same, regardless of what their fields have been changed to
-			return ((Song) o).file.equals(this.file);
+			Song s = (Song)o;
+			// Songs of the same library share their folders, so this is usually enough
+			if(folder == s.folder && fileName.equals(s.fileName))
+				return true;
+			return hashCode() == s.hashCode() && getFile().equals(s.getFile());
 		}
 		return false;
 	}
@@ -230,13 +392,42 @@ public class Song extends Media {
 	@Override
 	public int hashCode(){
 		// Because file is the only factor in equals, it should be the only factor here.
-		return this.file.hashCode();
+		int h = hash;
+		if(h == 0){
+			h = getFile().hashCode();
+			hash = h;
+		}
+		return h;
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException{
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("runtime", runtime);
+		fields.put("file", getFile());
+		fields.put("genre", genre);
+		fields.put("originalAlbum", originalAlbum);
+		fields.put("albumTrackNumber", albumTrackNumber);
+		fields.put("albumTracks", albumTracks);
+		out.writeFields();
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException{
+		ObjectInputStream.GetField fields = in.readFields();
+		runtime = fields.get("runtime", 0);
+		File file = (File)fields.get("file", null);
+		if(file == null)
+			throw new InvalidObjectException("Song has no file");
+		setFile(file);
+		genre = (String)fields.get("genre", "");
+		originalAlbum = (String)fields.get("originalAlbum", "");
+		albumTrackNumber = fields.get("albumTrackNumber", 0);
+		albumTracks = fields.get("albumTracks", 0);
 	}
 
 	@Override
 	public String toString(){
 		if(title==null || title.isBlank())
-			return file.getName();
+			return fileName;
 		return title;
 	}
 }
@@ -0,0 +1,245 @@
+package com.verban.media;
+
+import java.util.*;
+
+/**
+* The numbers and repeated strings of a library's songs kept in columns, one array per field indexed by song id,
+* so that scans, sorts and counts over a whole library read through a few arrays instead of visiting every song.
+* The strings (genre, artist and album title) are stored as codes into a dictionary per column.
+*
+* The songs themselves are still where their data lives, the Library keeps the columns in step with them as they are
+* added, edited and removed, see Library.getColumns. Like the rest of the library, columns must only be used on the
+* thread that owns it.
+*
+* Going through the songs in a column does not allocate, and is fastest straight over its array:
+*     int[] runtimes = columns.column(SongColumns.Column.RUNTIME);
+*     for(int id = 1; id < columns.idLimit(); id++){
+*         if(columns.contains(id))
+*             total += runtimes[id];
+*     }
+*
+* @author Michael Verban (2020)
+*/
+public class SongColumns {
+
+	/**
+	* The int columns. GENRE, ARTIST and ALBUM hold codes, see code and decode.
+	*/
+	public enum Column {
+		YEAR, RUNTIME, ALBUM_TRACK_NUMBER, ALBUM_TRACKS, GENRE, ARTIST, ALBUM;
+
+		boolean isEncoded(){
+			return this == GENRE || this == ARTIST || this == ALBUM;
+		}
+	}
+
+	private static final Column[] COLUMNS = Column.values();
+
+	private final int[][] ints = new int[COLUMNS.length][];
+	private double[] ratings;
+	// Ids that have a song
+	private final BitSet present = new BitSet();
+	// One past the highest id ever put
+	private int limit = 1;
+	// Number of ids in present
+	private int count = 0;
+	private final Dictionary[] dictionaries = new Dictionary[COLUMNS.length];
+
+	SongColumns(){
+		for(Column c : COLUMNS){
+			ints[c.ordinal()] = new int[16];
+			if(c.isEncoded())
+				dictionaries[c.ordinal()] = new Dictionary();
+		}
+		ratings = new double[16];
+	}
+
+	/**
+	* Adds a song, or updates it if it is already there.
+	*/
+	void put(Song song){
+		int id = song.getId();
+		if(id >= ratings.length){
+			int capacity = Math.max(id + 1, ratings.length * 2);
+			for(int i = 0; i < ints.length; i++){
+				ints[i] = Arrays.copyOf(ints[i], capacity);
+			}
+			ratings = Arrays.copyOf(ratings, capacity);
+		}
+		ints[Column.YEAR.ordinal()][id] = song.getYear();
+		ints[Column.RUNTIME.ordinal()][id] = song.getRuntime();
+		ints[Column.ALBUM_TRACK_NUMBER.ordinal()][id] = song.getAlbumTrackNumber();
+		ints[Column.ALBUM_TRACKS.ordinal()][id] = song.getAlbumTracks();
+		ints[Column.GENRE.ordinal()][id] = dictionaries[Column.GENRE.ordinal()].add(song.getGenre());
+		ints[Column.ARTIST.ordinal()][id] = dictionaries[Column.ARTIST.ordinal()].add(song.getArtistName());
+		ints[Column.ALBUM.ordinal()][id] = dictionaries[Column.ALBUM.ordinal()].add(song.getOriginalAlbum());
+		ratings[id] = song.getRating();
+		if(!present.get(id))
+			count++;
+		present.set(id);
+		limit = Math.max(limit, id + 1);
+	}
+
+	void remove(Song song){
+		if(present.get(song.getId())){
+			present.clear(song.getId());
+			count--;
+		}
+	}
+
+	/**
+	* Returns the number of songs.
+	*/
+	public int size(){
+		return count;
+	}
+
+	/**
+	* Tests whether there is a song with the id.
+	*/
+	public boolean contains(int id){
+		return id >= 0 && present.get(id);
+	}
+
+	/**
+	* Returns one more than the highest id there has been a song for. Every song's id is below it.
+	*/
+	public int idLimit(){
+		return limit;
+	}
+
+	/**
+	* Returns the first id of a song that is at least from, or -1 if there is none.
+	* For going through every song, looping up to idLimit is faster where most ids have a song.
+	*/
+	public int nextId(int from){
+		return present.nextSetBit(from);
+	}
+
+	/**
+	* Returns the value of a column for the song with the id. Ids without a song give whatever their last song had.
+	*/
+	public int get(Column column, int id){
+		return ints[column.ordinal()][id];
+	}
+
+	public double getRating(int id){
+		return ratings[id];
+	}
+
+	/**
+	* Returns the code of a string in an encoded column, or -1 if no song has ever had it.
+	* @throws IllegalArgumentException if the column is not GENRE, ARTIST or ALBUM
+	*/
+	public int code(Column column, String value){
+		return dictionary(column).codes.getOrDefault(value == null ? "" : value, -1);
+	}
+
+	/**
+	* Returns the string with a code in an encoded column.
+	* @throws IllegalArgumentException if the column is not GENRE, ARTIST or ALBUM
+	*/
+	public String decode(Column column, int code){
+		return dictionary(column).values.get(code);
+	}
+
+	/**
+	* Returns the number of codes handed out in an encoded column. Codes are not reused, so some may no longer be used.
+	* @throws IllegalArgumentException if the column is not GENRE, ARTIST or ALBUM
+	*/
+	public int codeCount(Column column){
+		return dictionary(column).values.size();
+	}
+
+	/**
+	* Counts the songs with each code of an encoded column.
+	* @return the counts, indexed by code
+	* @throws IllegalArgumentException if the column is not GENRE, ARTIST or ALBUM
+	*/
+	public int[] countByCode(Column column){
+		int[] counts = new int[codeCount(column)];
+		int[] values = ints[column.ordinal()];
+		for(int id = 1; id < limit; id++){
+			if(present.get(id))
+				counts[values[id]]++;
+		}
+		return counts;
+	}
+
+	/**
+	* Adds up a column over every song.
+	*/
+	public long sum(Column column){
+		long sum = 0;
+		int[] values = ints[column.ordinal()];
+		for(int id = 1; id < limit; id++){
+			if(present.get(id))
+				sum += values[id];
+		}
+		return sum;
+	}
+
+	/**
+	* Returns the ids of every song, sorted by a column, and by id where the column is the same.
+	* Encoded columns are sorted by code, which is the order the strings were first seen in, not alphabetical.
+	*/
+	public int[] sortedIds(Column column){
+		int[] values = ints[column.ordinal()];
+		long[] keys = new long[size()];
+		int n = 0;
+		for(int id = 1; id < limit; id++){
+			if(!present.get(id))
+				continue;
+			// Flipping the sign bit makes the signed value sort as unsigned, so negative values come first
+			keys[n++] = ((long)(values[id] ^ Integer.MIN_VALUE) << 32) | id;
+		}
+		Arrays.sort(keys);
+		int[] ids = new int[n];
+		for(int i = 0; i < n; i++){
+			ids[i] = (int)keys[i];
+		}
+		return ids;
+	}
+
+	/**
+	* Returns the array of a column, indexed by id. It is only valid until the next song is added,
+	* and must not be changed. Ids without a song hold whatever their last song had, see contains.
+	*/
+	public int[] column(Column column){
+		return ints[column.ordinal()];
+	}
+
+	/**
+	* Returns the array of ratings, indexed by id, see column.
+	*/
+	public double[] ratings(){
+		return ratings;
+	}
+
+	private Dictionary dictionary(Column column){
+		Dictionary d = dictionaries[column.ordinal()];
+		if(d == null)
+			throw new IllegalArgumentException(column + " is not an encoded column");
+		return d;
+	}
+
+	/**
+	* Gives each distinct string a code, in the order they are first added.
+	*/
+	private static class Dictionary {
+		final List<String> values = new ArrayList<String>();
+		final Map<String, Integer> codes = new HashMap<String, Integer>();
+
+		int add(String s){
+			if(s == null)
+				s = "";
+			Integer code = codes.get(s);
+			if(code == null){
+				code = values.size();
+				codes.put(s, code);
+				values.add(s);
+			}
+			return code;
+		}
+	}
+}
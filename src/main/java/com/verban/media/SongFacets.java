@@ -0,0 +1,305 @@
+package com.verban.media;
+
+import java.util.*;
+import java.util.function.IntUnaryOperator;
+
+/**
+* Counts of a library's songs by genre, decade, year, artist and album, for browsing it the way a column browser does:
+* picking a genre shows how many of its songs are from each decade, picking a decade as well narrows the artists down
+* to the ones with songs from both, and so on.
+*     Map<SongFacets.Facet, String> picked = Map.of(SongFacets.Facet.GENRE, "Jazz", SongFacets.Facet.DECADE, "1950s");
+*     Map<String, Integer> artists = facets.drillDown(picked).get(SongFacets.Facet.ARTIST);
+*
+* The songs with each value are kept, and the library keeps them in step as songs are added, edited and removed
+* (see Library.getFacets), so the counts for the whole library are there without going through any songs. Genres,
+* decades and years have few values with many songs each, so their songs are kept as bitsets of ids, and picking
+* several is just intersecting the bitsets. Artists and albums have many values with a few songs each, which would
+* waste most of a bitset, so theirs are kept as sorted ids instead. Counts within what has been picked only go through
+* the songs picked.
+*
+* Albums are counted by title, so albums of the same name by different artists are counted together, unless
+* an artist is picked as well. Like the columns they are built on, facets must only be used on the thread that owns
+* the library.
+*
+* @author Michael Verban (2020)
+*/
+public class SongFacets {
+
+	public enum Facet {
+		GENRE(SongColumns.Column.GENRE), DECADE(SongColumns.Column.YEAR), YEAR(SongColumns.Column.YEAR),
+		ARTIST(SongColumns.Column.ARTIST), ALBUM(SongColumns.Column.ALBUM);
+
+		// The column the facet's values come from
+		final SongColumns.Column column;
+
+		Facet(SongColumns.Column column){
+			this.column = column;
+		}
+
+		// Facets with few values, each holding a good part of the library, whose songs are kept as bitsets
+		boolean isDense(){
+			return this == GENRE || this == DECADE || this == YEAR;
+		}
+	}
+
+	private static final Facet[] FACETS = Facet.values();
+	// Strings are listed alphabetically, ignoring case unless that is all that differs
+	private static final Comparator<String> ALPHABETICAL = String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder());
+
+	private final SongColumns columns;
+	// The songs with each value of each facet, by key: the code in an encoded column, otherwise the year or decade
+	private final List<Map<Integer, Value>> values = new ArrayList<Map<Integer, Value>>(FACETS.length);
+
+	/**
+	* Finds the values of every song in the columns.
+	*/
+	SongFacets(SongColumns columns){
+		this.columns = columns;
+		for(int i = 0; i < FACETS.length; i++){
+			values.add(new HashMap<Integer, Value>());
+		}
+		for(int id = 1; id < columns.idLimit(); id++){
+			if(columns.contains(id))
+				add(id);
+		}
+	}
+
+	/**
+	* Adds the song with the id, as it is in the columns now.
+	*/
+	void add(int id){
+		for(Facet f : FACETS){
+			values(f).computeIfAbsent(key(f, id), k -> new Value(f)).add(id);
+		}
+	}
+
+	/**
+	* Removes the song with the id, as it is in the columns now, so this must be called before the columns change.
+	*/
+	void remove(int id){
+		if(!columns.contains(id))
+			return;
+		for(Facet f : FACETS){
+			Map<Integer, Value> facetValues = values(f);
+			int key = key(f, id);
+			Value v = facetValues.get(key);
+			if(v != null && v.remove(id) && v.count == 0)
+				facetValues.remove(key);
+		}
+	}
+
+	/**
+	* Counts the songs in the library with each value of a facet. Decades are given as "1990s".
+	* @return the counts by value, with years and decades in order and the rest alphabetical
+	*/
+	public Map<String, Integer> counts(Facet facet){
+		Map<Integer, Value> facetValues = values(facet);
+		return labelled(facet, facetValues.keySet(), key -> facetValues.get(key).count);
+	}
+
+	/**
+	* Counts the songs with each value of every facet that has not been picked, among the songs that have every
+	* value picked. Picking nothing gives the counts for the whole library.
+	* @param picked the value picked for each facet, as counts gives them
+	* @return the counts of each facet not picked, see counts. Values with no songs left are left out.
+	*/
+	public Map<Facet, Map<String, Integer>> drillDown(Map<Facet, String> picked){
+		Map<Facet, Map<String, Integer>> counts = new EnumMap<Facet, Map<String, Integer>>(Facet.class);
+		if(picked.isEmpty()){
+			for(Facet f : FACETS){
+				counts.put(f, counts(f));
+			}
+			return counts;
+		}
+		BitSet matching = matching(picked);
+		for(Facet f : FACETS){
+			if(!picked.containsKey(f))
+				counts.put(f, countWithin(f, matching));
+		}
+		return counts;
+	}
+
+	/**
+	* Returns the ids of the songs with every value picked, intersecting the songs of each value, starting from
+	* the one with the fewest. A value no song has matches nothing.
+	*/
+	public BitSet matching(Map<Facet, String> picked){
+		List<Value> chosen = new ArrayList<Value>(picked.size());
+		for(Map.Entry<Facet, String> e : picked.entrySet()){
+			Value v = find(e.getKey(), e.getValue());
+			if(v == null)
+				return new BitSet();
+			chosen.add(v);
+		}
+		if(chosen.isEmpty()){
+			BitSet all = new BitSet(columns.idLimit());
+			for(int id = columns.nextId(0); id >= 0; id = columns.nextId(id + 1)){
+				all.set(id);
+			}
+			return all;
+		}
+		chosen.sort(Comparator.comparingInt(v -> v.count));
+		BitSet matching = chosen.get(0).toBitSet();
+		for(int i = 1; i < chosen.size() && !matching.isEmpty(); i++){
+			chosen.get(i).retainIn(matching);
+		}
+		return matching;
+	}
+
+	// Counts the songs among the ids with each value of a facet, going through just those songs in their columns
+	private Map<String, Integer> countWithin(Facet facet, BitSet ids){
+		int[] column = columns.column(facet.column);
+		if(facet.column.isEncoded()){
+			int[] byCode = new int[columns.codeCount(facet.column)];
+			List<Integer> found = new ArrayList<Integer>();
+			for(int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)){
+				if(byCode[column[id]]++ == 0)
+					found.add(column[id]);
+			}
+			return labelled(facet, found, code -> byCode[code]);
+		}
+		// Years and decades are counted by where they are among the keys, as they can be far apart
+		int[] keys = new int[values(facet).size()];
+		int n = 0;
+		for(int key : values(facet).keySet()){
+			keys[n++] = key;
+		}
+		Arrays.sort(keys);
+		int[] byKey = new int[keys.length];
+		for(int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)){
+			byKey[Arrays.binarySearch(keys, keyOf(facet, column[id]))]++;
+		}
+		List<Integer> found = new ArrayList<Integer>(keys.length);
+		for(int i = 0; i < keys.length; i++){
+			if(byKey[i] > 0)
+				found.add(keys[i]);
+		}
+		return labelled(facet, found, key -> byKey[Arrays.binarySearch(keys, key)]);
+	}
+
+	/**
+	* Labels the counts of some of a facet's values. Only the values found are sorted, as a facet like the albums
+	* can have far more values than songs picked.
+	*/
+	private Map<String, Integer> labelled(Facet facet, Collection<Integer> keys, IntUnaryOperator count){
+		if(facet.column.isEncoded()){
+			Map<String, Integer> counts = new TreeMap<String, Integer>(ALPHABETICAL);
+			for(int key : keys){
+				counts.put(label(facet, key), count.applyAsInt(key));
+			}
+			return counts;
+		}
+		int[] sorted = new int[keys.size()];
+		int n = 0;
+		for(int key : keys){
+			sorted[n++] = key;
+		}
+		Arrays.sort(sorted);
+		Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+		for(int key : sorted){
+			counts.put(label(facet, key), count.applyAsInt(key));
+		}
+		return counts;
+	}
+
+	private Map<Integer, Value> values(Facet facet){
+		return values.get(facet.ordinal());
+	}
+
+	private int key(Facet facet, int id){
+		return keyOf(facet, columns.get(facet.column, id));
+	}
+
+	// The key of a value in the facet's column, which for decades is the year the decade starts
+	private static int keyOf(Facet facet, int value){
+		return facet == Facet.DECADE ? Math.floorDiv(value, 10) * 10 : value;
+	}
+
+	private String label(Facet facet, int key){
+		if(facet.column.isEncoded())
+			return columns.decode(facet.column, key);
+		return facet == Facet.DECADE ? key + "s" : Integer.toString(key);
+	}
+
+	// The songs with a value as labelled, or null if none have it
+	private Value find(Facet facet, String label){
+		if(facet.column.isEncoded()){
+			int code = columns.code(facet.column, label);
+			return code < 0 ? null : values(facet).get(code);
+		}
+		if(label == null)
+			return null;
+		if(facet == Facet.DECADE){
+			if(!label.endsWith("s"))
+				return null;
+			label = label.substring(0, label.length() - 1);
+		}
+		try{
+			return values(facet).get(Integer.parseInt(label));
+		}catch(NumberFormatException e){
+			return null;
+		}
+	}
+
+	/**
+	* The songs with one value of a facet, as a bitset for dense facets, otherwise as sorted ids.
+	*/
+	private static class Value {
+		final BitSet bits;
+		final IdSet ids;
+		int count = 0;
+
+		Value(Facet facet){
+			bits = facet.isDense() ? new BitSet() : null;
+			ids = facet.isDense() ? null : new IdSet();
+		}
+
+		void add(int id){
+			if(bits != null){
+				if(!bits.get(id)){
+					bits.set(id);
+					count++;
+				}
+			}else{
+				ids.add(id);
+				count = ids.size;
+			}
+		}
+
+		boolean remove(int id){
+			if(bits != null){
+				if(!bits.get(id))
+					return false;
+				bits.clear(id);
+				count--;
+				return true;
+			}
+			if(!ids.remove(id))
+				return false;
+			count = ids.size;
+			return true;
+		}
+
+		BitSet toBitSet(){
+			if(bits != null)
+				return (BitSet)bits.clone();
+			BitSet set = new BitSet();
+			for(int i = 0; i < ids.size; i++){
+				set.set(ids.ids[i]);
+			}
+			return set;
+		}
+
+		// Takes the songs without this value out of the bitset
+		void retainIn(BitSet matching){
+			if(bits != null){
+				matching.and(bits);
+				return;
+			}
+			for(int id = matching.nextSetBit(0); id >= 0; id = matching.nextSetBit(id + 1)){
+				if(Arrays.binarySearch(ids.ids, 0, ids.size, id) < 0)
+					matching.clear(id);
+			}
+		}
+	}
+}
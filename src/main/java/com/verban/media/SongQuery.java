@@ -0,0 +1,254 @@
+package com.verban.media;
+
+import java.io.*;
+import java.util.*;
+
+/**
+* Describes which songs of a library to find and in what order, to run with Library.query. For example the rock songs
+* from the nineties over five minutes long, best rated first:
+*     library.query(new SongQuery().genre("Rock").years(1990, 1999).runtimes(300, Integer.MAX_VALUE)
+*         .sortBy(SongQuery.Order.RATING, true).limit(100));
+*
+* A song must match every condition given. Setting the same condition again replaces it. Ranges include both ends,
+* and strings must match the song's tag exactly.
+*
+* Queries run over the library's SongColumns, starting from whichever index narrows the songs down the most,
+* see Library.explain.
+*
+* @author Michael Verban (2020)
+*/
+public class SongQuery {
+
+	/**
+	* What the songs found can be sorted by. Songs that sort the same are kept in the order they were added.
+	*/
+	public enum Order {
+		YEAR(SongColumns.Column.YEAR), RUNTIME(SongColumns.Column.RUNTIME),
+		TRACK_NUMBER(SongColumns.Column.ALBUM_TRACK_NUMBER), RATING(null);
+
+		// The column sorted by, null for the rating, which has no int column
+		final SongColumns.Column column;
+
+		Order(SongColumns.Column column){
+			this.column = column;
+		}
+	}
+
+	// The range each int column must be in, if it has one. Encoded columns are only compared by the strings below.
+	final int[] mins = new int[SongColumns.Column.values().length];
+	final int[] maxes = new int[SongColumns.Column.values().length];
+	final boolean[] ranged = new boolean[SongColumns.Column.values().length];
+	// The string each encoded column must be, if any
+	final String[] equals = new String[SongColumns.Column.values().length];
+	boolean rated = false;
+	double minRating, maxRating;
+
+	Order order = null;
+	boolean descending = false;
+	int offset = 0;
+	int limit = Integer.MAX_VALUE;
+
+	/**
+	* Creates a query for every song in the library, in the order they were added.
+	*/
+	public SongQuery(){}
+
+	/**
+	* Only finds songs from between the years given.
+	*/
+	public SongQuery years(int from, int to){
+		return range(SongColumns.Column.YEAR, from, to);
+	}
+
+	/**
+	* Only finds songs whose runtime in seconds is between the values given.
+	*/
+	public SongQuery runtimes(int min, int max){
+		return range(SongColumns.Column.RUNTIME, min, max);
+	}
+
+	/**
+	* Only finds songs with the track number given.
+	*/
+	public SongQuery trackNumber(int number){
+		return range(SongColumns.Column.ALBUM_TRACK_NUMBER, number, number);
+	}
+
+	/**
+	* Only finds songs rated between the ratings given.
+	*/
+	public SongQuery ratings(double min, double max){
+		rated = true;
+		minRating = min;
+		maxRating = max;
+		return this;
+	}
+
+	public SongQuery genre(String genre){
+		return equal(SongColumns.Column.GENRE, genre);
+	}
+
+	public SongQuery artist(String artistName){
+		return equal(SongColumns.Column.ARTIST, artistName);
+	}
+
+	public SongQuery album(String title){
+		return equal(SongColumns.Column.ALBUM, title);
+	}
+
+	/**
+	* Sorts the songs found.
+	* @param order what to sort by
+	* @param descending true for the highest first
+	*/
+	public SongQuery sortBy(Order order, boolean descending){
+		this.order = Objects.requireNonNull(order);
+		this.descending = descending;
+		return this;
+	}
+
+	/**
+	* Skips the first songs found, for paging through them.
+	*/
+	public SongQuery offset(int offset){
+		if(offset < 0)
+			throw new IllegalArgumentException("Negative offset");
+		this.offset = offset;
+		return this;
+	}
+
+	/**
+	* Returns at most this many songs.
+	*/
+	public SongQuery limit(int limit){
+		if(limit < 0)
+			throw new IllegalArgumentException("Negative limit");
+		this.limit = limit;
+		return this;
+	}
+
+	/**
+	* Tests whether a song meets every condition of this query, going by its tags rather than a library's columns.
+	*/
+	public boolean matches(Song song){
+		if(!inRange(SongColumns.Column.YEAR, song.getYear()) || !inRange(SongColumns.Column.RUNTIME, song.getRuntime())
+			|| !inRange(SongColumns.Column.ALBUM_TRACK_NUMBER, song.getAlbumTrackNumber()))
+			return false;
+		if(!same(SongColumns.Column.GENRE, song.getGenre()) || !same(SongColumns.Column.ARTIST, song.getArtistName())
+			|| !same(SongColumns.Column.ALBUM, song.getOriginalAlbum()))
+			return false;
+		return !rated || song.getRating() >= minRating && song.getRating() <= maxRating;
+	}
+
+	/**
+	* Tests whether this query only has conditions, with no order, offset or limit.
+	*/
+	public boolean isFilter(){
+		return order == null && offset == 0 && limit == Integer.MAX_VALUE;
+	}
+
+	SongQuery copy(){
+		SongQuery copy = new SongQuery();
+		System.arraycopy(mins, 0, copy.mins, 0, mins.length);
+		System.arraycopy(maxes, 0, copy.maxes, 0, maxes.length);
+		System.arraycopy(ranged, 0, copy.ranged, 0, ranged.length);
+		System.arraycopy(equals, 0, copy.equals, 0, equals.length);
+		copy.rated = rated;
+		copy.minRating = minRating;
+		copy.maxRating = maxRating;
+		copy.order = order;
+		copy.descending = descending;
+		copy.offset = offset;
+		copy.limit = limit;
+		return copy;
+	}
+
+	/*
+	The conditions are written as int #Conditions, then for each the name of its column (or RATING) and its kind,
+	then either the string it must equal, or the two ends of its range. Order, offset and limit are not written.
+	*/
+
+	private static final byte EQUALS = 1, RANGE = 2;
+
+	/**
+	* Writes the conditions of this query, for saving smart playlists.
+	*/
+	void write(DataOutput out) throws IOException{
+		int count = rated ? 1 : 0;
+		for(SongColumns.Column c : SongColumns.Column.values()){
+			if(equals[c.ordinal()] != null || ranged[c.ordinal()])
+				count++;
+		}
+		out.writeInt(count);
+		for(SongColumns.Column c : SongColumns.Column.values()){
+			if(equals[c.ordinal()] != null){
+				out.writeUTF(c.name());
+				out.writeByte(EQUALS);
+				out.writeUTF(equals[c.ordinal()]);
+			}else if(ranged[c.ordinal()]){
+				out.writeUTF(c.name());
+				out.writeByte(RANGE);
+				out.writeInt(mins[c.ordinal()]);
+				out.writeInt(maxes[c.ordinal()]);
+			}
+		}
+		if(rated){
+			out.writeUTF("RATING");
+			out.writeByte(RANGE);
+			out.writeDouble(minRating);
+			out.writeDouble(maxRating);
+		}
+	}
+
+	/**
+	* Reads conditions written by write.
+	* @throws FileFormatException if they are not conditions this version knows
+	*/
+	static SongQuery read(DataInput in) throws IOException{
+		SongQuery query = new SongQuery();
+		int count = in.readInt();
+		for(int i = 0; i < count; i++){
+			String name = in.readUTF();
+			byte kind = in.readByte();
+			if(name.equals("RATING") && kind == RANGE){
+				query.ratings(in.readDouble(), in.readDouble());
+				continue;
+			}
+			SongColumns.Column column;
+			try{
+				column = SongColumns.Column.valueOf(name);
+			}catch(IllegalArgumentException e){
+				throw new FileFormatException("Unknown query condition: " + name);
+			}
+			if(kind == EQUALS && column.isEncoded()){
+				query.equal(column, in.readUTF());
+			}else if(kind == RANGE && !column.isEncoded()){
+				query.range(column, in.readInt(), in.readInt());
+			}else{
+				throw new FileFormatException("Unknown query condition: " + name + " " + kind);
+			}
+		}
+		return query;
+	}
+
+	private boolean inRange(SongColumns.Column column, int value){
+		return !ranged[column.ordinal()] || value >= mins[column.ordinal()] && value <= maxes[column.ordinal()];
+	}
+
+	private boolean same(SongColumns.Column column, String value){
+		String wanted = equals[column.ordinal()];
+		return wanted == null || wanted.equals(value == null ? "" : value);
+	}
+
+	private SongQuery range(SongColumns.Column column, int min, int max){
+		ranged[column.ordinal()] = true;
+		mins[column.ordinal()] = min;
+		maxes[column.ordinal()] = max;
+		return this;
+	}
+
+	private SongQuery equal(SongColumns.Column column, String value){
+		equals[column.ordinal()] = value == null ? "" : value;
+		return this;
+	}
+}
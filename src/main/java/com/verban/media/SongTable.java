@@ -0,0 +1,72 @@
+package com.verban.media;
+
+import java.util.*;
+
+/**
+* Gives each song in a library an id, and finds songs by their id.
+* Ids start at 1 and are saved with the library, so a song keeps its id between runs. Playlists and albums store
+* their tracks as ids into a table rather than as references.
+*
+* Ids of removed songs are never handed out again, and the next id is saved with the library, so the table (and the
+* SongColumns, query indexes and facets indexed the same way) take space for every id ever handed out, not for the
+* songs in the library now. A library that has had many more songs added and removed than it holds would need its
+* ids renumbered to get that back, which nothing does yet.
+*
+* @author Michael Verban (2020)
+*/
+class SongTable {
+
+	private static final Song[] EMPTY = new Song[0];
+
+	// Songs indexed by id, slot 0 is never used
+	private Song[] songs = EMPTY;
+	private int nextId = 1;
+
+	/**
+	* Returns the song with the id, or null if there is none.
+	*/
+	Song get(int id){
+		return id > 0 && id < songs.length ? songs[id] : null;
+	}
+
+	/**
+	* Returns the id the next new song is given, one more than any id handed out so far.
+	*/
+	int nextId(){
+		return nextId;
+	}
+
+	/**
+	* Makes sure no id below limit is handed out to new songs, for the ids a loaded library had handed out before.
+	*/
+	void reserve(int limit){
+		nextId = Math.max(nextId, limit);
+	}
+
+	/**
+	* Adds a song to the table. The song keeps the id it already has if that id is free or already its own,
+	* otherwise it is given a new one.
+	* @return the song's id
+	*/
+	int add(Song song){
+		int id = song.getId();
+		if(id <= 0 || (get(id) != null && get(id) != song)){
+			id = nextId;
+			song.setId(id);
+		}
+		if(id >= songs.length)
+			songs = Arrays.copyOf(songs, Math.max(id + 1, songs.length * 2));
+		songs[id] = song;
+		nextId = Math.max(nextId, id + 1);
+		return id;
+	}
+
+	/**
+	* Removes a song from the table, if it is in it. Its id is not handed out again.
+	*/
+	void remove(Song song){
+		int id = song.getId();
+		if(get(id) == song)
+			songs[id] = null;
+	}
+}
@@ -0,0 +1,60 @@
+package com.verban.media;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+* Shares the strings that repeat from song to song, so a library holds one copy of each artist, album and genre
+* rather than one per song, and one copy of each folder rather than one full path per song.
+*
+* Songs keep their folder and file name apart (see Song.getFile), and the pool hands out one File per folder,
+* so the path of a folder is stored once however many songs are in it.
+*
+* Titles and file names are almost all different, so they are left alone, pooling them would only add map entries.
+* Nothing is ever dropped from a pool, a library starts a new one when it loads a file.
+*
+* Safe to use from several threads at once.
+*
+* @author Michael Verban (2020)
+*/
+class StringPool {
+
+	private final ConcurrentHashMap<String, String> strings = new ConcurrentHashMap<String, String>();
+	private final ConcurrentHashMap<File, File> folders = new ConcurrentHashMap<File, File>();
+
+	/**
+	* Returns the pooled copy of a string, adding it if it is not in the pool yet.
+	* @param s the string, may be null
+	*/
+	String intern(String s){
+		if(s == null)
+			return null;
+		String pooled = strings.putIfAbsent(s, s);
+		return pooled != null ? pooled : s;
+	}
+
+	/**
+	* Returns the pooled File for a folder, adding it if it is not in the pool yet.
+	* @param folder the folder, may be null for files with no folder
+	*/
+	File folder(File folder){
+		if(folder == null)
+			return null;
+		File pooled = folders.putIfAbsent(folder, folder);
+		return pooled != null ? pooled : folder;
+	}
+
+	/**
+	* Makes a song use the pooled copies of its artist, album, genre and folder.
+	*/
+	void intern(Song song){
+		song.intern(this);
+	}
+
+	/**
+	* Returns the number of strings and folders in the pool.
+	*/
+	int size(){
+		return strings.size() + folders.size();
+	}
+}
@@ -0,0 +1,237 @@
+package com.verban.media;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+* Remembers the tags read from song files, so that rescanning a folder only has to read the tags of files that changed.
+* Entries are keyed by the canonical path of the file, and are only used while the size and last modified time of the
+* file still match the ones recorded when its tags were read.
+*
+* Each entry also records a fingerprint of the file's contents (see fingerprint), so that a file that has gone missing
+* can be recognised somewhere else, see LibraryHealthCheck.
+*
+* The artists, albums and genres of the entries are pooled, as they repeat from file to file, see StringPool.
+*
+* The cache is safe to use from several import threads at once.
+*
+* @author Michael Verban (2020)
+*/
+public class TagCache {
+
+	// "MLTC"
+	private static final int MAGIC = 0x4D4C5443;
+	private static final int VERSION = 1;
+	// Bytes read from each of the start, middle and end of a file for its fingerprint
+	private static final int SAMPLE = 16 * 1024;
+
+	private final File cacheFile;
+	private final ConcurrentHashMap<String, Entry> entries;
+	private final StringPool strings = new StringPool();
+	private volatile boolean modified = false;
+
+	/**
+	* Creates an empty cache that is only kept in memory.
+	*/
+	public TagCache(){
+		this.cacheFile = null;
+		this.entries = new ConcurrentHashMap<String, Entry>();
+	}
+
+	/**
+	* Creates a cache stored in the given file, reading in the entries already there.
+	* If the file does not exist yet the cache starts empty, and the file is created on the first save.
+	* @param cacheFile the file to keep the cache in
+	* @throws IOException if the file exists but cannot be read
+	* @throws FileFormatException if the file is not a tag cache
+	*/
+	public TagCache(File cacheFile) throws IOException{
+		this.cacheFile = cacheFile;
+		this.entries = new ConcurrentHashMap<String, Entry>();
+		if(cacheFile.isFile()){
+			load();
+		}
+	}
+
+	/**
+	* Returns a Song for the file, using the cached tags if the file has not changed since they were read.
+	* Otherwise the tags are read from the file, and remembered for next time.
+	* @param file the song file to read
+	* @return a new Song for the file
+	* @throws IOException if the file is invalid or cannot be read
+	* @throws FileFormatException if the file is not a valid audio format
+	*/
+	public Song read(File file) throws IOException{
+		String path = file.getCanonicalPath();
+		long size = file.length();
+		long lastModified = file.lastModified();
+
+		Entry entry = entries.get(path);
+		if(entry != null && entry.size == size && entry.lastModified == lastModified){
+			return new Song(file, entry.title, entry.artistName, entry.originalAlbum, entry.genre,
+				entry.runtime, entry.year, entry.albumTrackNumber, entry.albumTracks);
+		}
+
+		Song song = new Song(file);
+		long fingerprint;
+		try{
+			fingerprint = fingerprint(file);
+		}catch(IOException e){
+			fingerprint = 0;
+		}
+		entries.put(path, new Entry(song, size, lastModified, fingerprint, strings));
+		modified = true;
+		return song;
+	}
+
+	/**
+	* Returns the size a file had when its tags were last read, whether or not it is still there.
+	* @return the size, or -1 if the file is not in the cache
+	*/
+	long recordedSize(File file) throws IOException{
+		Entry entry = entries.get(file.getCanonicalPath());
+		return entry == null ? -1 : entry.size;
+	}
+
+	/**
+	* Returns the fingerprint a file had when its tags were last read, whether or not it is still there.
+	* @return the fingerprint, or 0 if the file is not in the cache or it was not recorded
+	*/
+	long recordedFingerprint(File file) throws IOException{
+		Entry entry = entries.get(file.getCanonicalPath());
+		return entry == null ? 0 : entry.fingerprint;
+	}
+
+	/**
+	* Returns a fingerprint of the contents of a file: a checksum of its size and of a sample from its start, middle and end.
+	* A copied or moved file keeps its fingerprint, while two different recordings almost never share one, and it only
+	* reads a few blocks rather than the whole file. Editing the tags of a file changes it.
+	* @return the fingerprint, never 0
+	*/
+	static long fingerprint(File file) throws IOException{
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+			long size = channel.size();
+			CRC32 crc = new CRC32();
+			ByteBuffer sample = ByteBuffer.allocate(SAMPLE);
+			for(long start : new long[]{0, size / 2 - SAMPLE / 2, size - SAMPLE}){
+				start = Math.max(0, start);
+				sample.clear();
+				while(sample.hasRemaining() && channel.read(sample, start + sample.position()) > 0);
+				sample.flip();
+				crc.update(sample);
+			}
+			long fingerprint = crc.getValue() ^ (size << 32);
+			return fingerprint == 0 ? 1 : fingerprint;
+		}
+	}
+
+	/**
+	* Returns the number of files in the cache.
+	*/
+	public int size(){
+		return entries.size();
+	}
+
+	/**
+	* Writes the cache out to its file, if it was created with one and anything changed since it was loaded or last saved.
+	* The file is replaced atomically, so a failed save leaves the previous cache intact.
+	*/
+	public void save() throws IOException{
+		if(cacheFile == null || !modified)
+			return;
+		modified = false;
+
+		File parent = cacheFile.getAbsoluteFile().getParentFile();
+		if(parent != null)
+			parent.mkdirs();
+		File temp = new File(cacheFile.getPath() + ".tmp");
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))){
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			// Take a copy, so the count matches even if entries are added while saving
+			List<Map.Entry<String, Entry>> all = new ArrayList<Map.Entry<String, Entry>>(entries.entrySet());
+			out.writeInt(all.size());
+			for(Map.Entry<String, Entry> e : all){
+				Entry entry = e.getValue();
+				out.writeUTF(e.getKey());
+				out.writeLong(entry.size);
+				out.writeLong(entry.lastModified);
+				out.writeUTF(entry.title);
+				out.writeUTF(entry.artistName);
+				out.writeUTF(entry.originalAlbum);
+				out.writeUTF(entry.genre);
+				out.writeInt(entry.runtime);
+				out.writeInt(entry.year);
+				out.writeInt(entry.albumTrackNumber);
+				out.writeInt(entry.albumTracks);
+				out.writeLong(entry.fingerprint);
+			}
+		}catch(IOException e){
+			modified = true;
+			throw e;
+		}
+		Files.move(temp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void load() throws IOException{
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))){
+			if(in.readInt() != MAGIC)
+				throw new FileFormatException("Not a tag cache file");
+			if(in.readInt() != VERSION)
+				throw new FileFormatException("Unsupported tag cache version");
+			int count = in.readInt();
+			for(int i = 0; i < count; i++){
+				String path = in.readUTF();
+				Entry entry = new Entry();
+				entry.size = in.readLong();
+				entry.lastModified = in.readLong();
+				entry.title = in.readUTF();
+				entry.artistName = strings.intern(in.readUTF());
+				entry.originalAlbum = strings.intern(in.readUTF());
+				entry.genre = strings.intern(in.readUTF());
+				entry.runtime = in.readInt();
+				entry.year = in.readInt();
+				entry.albumTrackNumber = in.readInt();
+				entry.albumTracks = in.readInt();
+				entry.fingerprint = in.readLong();
+				entries.put(path, entry);
+			}
+		}catch(EOFException e){
+			throw new FileFormatException("Tag cache file is truncated");
+		}
+	}
+
+	/**
+	* The tags read from one file, and the size, modification time and fingerprint the file had when they were read.
+	*/
+	private static class Entry {
+		long size, lastModified, fingerprint;
+		String title, artistName, originalAlbum, genre;
+		int runtime, year, albumTrackNumber, albumTracks;
+
+		Entry(){}
+
+		Entry(Song song, long size, long lastModified, long fingerprint, StringPool strings){
+			this.size = size;
+			this.lastModified = lastModified;
+			this.fingerprint = fingerprint;
+			this.title = nonNull(song.getTitle());
+			this.artistName = strings.intern(nonNull(song.getArtistName()));
+			this.originalAlbum = strings.intern(nonNull(song.getOriginalAlbum()));
+			this.genre = strings.intern(nonNull(song.getGenre()));
+			this.runtime = song.getRuntime();
+			this.year = song.getYear();
+			this.albumTrackNumber = song.getAlbumTrackNumber();
+			this.albumTracks = song.getAlbumTracks();
+		}
+
+		private static String nonNull(String s){
+			return s == null ? "" : s;
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package com.verban.media;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Predicate;
+
+/**
+* Writes the tags of edited songs back to their files in the background.
+*
+* Each submit takes a copy of the song's tags as they are right then, so callers can carry on editing straight away.
+* Edits to a file that has not been written yet replace the waiting ones, so a file edited many times in a row is
+* only written once or twice. Writes to one file always happen in order, and are retried a few times before being
+* reported as failed.
+*
+* @author Michael Verban (2020)
+*/
+public class TagWriter {
+
+	/**
+	* Told about writes that still failed after retrying. Called from a writer thread, not the UI thread.
+	*/
+	public interface FailureListener{
+		/**
+		* @param song a copy of the song, with the tags that could not be written
+		*/
+		void failed(Song song);
+	}
+
+	private static final int MAX_ATTEMPTS = 3;
+	// Milliseconds to wait before the first retry, doubled for each one after
+	private static final long RETRY_DELAY = 250;
+
+	private final ExecutorService writers;
+	// Writes one song's tags to its file, returning false if it failed
+	private final Predicate<Song> writer;
+	// The latest tags waiting to be written for each file
+	private final Map<File, Song> pending;
+	// Files with a writer currently working through their edits
+	private final Set<File> active;
+	private volatile FailureListener failureListener;
+	private int failures = 0;
+
+	/**
+	* Creates a writer that writes up to threads files at once. Threads are only kept around while there is work.
+	*/
+	public TagWriter(int threads){
+		this(threads, Song::writeTags);
+	}
+
+	/**
+	* Creates a writer that writes tags with the writer given instead of to the files, for tests.
+	*/
+	TagWriter(int threads, Predicate<Song> writer){
+		this.writer = writer;
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 5, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), r -> {
+				Thread t = new Thread(r, "tag-writer");
+				t.setDaemon(true);
+				return t;
+			});
+		pool.allowCoreThreadTimeOut(true);
+		this.writers = pool;
+		this.pending = new HashMap<File, Song>();
+		this.active = new HashSet<File>();
+	}
+
+	/**
+	* Sets the listener told about failed writes, replacing any previous one.
+	*/
+	public void setFailureListener(FailureListener failureListener){
+		this.failureListener = failureListener;
+	}
+
+	/**
+	* Queues the current tags of the song to be written to its file.
+	*/
+	public synchronized void submit(Song song){
+		File file = song.getFile();
+		pending.put(file, new Song(song));
+		if(active.add(file)){
+			writers.execute(() -> drain(file));
+		}
+	}
+
+	/**
+	* Queues the current tags of every song to be written to their files.
+	*/
+	public synchronized void submitAll(Collection<Song> songs){
+		for(Song song : songs){
+			submit(song);
+		}
+	}
+
+	/**
+	* Returns the number of files with tags that still need writing.
+	*/
+	public synchronized int pendingCount(){
+		return active.size();
+	}
+
+	/**
+	* Returns the number of writes that have failed since this writer was created.
+	*/
+	public synchronized int failureCount(){
+		return failures;
+	}
+
+	/**
+	* Waits until every submitted edit has been written (or has failed).
+	*/
+	public synchronized void flush() throws InterruptedException{
+		while(!active.isEmpty()){
+			wait();
+		}
+	}
+
+	/**
+	* Waits until every submitted edit has been written (or has failed), or the timeout runs out.
+	* @return true if everything was written, false if the timeout ran out first.
+	*/
+	public synchronized boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException{
+		long end = System.nanoTime() + unit.toNanos(timeout);
+		while(!active.isEmpty()){
+			long left = end - System.nanoTime();
+			if(left <= 0)
+				return false;
+			TimeUnit.NANOSECONDS.timedWait(this, left);
+		}
+		return true;
+	}
+
+	/**
+	* Writes the waiting tags for a file until there are none left.
+	*/
+	private void drain(File file){
+		while(true){
+			Song tags;
+			synchronized(this){
+				tags = pending.remove(file);
+				if(tags == null){
+					active.remove(file);
+					notifyAll();
+					return;
+				}
+			}
+			if(!write(tags)){
+				synchronized(this){
+					failures++;
+				}
+				FailureListener listener = failureListener;
+				if(listener != null)
+					listener.failed(tags);
+			}
+		}
+	}
+
+	private boolean write(Song tags){
+		long delay = RETRY_DELAY;
+		for(int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++){
+			if(writer.test(tags))
+				return true;
+			if(attempt < MAX_ATTEMPTS){
+				try{
+					Thread.sleep(delay);
+				}catch(InterruptedException e){
+					return false;
+				}
+				delay *= 2;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,168 @@
+package com.verban.media;
+
+import java.util.*;
+import java.util.function.Predicate;
+import javafx.collections.*;
+
+/**
+* A list of songs stored as their ids in a SongTable, which costs 4 bytes a track rather than a reference and
+* lets the ids be saved directly. Songs added to the list are added to the table if they are not in it already.
+*
+* The list is observable, so playlists can hand it straight to the UI. Bulk changes (addAll, removeAll, removeIf,
+* setAll) are reported as a single change.
+*
+* @author Michael Verban (2020)
+*/
+class TrackList extends ObservableListBase<Song> {
+
+	private static final int[] EMPTY = new int[0];
+
+	private SongTable table;
+	private int[] ids = EMPTY;
+	private int size = 0;
+
+	TrackList(SongTable table){
+		this.table = table;
+	}
+
+	SongTable getTable(){
+		return table;
+	}
+
+	/**
+	* Moves the list to another table. Every song in the list must already be in the new table with the same id.
+	*/
+	void setTable(SongTable table){
+		this.table = table;
+	}
+
+	/**
+	* Returns a copy of the ids of the tracks, in order.
+	*/
+	int[] toIdArray(){
+		return Arrays.copyOf(ids, size);
+	}
+
+	/**
+	* Finds an id in a list kept in id order, as Arrays.binarySearch does: returns its index, or if it is not there,
+	* -(the index it would go at) - 1.
+	*/
+	int searchId(int id){
+		return Arrays.binarySearch(ids, 0, size, id);
+	}
+
+	@Override
+	public Song get(int index){
+		Objects.checkIndex(index, size);
+		return table.get(ids[index]);
+	}
+
+	@Override
+	public int size(){
+		return size;
+	}
+
+	@Override
+	public void add(int index, Song song){
+		Objects.checkIndex(index, size + 1);
+		int id = table.add(song);
+		if(size == ids.length)
+			ids = Arrays.copyOf(ids, Math.max(8, size * 2));
+		System.arraycopy(ids, index, ids, index + 1, size - index);
+		ids[index] = id;
+		size++;
+		modCount++;
+		beginChange();
+		nextAdd(index, index + 1);
+		endChange();
+	}
+
+	@Override
+	public Song set(int index, Song song){
+		Song old = get(index);
+		ids[index] = table.add(song);
+		beginChange();
+		nextSet(index, old);
+		endChange();
+		return old;
+	}
+
+	@Override
+	public Song remove(int index){
+		Song old = get(index);
+		System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+		size--;
+		modCount++;
+		beginChange();
+		nextRemove(index, old);
+		endChange();
+		return old;
+	}
+
+	@Override
+	public boolean addAll(int index, Collection<? extends Song> songs){
+		beginChange();
+		try{
+			return super.addAll(index, songs);
+		}finally{
+			endChange();
+		}
+	}
+
+	@Override
+	public boolean removeIf(Predicate<? super Song> filter){
+		beginChange();
+		try{
+			int kept = 0;
+			for(int i = 0; i < size; i++){
+				Song song = table.get(ids[i]);
+				if(filter.test(song))
+					nextRemove(kept, song);
+				else
+					ids[kept++] = ids[i];
+			}
+			boolean removed = kept < size;
+			if(removed){
+				size = kept;
+				modCount++;
+			}
+			return removed;
+		}finally{
+			endChange();
+		}
+	}
+
+	@Override
+	public boolean removeAll(Collection<?> songs){
+		return removeIf(songs::contains);
+	}
+
+	@Override
+	public boolean retainAll(Collection<?> songs){
+		return removeIf(s -> !songs.contains(s));
+	}
+
+	@Override
+	public void clear(){
+		if(size == 0)
+			return;
+		List<Song> removed = new ArrayList<Song>(this);
+		size = 0;
+		modCount++;
+		beginChange();
+		nextRemove(0, removed);
+		endChange();
+	}
+
+	@Override
+	public boolean setAll(Collection<? extends Song> songs){
+		beginChange();
+		try{
+			clear();
+			addAll(songs);
+			return true;
+		}finally{
+			endChange();
+		}
+	}
+}
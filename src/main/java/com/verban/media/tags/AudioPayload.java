@@ -0,0 +1,238 @@
+package com.verban.media.tags;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.*;
+
+/**
+* Where the audio is in a song file, leaving out its tags, so that two copies of a recording can be recognised even
+* when their tags differ. Handles the same formats as FastTagReader:
+* MP3 without its ID3v2, APEv2 and ID3v1 tags, FLAC from its first audio frame, the mdat atom of M4A,
+* and the audio pages of Ogg Vorbis (only the packet data, as the page headers number the pages from the start
+* of the file, so they change when the comment header changes size).
+* Anything else, or a file that does not look right, is taken as a whole, tags and all.
+*
+* @author Michael Verban (2020)
+*/
+public final class AudioPayload {
+
+	private static final int OGG_CAPTURE = 0x4F676753; // "OggS"
+	private static final int OGG_PAGE_HEADER = 27;
+	// Vorbis has 3 header packets before the audio
+	private static final int OGG_HEADER_PACKETS = 3;
+	// Most bytes mapped at once while hashing
+	private static final int CHUNK = 64 * 1024 * 1024;
+	private static final boolean WINDOWS = System.getProperty("os.name", "").startsWith("Windows");
+
+	private final long start, length;
+	private final boolean ogg;
+
+	private AudioPayload(long start, long length, boolean ogg){
+		this.start = start;
+		this.length = length;
+		this.ogg = ogg;
+	}
+
+	/**
+	* Finds the audio in a song file, only reading the bytes around its tags.
+	* @param file the song file
+	* @throws IOException if the file cannot be read
+	*/
+	public static AudioPayload find(File file) throws IOException{
+		String name = file.getName();
+		String ext = name.substring(name.lastIndexOf(".")+1).toLowerCase();
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+			AudioPayload found = null;
+			try{
+				switch(ext){
+					case "mp3":
+						found = mp3(channel);
+						break;
+					case "flac":
+						found = flac(channel);
+						break;
+					case "ogg":
+						found = ogg(channel);
+						break;
+					case "m4a":
+						found = mp4(channel);
+						break;
+				}
+			}catch(BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e){}
+			if(found == null || found.start < 0 || found.length < 0 || found.start + found.length > channel.size())
+				return new AudioPayload(0, channel.size(), false);
+			return found;
+		}
+	}
+
+	/**
+	* Returns the number of bytes of audio. For Ogg this includes the headers of the audio pages, which are not hashed.
+	*/
+	public long getLength(){
+		return length;
+	}
+
+	/**
+	* Hashes the audio, reading it through a memory mapping. Equal audio always gives an equal hash,
+	* and different audio of the same length gives a different one in all but about 1 in 2^64 cases.
+	* @param file the file this was found in, which must not have changed since
+	* @throws IOException if the file cannot be read
+	*/
+	public long hash(File file) throws IOException{
+		CRC32C low = new CRC32C();
+		CRC32 high = new CRC32();
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+			long end = start + length;
+			long at = start;
+			while(at < end){
+				ByteBuffer chunk = read(channel, at, (int)Math.min(CHUNK, end - at));
+				if(ogg){
+					int used = hashOggPages(chunk, at + chunk.remaining() >= end, low, high);
+					// A page bigger than a whole chunk is not Ogg, and cant be hashed anyway
+					if(used == 0)
+						throw new IOException("Bad Ogg page in " + file);
+					at += used;
+				}else{
+					at += chunk.remaining();
+					low.update(chunk.duplicate());
+					high.update(chunk);
+				}
+			}
+		}
+		return (high.getValue() << 32) | low.getValue();
+	}
+
+	// Maps part of the file, or reads it on Windows, which will not let a mapped file be changed until it is collected.
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException{
+		if(!WINDOWS)
+			return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+		return FastTagReader.readAt(channel, position, length);
+	}
+
+	// Hashes the packet data of the whole Ogg pages in a chunk, skipping the page headers, and returns how many bytes they took.
+	// A page cut off by the end of the chunk is left for the next one, unless it is cut off by the end of the file.
+	private int hashOggPages(ByteBuffer pages, boolean last, Checksum low, Checksum high){
+		int page = 0;
+		while(page + OGG_PAGE_HEADER <= pages.limit()){
+			int count = pages.get(page + 26) & 0xFF;
+			int data = page + OGG_PAGE_HEADER + count;
+			if(data > pages.limit())
+				break;
+			int size = 0;
+			for(int i = 0; i < count; i++){
+				size += pages.get(page + OGG_PAGE_HEADER + i) & 0xFF;
+			}
+			if(data + size > pages.limit())
+				break;
+			ByteBuffer packet = pages.duplicate();
+			packet.position(data).limit(data + size);
+			low.update(packet.duplicate());
+			high.update(packet);
+			page = data + size;
+		}
+		// Whatever is left at the end of the file is hashed as it is
+		if(last && page < pages.limit()){
+			ByteBuffer rest = pages.duplicate();
+			rest.position(page);
+			low.update(rest.duplicate());
+			high.update(rest);
+			page = pages.limit();
+		}
+		return page;
+	}
+
+	private static AudioPayload mp3(FileChannel channel) throws IOException{
+		long size = channel.size();
+		long start = id3v2Length(channel);
+		long end = size;
+		ByteBuffer v1 = FastTagReader.readAt(channel, end - 128, 128);
+		if(end - start >= 128 && v1.get(0) == 'T' && v1.get(1) == 'A' && v1.get(2) == 'G')
+			end -= 128;
+		// An APEv2 tag sits just before the ID3v1 tag, or at the very end
+		ByteBuffer ape = FastTagReader.readAt(channel, end - 32, 32).order(ByteOrder.LITTLE_ENDIAN);
+		if(end - start >= 32 && ape.getLong(0) == 0x5845474154455041L){ // "APETAGEX"
+			int tagSize = ape.getInt(12);
+			boolean hasHeader = (ape.getInt(20) & 0x80000000) != 0;
+			end -= tagSize + (hasHeader ? 32 : 0);
+		}
+		return new AudioPayload(start, end - start, false);
+	}
+
+	// Returns the length of the ID3v2 tag at the start of the file, 0 if there is none
+	private static long id3v2Length(FileChannel channel) throws IOException{
+		ByteBuffer header = FastTagReader.readAt(channel, 0, 10);
+		if(header.remaining() < 10 || header.get(0) != 'I' || header.get(1) != 'D' || header.get(2) != '3')
+			return 0;
+		int tagSize = (header.get(6) & 0x7F) << 21 | (header.get(7) & 0x7F) << 14 | (header.get(8) & 0x7F) << 7 | (header.get(9) & 0x7F);
+		// The footer flag in 2.4 means another 10 bytes after the tag
+		return 10 + tagSize + ((header.get(3) == 4 && (header.get(5) & 0x10) != 0) ? 10 : 0);
+	}
+
+	private static AudioPayload flac(FileChannel channel) throws IOException{
+		long position = id3v2Length(channel);
+		ByteBuffer magic = FastTagReader.readAt(channel, position, 4);
+		if(magic.remaining() < 4 || magic.getInt(0) != 0x664C6143) // "fLaC"
+			return null;
+		position += 4;
+		boolean last = false;
+		while(!last){
+			ByteBuffer header = FastTagReader.readAt(channel, position, 4);
+			if(header.remaining() < 4)
+				return null;
+			int h = header.getInt(0);
+			last = (h & 0x80000000) != 0;
+			position += 4 + (h & 0xFFFFFF);
+		}
+		return new AudioPayload(position, channel.size() - position, false);
+	}
+
+	private static AudioPayload mp4(FileChannel channel) throws IOException{
+		long position = 0;
+		long size = channel.size();
+		while(position + 8 <= size){
+			ByteBuffer header = FastTagReader.readAt(channel, position, 16);
+			long atomSize = header.getInt(0) & 0xFFFFFFFFL;
+			int type = header.getInt(4);
+			int headerLength = 8;
+			if(atomSize == 1){
+				atomSize = header.getLong(8);
+				headerLength = 16;
+			}else if(atomSize == 0){
+				atomSize = size - position;
+			}
+			if(atomSize < headerLength)
+				return null;
+			if(type == 0x6D646174) // "mdat"
+				return new AudioPayload(position + headerLength, atomSize - headerLength, false);
+			position += atomSize;
+		}
+		return null;
+	}
+
+	private static AudioPayload ogg(FileChannel channel) throws IOException{
+		long position = 0;
+		int packets = 0;
+		// The last header packet ends a page, the audio starts on the next one
+		while(packets < OGG_HEADER_PACKETS){
+			ByteBuffer header = FastTagReader.readAt(channel, position, OGG_PAGE_HEADER);
+			if(header.remaining() < OGG_PAGE_HEADER || header.getInt(0) != OGG_CAPTURE)
+				return null;
+			int count = header.get(26) & 0xFF;
+			ByteBuffer table = FastTagReader.readAt(channel, position + OGG_PAGE_HEADER, count);
+			if(table.remaining() < count)
+				return null;
+			long data = 0;
+			for(int i = 0; i < count; i++){
+				int lacing = table.get(i) & 0xFF;
+				data += lacing;
+				// A segment shorter than 255 ends a packet
+				if(lacing < 255)
+					packets++;
+			}
+			position += OGG_PAGE_HEADER + count + data;
+		}
+		return new AudioPayload(position, channel.size() - position, true);
+	}
+}
@@ -0,0 +1,130 @@
+package com.verban.media.tags;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+* Reads the tags and length of common song files directly, only touching the bytes that hold them.
+* This is much faster than having jaudiotagger parse the whole file, but only handles the common cases:
+* ID3v2 (or ID3v1) tags and Xing/VBRI/CBR lengths in MP3, Vorbis comments in FLAC and Ogg Vorbis, and iTunes atoms in M4A.
+*
+* Anything unusual, like compressed or unsynchronised ID3 frames, numeric genres, or other formats,
+* makes read return null so the caller can fall back to jaudiotagger.
+*
+* @author Michael Verban (2020)
+*/
+public final class FastTagReader {
+
+	// Tag blocks bigger than this (usually because of embedded cover art) are left to jaudiotagger.
+	static final int MAX_TAG_SIZE = 16 * 1024 * 1024;
+
+	private FastTagReader(){}
+
+	/**
+	* Reads the tags and length of a song file.
+	* @param file the song file to read
+	* @return the tags read, or null if the file is not one this can read, and needs a full parser.
+	* @throws IOException if the file cannot be read
+	*/
+	public static TagData read(File file) throws IOException{
+		String name = file.getName();
+		String ext = name.substring(name.lastIndexOf(".")+1).toLowerCase();
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+			switch(ext){
+				case "mp3":
+					return Mp3TagReader.read(channel);
+				case "flac":
+					return FlacTagReader.read(channel);
+				case "ogg":
+					return OggTagReader.read(channel);
+				case "m4a":
+					return Mp4TagReader.read(channel);
+				default:
+					return null;
+			}
+		}catch(BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e){
+			// Something in the file did not add up, let the full parser deal with it.
+			return null;
+		}
+	}
+
+	/**
+	* Reads length bytes at position in the channel, or fewer if the file ends first.
+	* The buffer returned is big endian, positioned at 0, with its limit set to the number of bytes read.
+	*/
+	static ByteBuffer readAt(FileChannel channel, long position, int length) throws IOException{
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while(buffer.hasRemaining()){
+			if(channel.read(buffer, position + buffer.position()) < 0)
+				break;
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	* Parses a Vorbis comment block (used by both FLAC and Ogg Vorbis) into data.
+	* The buffer must be positioned at the vendor string length. Returns false if the block looks invalid.
+	*/
+	static boolean readVorbisComments(ByteBuffer buffer, TagData data){
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		int vendorLength = buffer.getInt();
+		if(vendorLength < 0 || vendorLength > buffer.remaining())
+			return false;
+		buffer.position(buffer.position() + vendorLength);
+		int count = buffer.getInt();
+		if(count < 0)
+			return false;
+
+		String trackTotal = null, totalTracks = null;
+		for(int i = 0; i < count; i++){
+			int length = buffer.getInt();
+			if(length < 0 || length > buffer.remaining())
+				return false;
+			byte[] bytes = new byte[length];
+			buffer.get(bytes);
+			String comment = new String(bytes, StandardCharsets.UTF_8);
+			int equals = comment.indexOf('=');
+			if(equals < 0)
+				continue;
+			String key = comment.substring(0, equals).toUpperCase();
+			String value = comment.substring(equals + 1);
+			// Only the first value of each field is used.
+			switch(key){
+				case "TITLE":
+					if(data.title.isEmpty()) data.title = value;
+					break;
+				case "ARTIST":
+					if(data.artistName.isEmpty()) data.artistName = value;
+					break;
+				case "ALBUM":
+					if(data.originalAlbum.isEmpty()) data.originalAlbum = value;
+					break;
+				case "GENRE":
+					if(data.genre.isEmpty()) data.genre = value;
+					break;
+				case "DATE":
+					if(data.year == 0) data.setYear(value);
+					break;
+				case "TRACKNUMBER":
+					if(data.albumTrackNumber == 0) data.setTrack(value);
+					break;
+				case "TRACKTOTAL":
+					if(trackTotal == null) trackTotal = value;
+					break;
+				case "TOTALTRACKS":
+					if(totalTracks == null) totalTracks = value;
+					break;
+			}
+		}
+		if(trackTotal != null){
+			data.albumTracks = TagData.leadingNumber(trackTotal);
+		}else if(totalTracks != null){
+			data.albumTracks = TagData.leadingNumber(totalTracks);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,60 @@
+package com.verban.media.tags;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+* Reads the STREAMINFO and VORBIS_COMMENT metadata blocks at the start of a FLAC file.
+*
+* @author Michael Verban (2020)
+*/
+class FlacTagReader {
+
+	private static final int STREAMINFO = 0, VORBIS_COMMENT = 4;
+
+	private FlacTagReader(){}
+
+	static TagData read(FileChannel channel) throws IOException{
+		ByteBuffer magic = FastTagReader.readAt(channel, 0, 4);
+		// Files with an ID3 tag stuck on the front are left to jaudiotagger
+		if(magic.remaining() < 4 || magic.getInt(0) != 0x664C6143) // "fLaC"
+			return null;
+
+		TagData data = new TagData();
+		boolean foundInfo = false;
+		long position = 4;
+		boolean last = false;
+		while(!last){
+			ByteBuffer header = FastTagReader.readAt(channel, position, 4);
+			if(header.remaining() < 4)
+				return null;
+			int h = header.getInt(0);
+			last = (h & 0x80000000) != 0;
+			int type = (h >> 24) & 0x7F;
+			int length = h & 0xFFFFFF;
+			position += 4;
+
+			if(type == STREAMINFO){
+				ByteBuffer info = FastTagReader.readAt(channel, position, 18);
+				if(info.remaining() < 18)
+					return null;
+				// 20 bits sample rate, 3 bits channels, 5 bits bits per sample, 36 bits total samples
+				long packed = info.getLong(10);
+				int sampleRate = (int)(packed >>> 44);
+				long totalSamples = packed & 0xFFFFFFFFFL;
+				if(sampleRate == 0)
+					return null;
+				data.runtime = (int)Math.round(totalSamples / (double)sampleRate);
+				foundInfo = true;
+			}else if(type == VORBIS_COMMENT){
+				if(length > FastTagReader.MAX_TAG_SIZE)
+					return null;
+				if(!FastTagReader.readVorbisComments(FastTagReader.readAt(channel, position, length), data))
+					return null;
+			}
+			position += length;
+		}
+		return foundInfo ? data : null;
+	}
+}
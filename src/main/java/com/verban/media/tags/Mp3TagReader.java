@@ -0,0 +1,355 @@
+package com.verban.media.tags;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.*;
+
+/**
+* Reads ID3v2.2-2.4 tags (or an ID3v1 tag if there is no ID3v2 tag), and works out the length of an MP3
+* from the Xing/Info or VBRI header of its first frame, or from its bitrate if it has neither.
+*
+* @author Michael Verban (2020)
+*/
+class Mp3TagReader {
+
+	// Bitrates in kbps, by [version row][layer - 1][index]. Row 0 is MPEG 1, row 1 is MPEG 2 and 2.5.
+	private static final int[][][] BITRATES = {
+		{
+			{0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448, 0},
+			{0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384, 0},
+			{0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 0}
+		},
+		{
+			{0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256, 0},
+			{0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160, 0},
+			{0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160, 0}
+		}
+	};
+	// Sample rates by [version bits][index], version bits 1 is reserved.
+	private static final int[][] SAMPLE_RATES = {
+		{11025, 12000, 8000},
+		{0, 0, 0},
+		{22050, 24000, 16000},
+		{44100, 48000, 32000}
+	};
+	// The ID3v1 genres everyone agrees on, other numbers are left to jaudiotagger.
+	private static final String[] GENRES = {"Blues", "Classic Rock", "Country", "Dance", "Disco", "Funk", "Grunge",
+		"Hip-Hop", "Jazz", "Metal", "New Age", "Oldies", "Other", "Pop", "R&B", "Rap", "Reggae", "Rock", "Techno",
+		"Industrial", "Alternative", "Ska", "Death Metal", "Pranks", "Soundtrack", "Euro-Techno", "Ambient",
+		"Trip-Hop", "Vocal", "Jazz+Funk", "Fusion", "Trance", "Classical", "Instrumental", "Acid", "House", "Game",
+		"Sound Clip", "Gospel", "Noise", "AlternRock", "Bass", "Soul", "Punk", "Space", "Meditative",
+		"Instrumental Pop", "Instrumental Rock", "Ethnic", "Gothic", "Darkwave", "Techno-Industrial", "Electronic",
+		"Pop-Folk", "Eurodance", "Dream", "Southern Rock", "Comedy", "Cult", "Gangsta", "Top 40", "Christian Rap",
+		"Pop/Funk", "Jungle", "Native American", "Cabaret", "New Wave", "Psychadelic", "Rave", "Showtunes",
+		"Trailer", "Lo-Fi", "Tribal", "Acid Punk", "Acid Jazz", "Polka", "Retro", "Musical", "Rock & Roll",
+		"Hard Rock"};
+
+	// How far past the tag to look for the first frame
+	private static final int FRAME_SEARCH = 64 * 1024;
+
+	private Mp3TagReader(){}
+
+	static TagData read(FileChannel channel) throws IOException{
+		TagData data = new TagData();
+		long audioStart = 0;
+
+		ByteBuffer header = FastTagReader.readAt(channel, 0, 10);
+		if(header.remaining() == 10 && header.get(0) == 'I' && header.get(1) == 'D' && header.get(2) == '3'){
+			int tagSize = syncsafe(header, 6);
+			if(tagSize > FastTagReader.MAX_TAG_SIZE)
+				return null;
+			// The footer flag in 2.4 means another 10 bytes after the tag
+			audioStart = 10 + tagSize + ((header.get(3) == 4 && (header.get(5) & 0x10) != 0) ? 10 : 0);
+			if(!readId3v2(header, FastTagReader.readAt(channel, 10, tagSize), data))
+				return null;
+		}else if(!readId3v1(channel, data)){
+			return null;
+		}
+
+		int runtime = readLength(channel, audioStart);
+		if(runtime < 0)
+			return null;
+		data.runtime = runtime;
+		return data;
+	}
+
+	/**
+	* Reads the frames of an ID3v2 tag. Returns false if the tag uses anything not supported here.
+	*/
+	private static boolean readId3v2(ByteBuffer header, ByteBuffer tag, TagData data){
+		int version = header.get(3);
+		int flags = header.get(5);
+		// Unsynchronisation, or extended headers
+		if(version < 2 || version > 4 || (flags & 0xC0) != 0)
+			return false;
+
+		int idLength = version == 2 ? 3 : 4;
+		int headerLength = version == 2 ? 6 : 10;
+		while(tag.remaining() >= headerLength){
+			if(tag.get(tag.position()) == 0) // Padding
+				break;
+			byte[] idBytes = new byte[idLength];
+			tag.get(idBytes);
+			String id = new String(idBytes, StandardCharsets.ISO_8859_1);
+			int size;
+			int frameFlags = 0;
+			if(version == 2){
+				size = (tag.get() & 0xFF) << 16 | (tag.get() & 0xFF) << 8 | (tag.get() & 0xFF);
+			}else{
+				size = version == 4 ? syncsafe(tag, tag.position()) : tag.getInt(tag.position());
+				tag.position(tag.position() + 4);
+				frameFlags = tag.getShort() & 0xFFFF;
+			}
+			if(size < 0 || size > tag.remaining())
+				return false;
+
+			ByteBuffer body = tag.slice();
+			body.limit(size);
+			tag.position(tag.position() + size);
+
+			String field = fieldFor(id);
+			if(field == null)
+				continue;
+			// Compression, encryption, grouping, unsynchronisation, data length (2.4 and 2.3 flag layouts)
+			if((version == 4 && (frameFlags & 0x004F) != 0) || (version == 3 && (frameFlags & 0x00E0) != 0))
+				return false;
+
+			String value = readText(body);
+			if(value == null)
+				return false;
+			switch(field){
+				case "title":
+					data.title = value;
+					break;
+				case "artist":
+					data.artistName = value;
+					break;
+				case "album":
+					data.originalAlbum = value;
+					break;
+				case "genre":
+					// Numeric genres like "(17)" or "17" need a lookup table, leave them to jaudiotagger
+					if(value.startsWith("(") || (!value.isEmpty() && TagData.leadingNumber(value) > 0))
+						return false;
+					data.genre = value;
+					break;
+				case "year":
+					data.setYear(value);
+					break;
+				case "track":
+					data.setTrack(value);
+					break;
+			}
+		}
+		return true;
+	}
+
+	/**
+	* Returns which field an ID3v2 frame holds, or null if it is not one we use.
+	*/
+	private static String fieldFor(String id){
+		switch(id){
+			case "TIT2": case "TT2":
+				return "title";
+			case "TPE1": case "TP1":
+				return "artist";
+			case "TALB": case "TAL":
+				return "album";
+			case "TCON": case "TCO":
+				return "genre";
+			case "TYER": case "TDRC": case "TYE":
+				return "year";
+			case "TRCK": case "TRK":
+				return "track";
+			default:
+				return null;
+		}
+	}
+
+	/**
+	* Decodes the first value in an ID3v2 text frame, or returns null for an unknown encoding.
+	*/
+	private static String readText(ByteBuffer body){
+		if(!body.hasRemaining())
+			return "";
+		int encoding = body.get();
+		Charset charset;
+		int terminator = 1;
+		switch(encoding){
+			case 0:
+				charset = StandardCharsets.ISO_8859_1;
+				break;
+			case 1:
+				charset = StandardCharsets.UTF_16;
+				terminator = 2;
+				break;
+			case 2:
+				charset = StandardCharsets.UTF_16BE;
+				terminator = 2;
+				break;
+			case 3:
+				charset = StandardCharsets.UTF_8;
+				break;
+			default:
+				return null;
+		}
+		// Multiple values are separated by terminators, only take the first.
+		int start = body.position();
+		int end = start;
+		while(end + terminator <= body.limit()){
+			boolean zero = body.get(end) == 0 && (terminator == 1 || body.get(end + 1) == 0);
+			if(zero)
+				break;
+			end += terminator;
+		}
+		if(end + terminator > body.limit())
+			end = body.limit();
+		byte[] bytes = new byte[end - start];
+		body.get(bytes);
+		return new String(bytes, charset);
+	}
+
+	/**
+	* Reads an ID3v1 tag from the end of the file, if there is one. Returns false if its genre needs a full parser.
+	*/
+	private static boolean readId3v1(FileChannel channel, TagData data) throws IOException{
+		long size = channel.size();
+		if(size < 128)
+			return true;
+		ByteBuffer tag = FastTagReader.readAt(channel, size - 128, 128);
+		if(tag.get(0) != 'T' || tag.get(1) != 'A' || tag.get(2) != 'G')
+			return true;
+
+		data.title = v1Text(tag, 3, 30);
+		data.artistName = v1Text(tag, 33, 30);
+		data.originalAlbum = v1Text(tag, 63, 30);
+		data.setYear(v1Text(tag, 93, 4));
+		// ID3v1.1 puts the track number in the last byte of the comment
+		if(tag.get(125) == 0 && tag.get(126) != 0)
+			data.albumTrackNumber = tag.get(126) & 0xFF;
+		int genre = tag.get(127) & 0xFF;
+		if(genre < GENRES.length){
+			data.genre = GENRES[genre];
+		}else if(genre != 0xFF){
+			return false;
+		}
+		return true;
+	}
+
+	private static String v1Text(ByteBuffer tag, int offset, int length){
+		int end = offset;
+		while(end < offset + length && tag.get(end) != 0)
+			end++;
+		byte[] bytes = new byte[end - offset];
+		tag.position(offset);
+		tag.get(bytes);
+		return new String(bytes, StandardCharsets.ISO_8859_1).trim();
+	}
+
+	/**
+	* Works out the length in seconds of the audio starting at audioStart, or returns -1 if no valid frame is found.
+	*/
+	private static int readLength(FileChannel channel, long audioStart) throws IOException{
+		ByteBuffer search = FastTagReader.readAt(channel, audioStart, FRAME_SEARCH);
+		for(int i = 0; i + 4 <= search.limit(); i++){
+			Frame frame = Frame.parse(search.getInt(i));
+			if(frame == null)
+				continue;
+			// Make sure this was not a false sync, by checking the next frame lines up.
+			long next = audioStart + i + frame.length;
+			ByteBuffer nextHeader = FastTagReader.readAt(channel, next, 4);
+			if(next < channel.size() && (nextHeader.remaining() < 4 || Frame.parse(nextHeader.getInt(0)) == null))
+				continue;
+
+			ByteBuffer first = FastTagReader.readAt(channel, audioStart + i, Math.min(frame.length, 200));
+			long frames = vbrFrameCount(first, frame);
+			if(frames > 0){
+				// Like jaudiotagger, MP3 lengths are truncated, not rounded.
+				return (int)(frames * frame.samples / (double)frame.sampleRate);
+			}
+
+			// Constant bitrate, so the length is just the size of the audio over the bitrate.
+			long audioBytes = channel.size() - (audioStart + i);
+			ByteBuffer v1 = FastTagReader.readAt(channel, channel.size() - 128, 3);
+			if(v1.remaining() == 3 && v1.get(0) == 'T' && v1.get(1) == 'A' && v1.get(2) == 'G')
+				audioBytes -= 128;
+			return (int)(audioBytes * 8 / (frame.bitrate * 1000.0));
+		}
+		return -1;
+	}
+
+	/**
+	* Returns the number of frames from the Xing/Info or VBRI header in the first frame, or 0 if there is none.
+	*/
+	private static long vbrFrameCount(ByteBuffer first, Frame frame){
+		int xing = 4 + frame.sideInfoLength();
+		if(first.limit() >= xing + 12){
+			int tag = first.getInt(xing);
+			if(tag == 0x58696E67 || tag == 0x496E666F){ // "Xing" or "Info"
+				int flags = first.getInt(xing + 4);
+				if((flags & 1) != 0)
+					return first.getInt(xing + 8) & 0xFFFFFFFFL;
+				return 0;
+			}
+		}
+		if(first.limit() >= 36 + 18 && first.getInt(36) == 0x56425249){ // "VBRI"
+			return first.getInt(36 + 14) & 0xFFFFFFFFL;
+		}
+		return 0;
+	}
+
+	/**
+	* Reads a 28 bit syncsafe integer at index.
+	*/
+	private static int syncsafe(ByteBuffer b, int index){
+		return (b.get(index) & 0x7F) << 21 | (b.get(index + 1) & 0x7F) << 14 | (b.get(index + 2) & 0x7F) << 7 | (b.get(index + 3) & 0x7F);
+	}
+
+	/**
+	* The parts of an MPEG audio frame header needed to find the length.
+	*/
+	private static class Frame {
+		boolean mpeg1;
+		boolean mono;
+		int bitrate, sampleRate, samples, length;
+
+		/**
+		* Parses a frame header, or returns null if it is not a valid one.
+		*/
+		static Frame parse(int header){
+			if((header & 0xFFE00000) != 0xFFE00000)
+				return null;
+			int versionBits = (header >> 19) & 3;
+			int layer = 4 - ((header >> 17) & 3);
+			int bitrateIndex = (header >> 12) & 0xF;
+			int sampleRateIndex = (header >> 10) & 3;
+			if(versionBits == 1 || layer == 4 || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3)
+				return null;
+
+			Frame f = new Frame();
+			f.mpeg1 = versionBits == 3;
+			f.mono = ((header >> 6) & 3) == 3;
+			f.bitrate = BITRATES[f.mpeg1 ? 0 : 1][layer - 1][bitrateIndex];
+			f.sampleRate = SAMPLE_RATES[versionBits][sampleRateIndex];
+			int padding = (header >> 9) & 1;
+			if(layer == 1){
+				f.samples = 384;
+				f.length = (12 * f.bitrate * 1000 / f.sampleRate + padding) * 4;
+			}else{
+				f.samples = (layer == 3 && !f.mpeg1) ? 576 : 1152;
+				f.length = f.samples / 8 * f.bitrate * 1000 / f.sampleRate + padding;
+			}
+			return f;
+		}
+
+		/**
+		* Length of the side information after the header, which is where a Xing header starts.
+		*/
+		int sideInfoLength(){
+			if(mpeg1)
+				return mono ? 17 : 32;
+			return mono ? 9 : 17;
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package com.verban.media.tags;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+* Reads the length from the mvhd atom, and iTunes style tags from the moov/udta/meta/ilst atoms of an M4A file.
+* Only the moov atom is read, so the audio data is skipped over no matter where it is in the file.
+*
+* @author Michael Verban (2020)
+*/
+class Mp4TagReader {
+
+	private static final int MOOV = 0x6D6F6F76, MVHD = 0x6D766864, UDTA = 0x75647461, META = 0x6D657461,
+		ILST = 0x696C7374, DATA = 0x64617461, TRKN = 0x74726B6E, GNRE = 0x676E7265;
+	// The iTunes text atoms start with a copyright sign
+	private static final int NAM = 0xA96E616D, ART = 0xA9415254, ALB = 0xA9616C62, DAY = 0xA9646179, GEN = 0xA967656E;
+
+	private Mp4TagReader(){}
+
+	static TagData read(FileChannel channel) throws IOException{
+		// Find the moov atom at the top level of the file
+		long position = 0;
+		long size = channel.size();
+		while(position + 8 <= size){
+			ByteBuffer header = FastTagReader.readAt(channel, position, 16);
+			long atomSize = header.getInt(0) & 0xFFFFFFFFL;
+			int type = header.getInt(4);
+			int headerLength = 8;
+			if(atomSize == 1){
+				atomSize = header.getLong(8);
+				headerLength = 16;
+			}else if(atomSize == 0){
+				atomSize = size - position;
+			}
+			if(atomSize < headerLength)
+				return null;
+
+			if(type == MOOV){
+				if(atomSize > FastTagReader.MAX_TAG_SIZE)
+					return null;
+				ByteBuffer moov = FastTagReader.readAt(channel, position + headerLength, (int)(atomSize - headerLength));
+				return readMoov(moov);
+			}
+			position += atomSize;
+		}
+		return null;
+	}
+
+	private static TagData readMoov(ByteBuffer moov){
+		TagData data = new TagData();
+		boolean foundLength = false;
+		ByteBuffer mvhd = child(moov, MVHD);
+		if(mvhd != null){
+			int version = mvhd.get(0);
+			long timescale, duration;
+			if(version == 1){
+				timescale = mvhd.getInt(20) & 0xFFFFFFFFL;
+				duration = mvhd.getLong(24);
+			}else{
+				timescale = mvhd.getInt(12) & 0xFFFFFFFFL;
+				duration = mvhd.getInt(16) & 0xFFFFFFFFL;
+			}
+			if(timescale > 0){
+				data.runtime = (int)Math.round(duration / (double)timescale);
+				foundLength = true;
+			}
+		}
+		if(!foundLength)
+			return null;
+
+		ByteBuffer udta = child(moov, UDTA);
+		ByteBuffer meta = udta == null ? null : child(udta, META);
+		if(meta == null) // No tags at all
+			return data;
+		// meta is a full atom, with 4 bytes of version and flags before its children
+		meta.position(4);
+		ByteBuffer ilst = child(meta.slice(), ILST);
+		if(ilst == null)
+			return data;
+
+		while(ilst.remaining() >= 8){
+			int itemSize = ilst.getInt(ilst.position());
+			int itemType = ilst.getInt(ilst.position() + 4);
+			if(itemSize < 8 || itemSize > ilst.remaining())
+				return null;
+			ByteBuffer item = ilst.slice();
+			item.position(8);
+			item.limit(itemSize);
+			ilst.position(ilst.position() + itemSize);
+
+			ByteBuffer value = child(item.slice(), DATA);
+			if(value == null || value.limit() < 8)
+				continue;
+			// 4 bytes of type and flags, then 4 bytes of locale
+			value.position(8);
+			switch(itemType){
+				case NAM:
+					data.title = text(value);
+					break;
+				case ART:
+					data.artistName = text(value);
+					break;
+				case ALB:
+					data.originalAlbum = text(value);
+					break;
+				case GEN:
+					data.genre = text(value);
+					break;
+				case DAY:
+					data.setYear(text(value));
+					break;
+				case TRKN:
+					if(value.remaining() >= 6){
+						data.albumTrackNumber = value.getShort(value.position() + 2) & 0xFFFF;
+						data.albumTracks = value.getShort(value.position() + 4) & 0xFFFF;
+					}
+					break;
+				case GNRE:
+					// A numeric ID3 genre, which needs jaudiotagger's table
+					return null;
+			}
+		}
+		return data;
+	}
+
+	/**
+	* Finds the first child atom of the given type in parent (from its current position),
+	* returning a buffer over just its contents, or null if there is none.
+	*/
+	private static ByteBuffer child(ByteBuffer parent, int type){
+		int position = parent.position();
+		while(position + 8 <= parent.limit()){
+			long size = parent.getInt(position) & 0xFFFFFFFFL;
+			if(size < 8 || position + size > parent.limit())
+				return null;
+			if(parent.getInt(position + 4) == type){
+				ByteBuffer contents = parent.duplicate();
+				contents.position(position + 8);
+				contents.limit((int)(position + size));
+				return contents.slice();
+			}
+			position += size;
+		}
+		return null;
+	}
+
+	private static String text(ByteBuffer value){
+		byte[] bytes = new byte[value.remaining()];
+		value.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
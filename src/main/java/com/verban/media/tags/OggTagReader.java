@@ -0,0 +1,124 @@
+package com.verban.media.tags;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+/**
+* Reads the identification and comment headers at the start of an Ogg Vorbis file,
+* and the granule position of its last page for the length.
+*
+* @author Michael Verban (2020)
+*/
+class OggTagReader {
+
+	private static final int CAPTURE = 0x4F676753; // "OggS"
+	private static final int PAGE_HEADER = 27;
+	// How far from the end of the file to look for the last page
+	private static final int LAST_PAGE_SEARCH = 64 * 1024;
+
+	private OggTagReader(){}
+
+	static TagData read(FileChannel channel) throws IOException{
+		PacketReader packets = new PacketReader(channel);
+		ByteBuffer identification = packets.next();
+		if(identification == null || !isVorbisHeader(identification, 1))
+			return null;
+		int sampleRate = identification.order(ByteOrder.LITTLE_ENDIAN).getInt(12);
+
+		ByteBuffer comments = packets.next();
+		if(comments == null || !isVorbisHeader(comments, 3))
+			return null;
+		comments.position(7);
+		TagData data = new TagData();
+		if(!FastTagReader.readVorbisComments(comments, data))
+			return null;
+
+		long samples = lastGranule(channel);
+		if(samples < 0 || sampleRate <= 0)
+			return null;
+		data.runtime = (int)Math.round(samples / (double)sampleRate);
+		return data;
+	}
+
+	/**
+	* Tests that a packet is a Vorbis header of the given type, so Opus, Speex, and FLAC in Ogg are left to jaudiotagger.
+	*/
+	private static boolean isVorbisHeader(ByteBuffer packet, int type){
+		return packet.limit() >= 16 && packet.get(0) == type && packet.get(1) == 'v' && packet.get(2) == 'o' &&
+			packet.get(3) == 'r' && packet.get(4) == 'b' && packet.get(5) == 'i' && packet.get(6) == 's';
+	}
+
+	/**
+	* Finds the granule position (total samples) of the last page in the file, or -1 if it cannot be found.
+	*/
+	private static long lastGranule(FileChannel channel) throws IOException{
+		long size = channel.size();
+		long start = Math.max(0, size - LAST_PAGE_SEARCH);
+		ByteBuffer tail = FastTagReader.readAt(channel, start, (int)(size - start));
+		for(int i = tail.limit() - PAGE_HEADER; i >= 0; i--){
+			if(tail.getInt(i) == CAPTURE){
+				return tail.order(ByteOrder.LITTLE_ENDIAN).getLong(i + 6);
+			}
+		}
+		return -1;
+	}
+
+	/**
+	* Reassembles packets from the pages at the start of the file.
+	*/
+	private static class PacketReader {
+		private FileChannel channel;
+		private long pagePosition = 0;
+		// Segment table of the current page, and which segment is next
+		private byte[] segments = new byte[0];
+		private int segment = 0;
+		private long dataPosition;
+
+		PacketReader(FileChannel channel){
+			this.channel = channel;
+		}
+
+		/**
+		* Returns the next packet, or null if the pages are invalid or it is too big.
+		*/
+		ByteBuffer next() throws IOException{
+			ByteArrayOutputStream packet = new ByteArrayOutputStream();
+			while(true){
+				if(segment >= segments.length && !nextPage())
+					return null;
+				int length = segments[segment++] & 0xFF;
+				ByteBuffer bytes = FastTagReader.readAt(channel, dataPosition, length);
+				if(bytes.remaining() < length)
+					return null;
+				packet.write(bytes.array(), 0, length);
+				dataPosition += length;
+				if(packet.size() > FastTagReader.MAX_TAG_SIZE)
+					return null;
+				// A segment shorter than 255 ends the packet
+				if(length < 255)
+					return ByteBuffer.wrap(packet.toByteArray());
+			}
+		}
+
+		private boolean nextPage() throws IOException{
+			ByteBuffer header = FastTagReader.readAt(channel, pagePosition, PAGE_HEADER);
+			if(header.remaining() < PAGE_HEADER || header.getInt(0) != CAPTURE)
+				return false;
+			int count = header.get(26) & 0xFF;
+			ByteBuffer table = FastTagReader.readAt(channel, pagePosition + PAGE_HEADER, count);
+			if(table.remaining() < count)
+				return false;
+			segments = new byte[count];
+			table.get(segments);
+			segment = 0;
+			dataPosition = pagePosition + PAGE_HEADER + count;
+			long pageLength = 0;
+			for(byte b : segments){
+				pageLength += b & 0xFF;
+			}
+			pagePosition = dataPosition + pageLength;
+			return true;
+		}
+	}
+}
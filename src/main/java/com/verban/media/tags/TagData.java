@@ -0,0 +1,88 @@
+package com.verban.media.tags;
+
+/**
+* The tag fields and length read from a song file by a FastTagReader.
+* Text fields that the file does not have are empty strings, and numbers it does not have are 0.
+*
+* @author Michael Verban (2020)
+*/
+public class TagData {
+
+	String title = "";
+	String artistName = "";
+	String originalAlbum = "";
+	String genre = "";
+	int year = 0;
+	int albumTrackNumber = 0;
+	int albumTracks = 0;
+	// Length in seconds
+	int runtime = 0;
+
+	public String getTitle(){
+		return title;
+	}
+
+	public String getArtistName(){
+		return artistName;
+	}
+
+	public String getOriginalAlbum(){
+		return originalAlbum;
+	}
+
+	public String getGenre(){
+		return genre;
+	}
+
+	public int getYear(){
+		return year;
+	}
+
+	public int getAlbumTrackNumber(){
+		return albumTrackNumber;
+	}
+
+	public int getAlbumTracks(){
+		return albumTracks;
+	}
+
+	/**
+	* Returns the length of the song in seconds.
+	*/
+	public int getRuntime(){
+		return runtime;
+	}
+
+	/**
+	* Sets the year from a date, which may be just a year, or a full date like 2020-08-04.
+	*/
+	void setYear(String date){
+		year = leadingNumber(date);
+	}
+
+	/**
+	* Sets the track number, and total if it is there, from text like "3" or "3/12".
+	*/
+	void setTrack(String track){
+		albumTrackNumber = leadingNumber(track);
+		int slash = track.indexOf('/');
+		if(slash >= 0)
+			albumTracks = leadingNumber(track.substring(slash + 1));
+	}
+
+	/**
+	* Parses the number at the start of the text, ignoring leading spaces, or returns 0 if there is none.
+	*/
+	static int leadingNumber(String text){
+		int n = 0;
+		int i = 0;
+		while(i < text.length() && text.charAt(i) == ' ')
+			i++;
+		int start = i;
+		while(i < text.length() && i - start < 9 && Character.isDigit(text.charAt(i))){
+			n = n * 10 + Character.digit(text.charAt(i), 10);
+			i++;
+		}
+		return n;
+	}
+}
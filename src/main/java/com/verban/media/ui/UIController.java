@@ -3,8 +3,11 @@ package com.verban.media.ui;
 import com.verban.media.*;
 
 import javafx.beans.binding.Bindings;
+import javafx.beans.property.*;
 
 import javafx.application.Platform;
+import javafx.concurrent.Task;
+import javafx.concurrent.Worker;
 import javafx.scene.control.*;
 import javafx.scene.control.cell.PropertyValueFactory;
 import javafx.scene.layout.*;
@@ -27,6 +30,10 @@ import java.util.*;
 public class UIController{
 	//Static variables for the GUI
 	private static final String APP_TITLE = "Media Library";
+	// Most songs shown for a search
+	private static final int SEARCH_LIMIT = 1000;
+	// Seconds between autosaves of the library file
+	private static final int AUTOSAVE_INTERVAL = 30;
 
 	private Scene mainScene;
 	private Stage mainStage;
@@ -34,6 +41,8 @@ public class UIController{
 	@FXML
 	private TabPane tabs;
 
+	@FXML
+	private TextField searchField;
 	@FXML
 	private TableView<Song> songList;
 	@FXML
@@ -55,6 +64,19 @@ public class UIController{
 
 	// The currently loaded library.
 	private Library library;
+	// Every change to the library from another thread goes through this, onto the UI thread.
+	private LibraryApplier applier;
+	// Tags of files that have been imported before, so they dont need reading again.
+	private TagCache tagCache;
+	// Audio hashes of files that have been checked for duplicates before.
+	private ContentHashCache hashCache;
+	// Keeps the library in sync with watched folders, null when nothing is watched.
+	private LibraryWatcher watcher;
+	// Saves the library to the file it was last loaded from or saved to, null before there is one.
+	private Autosaver autosaver;
+	// True while a library file is loading. The songs can be browsed meanwhile, but not changed, as the journal is
+	// only opened once the whole file is in, and the file's playlists replace any made meanwhile.
+	private final BooleanProperty loading = new SimpleBooleanProperty(false);
 
 	// List of menus that can add songs to playlists, shown in *songList context menus
 	ObservableList<MenuItem> playlistMenusSongList;
@@ -78,6 +100,27 @@ public class UIController{
 
 		// Initialize an empty library on startup
 		library = new Library();
+		library.setOwner(Thread.currentThread());
+		applier = new LibraryApplier(library, Platform::runLater);
+		library.getTagWriter().setFailureListener(song -> Platform.runLater(() -> {
+			Alert alert = new Alert(Alert.AlertType.ERROR, "Failed to write tags to file " + song.getFile());
+			alert.show();
+		}));
+		File cacheFile = new File(System.getProperty("user.home"), ".media-library/tags.cache");
+		try{
+			tagCache = new TagCache(cacheFile);
+		}catch(IOException e){
+			// A broken cache just means every file gets read again, and it will be overwritten on the next save.
+			cacheFile.delete();
+			tagCache = new TagCache(cacheFile);
+		}
+		File hashFile = new File(System.getProperty("user.home"), ".media-library/hashes.cache");
+		try{
+			hashCache = new ContentHashCache(hashFile);
+		}catch(IOException e){
+			hashFile.delete();
+			hashCache = new ContentHashCache(hashFile);
+		}
 
 		// Load the actual UI and connect it to this class as a controller
 		FXMLLoader loader = new FXMLLoader();
@@ -103,6 +146,14 @@ public class UIController{
 	*/
 	private void linkLists(){
 		songList.setItems(library.getSongs());
+		// Searching swaps the song list for the results, and clearing the search swaps it back.
+		searchField.textProperty().addListener((observable, oldText, text) -> {
+			if(text.isBlank()){
+				songList.setItems(library.getSongs());
+			}else{
+				songList.setItems(FXCollections.observableArrayList(library.search(text, SEARCH_LIMIT)));
+			}
+		});
 
 		//Set up columns for the table.
 		TableColumn<Song, String> titleColumn = new TableColumn<>("Title");
@@ -130,6 +181,7 @@ public class UIController{
 		Menu addToPlaylist = new Menu("Add song to playlist...");
 		playlistMenusSongList = addToPlaylist.getItems();
 		contextMenu.getItems().addAll(editItem, addToPlaylist);
+		disableWhileLoading(contextMenu.getItems());
 		songList.setContextMenu(contextMenu);
 
 
@@ -178,6 +230,7 @@ public class UIController{
 		addToPlaylist = new Menu("Add song to playlist...");
 		playlistMenusAlbumSongList = addToPlaylist.getItems();
 		contextMenu.getItems().addAll(editItem, addToPlaylist);
+		disableWhileLoading(contextMenu.getItems());
 		albumSongList.setContextMenu(contextMenu);
 
 
@@ -220,6 +273,7 @@ public class UIController{
 		addToPlaylist = new Menu("Add song to playlist...");
 		playlistMenusArtistSongList = addToPlaylist.getItems();
 		contextMenu.getItems().addAll(editItem, addToPlaylist);
+		disableWhileLoading(contextMenu.getItems());
 		artistSongList.setContextMenu(contextMenu);
 
 
@@ -259,17 +313,41 @@ public class UIController{
 		removeFromPlaylist.setOnAction(e->{
 			ObservableList<Song> selected = playlistSongList.getSelectionModel().getSelectedItems();
 			ObservableList<Playlist> playlists = playlistList.getSelectionModel().getSelectedItems();
-			if(selected.size() > 0 && playlists.size() > 0){
+			if(selected.size() > 0 && playlists.size() > 0 && !(playlists.get(0) instanceof SmartPlaylist)){
 				library.removeSongFromPlaylist(selected.get(0),playlists.get(0).getTitle());
 			}
 		});
 		addToPlaylist = new Menu("Add song to playlist...");
 		playlistMenusPlaylistSongList = addToPlaylist.getItems();
 		contextMenu.getItems().addAll(editItem, addToPlaylist, removeFromPlaylist);
+		disableWhileLoading(contextMenu.getItems());
+		// Songs can not be taken off smart playlists either
+		removeFromPlaylist.disableProperty().bind(loading.or(Bindings.createBooleanBinding(
+			() -> playlistList.getSelectionModel().getSelectedItem() instanceof SmartPlaylist,
+			playlistList.getSelectionModel().selectedItemProperty())));
 		playlistSongList.setContextMenu(contextMenu);
 
 	}
 
+	// Greys out menu items that change the library while a file is loading
+	private void disableWhileLoading(List<MenuItem> items){
+		for(MenuItem item : items){
+			item.disableProperty().bind(loading);
+		}
+	}
+
+	/**
+	* Tells the user to wait if a library file is still loading, see loading.
+	* @return true if it is, and whatever would change the library should not go ahead
+	*/
+	private boolean stillLoading(){
+		if(!loading.get())
+			return false;
+		Alert alert = new Alert(Alert.AlertType.INFORMATION, "Wait for the library to finish loading first.");
+		alert.showAndWait();
+		return true;
+	}
+
 	/**
 	* Creates and shows a dialog allowing the user to edit the tags of a song file
 	* @param song the song to edit
@@ -349,14 +427,11 @@ public class UIController{
 
 		Button save = new Button("Save");
 		// Make the button indicate what is missing or invalid before adding anything
+		// The tags are written to the file in the background, failures are reported by the TagWriter's listener.
 		save.setOnAction(e -> {
-			boolean success = library.updateSong(song, titleInput.getText(), albumInput.getText(),
+			library.updateSong(song, titleInput.getText(), albumInput.getText(),
 				artistInput.getText(), (Integer)yearInput.getValue(), genreInput.getText(),
 				(Integer)trackInput.getValue(), (Integer)numTracksInput.getValue());
-			if(!success){
-				Alert alert = new Alert(Alert.AlertType.ERROR, "Failed to write tags to file");
-				alert.showAndWait();
-			}
 			popup.close();
 		});
 
@@ -380,6 +455,9 @@ public class UIController{
 	private void updatePlaylists(){
 		playlistMenusSongList.clear();
 		for(Playlist playlist : library.getPlaylists()){
+			// Smart playlists pick their own songs
+			if(playlist instanceof SmartPlaylist)
+				continue;
 			MenuItem pMenu = new MenuItem(playlist.getTitle());
 			pMenu.setOnAction(e -> {
 				ObservableList<Song> selected = songList.getSelectionModel().getSelectedItems();
@@ -392,6 +470,9 @@ public class UIController{
 
 		playlistMenusAlbumSongList.clear();
 		for(Playlist playlist : library.getPlaylists()){
+			// Smart playlists pick their own songs
+			if(playlist instanceof SmartPlaylist)
+				continue;
 			MenuItem pMenu = new MenuItem(playlist.getTitle());
 			pMenu.setOnAction(e -> {
 				ObservableList<Song> selected = albumSongList.getSelectionModel().getSelectedItems();
@@ -404,6 +485,9 @@ public class UIController{
 
 		playlistMenusArtistSongList.clear();
 		for(Playlist playlist : library.getPlaylists()){
+			// Smart playlists pick their own songs
+			if(playlist instanceof SmartPlaylist)
+				continue;
 			MenuItem pMenu = new MenuItem(playlist.getTitle());
 			pMenu.setOnAction(e -> {
 				ObservableList<Song> selected = artistSongList.getSelectionModel().getSelectedItems();
@@ -416,6 +500,9 @@ public class UIController{
 
 		playlistMenusPlaylistSongList.clear();
 		for(Playlist playlist : library.getPlaylists()){
+			// Smart playlists pick their own songs
+			if(playlist instanceof SmartPlaylist)
+				continue;
 			MenuItem pMenu = new MenuItem(playlist.getTitle());
 			pMenu.setOnAction(e -> {
 				ObservableList<Song> selected = playlistSongList.getSelectionModel().getSelectedItems();
@@ -434,23 +521,59 @@ public class UIController{
 
 	/**
 	* Attempts to load in a library file specified by the user.
+	* The file is loaded in the background, and its songs show up in batches as they are read.
 	*/
 	@FXML
 	public void loadLibrary(){
+		if(stillLoading())
+			return;
 		File libFile = libraryChooser.showOpenDialog(mainStage);
 		if(libFile != null){
-			try{
-				library.load(libFile);
-				Alert alert = new Alert(Alert.AlertType.INFORMATION, "Sucessfully loaded library");
-				alert.showAndWait();
-				updatePlaylists();
-			}catch(FileFormatException e){
-				Alert alert = new Alert(Alert.AlertType.ERROR, e.getMessage());
-				alert.showAndWait();
-			}catch(IOException e){
-				Alert alert = new Alert(Alert.AlertType.ERROR, "Read Failed: " + e.getMessage());
-				alert.showAndWait();
+			// The library is emptied while loading, which must not be autosaved over the previous file
+			if(autosaver != null){
+				autosaver.close();
+				autosaver = null;
 			}
+			// The watched folders belong to the library being replaced
+			stopWatching();
+			LibraryLoader loader = new LibraryLoader(library, applier);
+			Task<Boolean> task = new Task<Boolean>(){
+				@Override
+				protected Boolean call() throws Exception{
+					updateMessage("Opening " + libFile.getName() + "...");
+					return loader.load(libFile, (loaded, total) -> {
+						updateProgress(loaded, total);
+						updateMessage("Loaded " + loaded + " of " + total + " songs");
+					});
+				}
+			};
+			loading.set(true);
+			task.stateProperty().addListener((observable, oldState, state) -> {
+				if(state == Worker.State.SUCCEEDED || state == Worker.State.FAILED || state == Worker.State.CANCELLED)
+					loading.set(false);
+			});
+			showProgress("Loading Library", task, loader::cancel, loaded -> {
+				if(!loaded)
+					return "Loading cancelled";
+				updatePlaylists();
+				autosaveTo(libFile);
+				return "Sucessfully loaded library";
+			});
+		}
+	}
+
+	/**
+	* Starts autosaving the library to file, which it was just loaded from or saved to.
+	*/
+	private void autosaveTo(File file){
+		if(autosaver == null){
+			autosaver = new Autosaver(library, file, applier, AUTOSAVE_INTERVAL, java.util.concurrent.TimeUnit.SECONDS);
+			autosaver.setErrorListener((f, e) -> Platform.runLater(() -> {
+				Alert alert = new Alert(Alert.AlertType.ERROR, "Autosave to " + f + " failed: " + e.getMessage());
+				alert.show();
+			}));
+		}else{
+			autosaver.setFile(file);
 		}
 	}
 
@@ -459,10 +582,13 @@ public class UIController{
 	*/
 	@FXML
 	public void saveLibrary(){
+		if(stillLoading())
+			return;
 		File libFile = libraryChooser.showSaveDialog(mainStage);
 		if(libFile != null){
 			try{
 				library.save(libFile);
+				autosaveTo(libFile);
 				Alert alert = new Alert(Alert.AlertType.INFORMATION, "Sucessfully saved library");
 				alert.showAndWait();
 			}catch(FileFormatException e){
@@ -480,12 +606,12 @@ public class UIController{
 	*/
 	@FXML
 	public void importFile(){
+		if(stillLoading())
+			return;
 		File mediaFile = mediaChooser.showOpenDialog(mainStage);
 		if(mediaFile != null){
 			try{
-				System.out.println(mediaFile);
 				Song s = new Song(mediaFile);
-				System.out.println("Loaded file");
 				library.addSong(s);
 			}catch(FileFormatException e){
 				Alert alert = new Alert(Alert.AlertType.ERROR, e.getMessage());
@@ -497,39 +623,206 @@ public class UIController{
 		}
 	}
 
+	/**
+	* Imports every song in a folder chosen by the user, and all of its subfolders.
+	* The import runs in the background, committing songs to the library in batches as they are read.
+	* Importing a folder again rescans it, only reading files that changed and updating their songs in the library.
+	*/
 	@FXML
 	public void importFolder(){
+		if(stillLoading())
+			return;
 		File mediaFolder = folderChooser.showDialog(mainStage);
 		if(mediaFolder != null){
-			int read = importFolderHelper(mediaFolder);
-			Alert alert = new Alert(Alert.AlertType.INFORMATION, "Sucessfully imported " + read + " files.");
+			importInBackground(mediaFolder, "Importing Folder", read -> "Sucessfully imported " + read + " files.");
+		}
+	}
+
+	/**
+	* Imports (or rescans) a folder on a background thread, showing the progress to the user.
+	* @param folder the folder to import
+	* @param title the title of the progress popup
+	* @param resultMessage creates the message shown once the import is done, from the number of files read
+	*/
+	private void importInBackground(File folder, String title, Callback<Integer, String> resultMessage){
+		ImportPipeline pipeline = new ImportPipeline(batch -> applier.execute(() -> library.mergeSongs(batch)),
+			Runtime.getRuntime().availableProcessors());
+		pipeline.setTagCache(tagCache);
+		Task<Integer> task = new Task<Integer>(){
+			@Override
+			protected Integer call() throws Exception{
+				updateMessage("Searching " + folder + "...");
+				int read = pipeline.importFolder(folder, (processed, total, rate) -> {
+					updateProgress(processed, total);
+					updateMessage("Read " + processed + " of " + total + " files (" + (int)rate + " files/s)");
+				});
+				tagCache.save();
+				return read;
+			}
+		};
+		showProgress(title, task, pipeline::cancel, resultMessage);
+	}
+
+	/**
+	* Runs a task on a background thread, showing its progress in a popup that allows the user to cancel it.
+	* Once the task is done the popup is closed, and an alert is shown with the result.
+	* @param title the title of the popup
+	* @param task the task to run
+	* @param onCancel called when the user cancels the task
+	* @param resultMessage creates the message shown when the task succeeds
+	*/
+	private <T> void showProgress(String title, Task<T> task, Runnable onCancel, Callback<T, String> resultMessage){
+		Stage popup = new Stage();
+		popup.initOwner(mainStage);
+		popup.setTitle(title);
+
+		VBox all = new VBox(10);
+		all.setAlignment(Pos.CENTER);
+
+		Label message = new Label();
+		message.textProperty().bind(task.messageProperty());
+		ProgressBar bar = new ProgressBar();
+		bar.setPrefWidth(250);
+		bar.progressProperty().bind(task.progressProperty());
+
+		Button cancel = new Button("Cancel");
+		cancel.setOnAction(e -> {
+			onCancel.run();
+			cancel.setDisable(true);
+		});
+		// Closing the window should not leave the task running unseen.
+		popup.setOnCloseRequest(e -> onCancel.run());
+
+		all.getChildren().addAll(message, bar, cancel);
+
+		task.setOnSucceeded(e -> {
+			popup.close();
+			Alert alert = new Alert(Alert.AlertType.INFORMATION, resultMessage.call(task.getValue()));
 			alert.showAndWait();
+		});
+		task.setOnFailed(e -> {
+			popup.close();
+			Alert alert = new Alert(Alert.AlertType.ERROR, title + " Failed: " + task.getException().getMessage());
+			alert.showAndWait();
+		});
+
+		popup.setScene(new Scene(all, 350, 120));
+		popup.show();
+
+		Thread worker = new Thread(task, title);
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	* Starts keeping the library in sync with a folder chosen by the user.
+	* Files already in the folder are imported first, then any files added, changed, or removed later are picked up.
+	*/
+	@FXML
+	public void watchFolder(){
+		if(stillLoading())
+			return;
+		File mediaFolder = folderChooser.showDialog(mainStage);
+		if(mediaFolder != null){
+			try{
+				if(watcher == null)
+					watcher = new LibraryWatcher(library, applier, tagCache);
+				watcher.watch(mediaFolder);
+			}catch(IOException e){
+				Alert alert = new Alert(Alert.AlertType.ERROR, "Cannot watch folder: " + e.getMessage());
+				alert.showAndWait();
+				return;
+			}
+
+			importInBackground(mediaFolder, "Watching Folder", read ->
+				"Imported " + read + " files, now watching " + mediaFolder + " for changes.");
 		}
 	}
 
 	/**
-	* Helper method for reading directories recursively. Returns the number of files successfully read.
+	* Checks that every song's file is still there, looking for missing ones in a folder chosen by the user.
+	* Songs found somewhere else are pointed at their new files, missing ones are left in the library and counted.
 	*/
-	private int importFolderHelper(File folder){
-		int read = 0;
-		if(folder != null){
-			for(File f : folder.listFiles()){
-				if(f.isFile()){
-					try{
-						Song s = new Song(f);
-						library.addSong(s);
-						read++;
-					}catch(Exception e){}
-				}else if(f.isDirectory()){
-					read += importFolderHelper(f);
-				}
+	@FXML
+	public void checkLibrary(){
+		if(stillLoading())
+			return;
+		// Cancelling the chooser just skips looking for moved files
+		File searchFolder = folderChooser.showDialog(mainStage);
+		List<File> searchFolders = searchFolder == null ? List.of() : List.of(searchFolder);
+		List<Song> songs = new ArrayList<Song>(library.getSongs());
+		LibraryHealthCheck check = new LibraryHealthCheck();
+		check.setTagCache(tagCache);
+		Task<LibraryHealthCheck.Report> task = new Task<LibraryHealthCheck.Report>(){
+			@Override
+			protected LibraryHealthCheck.Report call() throws Exception{
+				return check.check(songs, searchFolders, (stage, done, total) -> {
+					updateProgress(done, total);
+					updateMessage(stage + ": " + done + " of " + total);
+				});
 			}
+		};
+		showProgress("Checking Library", task, check::cancel, report -> {
+			report.apply(library, false);
+			return "Checked " + report.getChecked() + " songs. " + report.getMoved().size() + " had moved and were updated, "
+				+ report.getMissing().size() + " are missing.";
+		});
+	}
+
+	/**
+	* Looks for songs that are copies of the same recording, and once the user confirms, merges each group into one song.
+	*/
+	@FXML
+	public void findDuplicates(){
+		if(stillLoading())
+			return;
+		List<Song> songs = new ArrayList<Song>(library.getSongs());
+		DuplicateFinder finder = new DuplicateFinder();
+		finder.setHashCache(hashCache);
+		Task<List<List<Song>>> task = new Task<List<List<Song>>>(){
+			@Override
+			protected List<List<Song>> call() throws Exception{
+				List<List<Song>> found = finder.find(songs, (stage, done, total) -> {
+					updateProgress(done, total);
+					updateMessage(stage + ": " + done + " of " + total);
+				});
+				hashCache.save();
+				return found;
+			}
+		};
+		showProgress("Finding Duplicates", task, finder::cancel, found -> {
+			if(found.isEmpty())
+				return "No duplicate songs found.";
+			int copies = 0;
+			for(List<Song> group : found){
+				copies += group.size() - 1;
+			}
+			Alert confirm = new Alert(Alert.AlertType.CONFIRMATION, "Found " + found.size() + " songs with "
+				+ copies + " extra copies. Merge each into one song? The files are not deleted.");
+			if(!confirm.showAndWait().filter(e -> e.equals(ButtonType.OK)).isPresent())
+				return "Nothing was merged.";
+			library.mergeDuplicates(found);
+			return "Merged " + copies + " copies.";
+		});
+	}
+
+	/**
+	* Stops keeping the library in sync with any watched folders.
+	*/
+	@FXML
+	public void stopWatching(){
+		if(watcher != null){
+			try{
+				watcher.close();
+			}catch(IOException e){}
+			watcher = null;
 		}
-		return read;
 	}
 
 	@FXML
 	public void createPlaylist(){
+		if(stillLoading())
+			return;
 		Stage popup = new Stage();
 		popup.initOwner(mainStage);
 		//Make sure it blocks the main application window while showing
@@ -593,6 +886,26 @@ public class UIController{
 		//This tests that the user clicked the OK button, and no other one.
 		boolean exit = alert.showAndWait().filter(e -> e.equals(ButtonType.OK)).isPresent();
 		if(exit){
+			stopWatching();
+			if(autosaver != null){
+				autosaver.close();
+				if(autosaver.isDirty()){
+					try{
+						library.save(autosaver.getFile());
+					}catch(IOException e){
+						Alert error = new Alert(Alert.AlertType.ERROR, "Save Failed: " + e.getMessage());
+						error.showAndWait();
+					}
+				}
+			}
+			library.closeJournal();
+			try{
+				// Give any tag edits still being written a chance to finish
+				library.getTagWriter().awaitIdle(10, java.util.concurrent.TimeUnit.SECONDS);
+			}catch(InterruptedException e){}
+			try{
+				tagCache.save();
+			}catch(IOException e){} // Only costs a slower import next time.
 			Platform.exit();
 		}
 	}
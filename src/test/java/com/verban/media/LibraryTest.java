@@ -0,0 +1,969 @@
+package com.verban.media;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import javafx.collections.ListChangeListener;
+
+/**
+ * Tests for Library bookkeeping and persistence, using songs made up in memory.
+ */
+public class LibraryTest {
+
+	@TempDir
+	Path tempDir;
+
+	private static Song song(String folder, String title, String artist, String album, int track){
+		Song s = new Song(new File(folder, title + ".mp3"), title, artist, album, "Rock", 200 + track, 1999, track, 10);
+		s.setRating(track % 5);
+		return s;
+	}
+
+	private static Library sampleLibrary(){
+		Library library = testLibrary();
+		for(int i = 1; i <= 10; i++){
+			library.addSong(song("/music/a", "Song " + i, "Artist A", "Album A", i));
+			library.addSong(song("/music/b", "Other " + i, "Artist B", "Album B", i));
+		}
+		library.addSongToPlaylist(library.getSongs().get(3), "Favourites");
+		library.addSongToPlaylist(library.getSongs().get(0), "Favourites");
+		return library;
+	}
+
+	@Test
+	public void test001_Indexes(){
+		Library library = sampleLibrary();
+		assertEquals(20, library.getSongs().size());
+		assertEquals(2, library.getAlbums().size());
+		assertEquals(2, library.getArtists().size());
+
+		Song s = library.getSong(new File("/music/a", "Song 3.mp3"));
+		assertNotNull(s);
+		assertEquals("Song 3", s.getTitle());
+		assertSame(library.getAlbum("Album A", "Artist A"), library.getArtist("Artist A").getAlbum("Album A"));
+		assertTrue(library.playlistExists("Favourites"));
+		assertFalse(library.playlistExists("Nothing"));
+
+		// Adding the same file twice should not duplicate it
+		library.addSong(song("/music/a", "Song 3", "Someone", "Else", 3));
+		assertEquals(20, library.getSongs().size());
+	}
+
+	@Test
+	public void test002_Save_Load() throws IOException{
+		Library library = sampleLibrary();
+		File f = tempDir.resolve("test.library").toFile();
+		library.save(f);
+
+		Library loaded = testLibrary(f);
+		assertEquals(library.getSongs(), loaded.getSongs());
+		assertEquals(2, loaded.getAlbums().size());
+		assertEquals(2, loaded.getArtists().size());
+
+		Song s = loaded.getSong(new File("/music/b", "Other 4.mp3"));
+		assertEquals("Artist B", s.getArtistName());
+		assertEquals("Album B", s.getOriginalAlbum());
+		assertEquals("Rock", s.getGenre());
+		assertEquals(204, s.getRuntime());
+		assertEquals(1999, s.getYear());
+		assertEquals(4, s.getAlbumTrackNumber());
+		assertEquals(10, s.getAlbumTracks());
+		assertEquals(4.0, s.getRating());
+
+		Playlist p = loaded.getPlaylist("Favourites");
+		assertEquals(2, p.getAllTracks().size());
+		// Playlists should share the library's song instances
+		assertSame(loaded.getSongs().get(3), p.getTrack(1));
+		assertSame(loaded.getSongs().get(0), p.getTrack(2));
+	}
+
+	@Test
+	public void test003_Load_Legacy() throws IOException{
+		Library library = sampleLibrary();
+		File f = tempDir.resolve("legacy.library").toFile();
+		// Playlists could never be serialized (their track list is not Serializable), so legacy files only have songs.
+		try(ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(f))){
+			out.writeInt(library.getSongs().size());
+			out.writeInt(0);
+			for(Song s : library.getSongs()){
+				out.writeObject(s);
+			}
+		}
+
+		Library loaded = testLibrary(f);
+		assertEquals(library.getSongs(), loaded.getSongs());
+		assertEquals(2, loaded.getAlbums().size());
+
+		// Saving again should convert it to the binary format
+		loaded.save(f);
+		assertTrue(LibraryFormat.isBinary(LibraryFormat.map(f)));
+		assertEquals(library.getSongs(), testLibrary(f).getSongs());
+	}
+
+	@Test
+	public void test004_Load_Invalid() throws IOException{
+		File f = tempDir.resolve("bad.library").toFile();
+		Files.write(f.toPath(), new byte[]{0x4D, 0x4C, 0x49, 0x42, 0, 0, 0, 99});
+		assertThrows(FileFormatException.class, () -> testLibrary(f));
+
+		// Cut off part way through the song records
+		File whole = tempDir.resolve("whole.library").toFile();
+		sampleLibrary().save(whole);
+		byte[] bytes = Files.readAllBytes(whole.toPath());
+		File truncated = tempDir.resolve("truncated.library").toFile();
+		Files.write(truncated.toPath(), Arrays.copyOf(bytes, bytes.length - 100));
+		assertThrows(FileFormatException.class, () -> testLibrary(truncated));
+		assertThrows(FileFormatException.class, () -> new Library(tempDir.resolve("bad.txt").toFile()));
+
+		// A damaged song id is refused before anything is sized by it
+		ByteBuffer data = ByteBuffer.wrap(bytes.clone());
+		data.position(28);
+		int strings = data.getInt();
+		for(int i = 0; i < strings; i++){
+			int length = data.getInt();
+			data.position(data.position() + length);
+		}
+		data.getInt();
+		data.putInt(data.position(), 1000000000);
+		File badId = tempDir.resolve("bad-id.library").toFile();
+		Files.write(badId.toPath(), data.array());
+		assertThrows(FileFormatException.class, () -> testLibrary(badId));
+		assertThrows(FileFormatException.class, () -> new LibraryLoader(testLibrary(), Runnable::run).load(badId, null));
+	}
+
+	@Test
+	public void test005_Watcher() throws Exception{
+		Library library = testLibrary();
+		try(LibraryWatcher watcher = new LibraryWatcher(library, Runnable::run, null)){
+			watcher.watch(tempDir.toFile());
+			Path sub = Files.createDirectory(tempDir.resolve("sub"));
+			Path copy = sub.resolve("copy.mp3");
+			Files.copy(Paths.get("src/test/java/com/verban/media/test.mp3"), copy);
+			waitFor(() -> library.getSongs().size() == 1);
+			assertEquals("Test MP3", library.getSongs().get(0).getTitle());
+
+			Files.delete(copy);
+			waitFor(() -> library.getSongs().isEmpty());
+		}
+	}
+
+	@Test
+	public void test006_Autosave() throws Exception{
+		// Stands in for the UI thread, which all changes and snapshots happen on
+		ExecutorService ui = Executors.newSingleThreadExecutor();
+		File f = tempDir.resolve("auto.library").toFile();
+		Library library = sampleLibrary();
+		library.save(f);
+		assertFalse(new File(f.getPath() + ".tmp").exists());
+		// Without a journal, every change has to be autosaved
+		library.closeJournal();
+		Autosaver autosaver = ui.submit(() -> new Autosaver(library, f, ui, 50, TimeUnit.MILLISECONDS)).get();
+		try{
+			assertFalse(ui.submit(autosaver::isDirty).get());
+			ui.submit(() -> library.addSong(song("/music/c", "New", "Artist C", "Album C", 1))).get();
+			assertTrue(ui.submit(autosaver::isDirty).get());
+			waitFor(() -> {
+				try{
+					return !ui.submit(autosaver::isDirty).get();
+				}catch(Exception e){
+					throw new RuntimeException(e);
+				}
+			});
+			assertEquals(21, testLibrary(f).getSongs().size());
+		}finally{
+			autosaver.close();
+			ui.shutdown();
+		}
+	}
+
+	@Test
+	public void test007_Journal() throws IOException{
+		File f = tempDir.resolve("journal.library").toFile();
+		File journal = new File(f.getPath() + ".journal");
+		Library library = sampleLibrary();
+		library.save(f);
+		assertTrue(library.hasJournal());
+		long emptyLength = journal.length();
+
+		Song added = song("/music/c", "New", "Artist C", "Album C", 1);
+		library.addSong(added);
+		Song edited = library.getSong(new File("/music/a", "Song 2.mp3"));
+		library.updateSongs(List.of(edited), "Album Z", null, 2001, null);
+		library.setRating(added, 4.5);
+		library.addSongToPlaylist(added, "New Playlist");
+		library.removeSongFromPlaylist(library.getSongs().get(0), "Favourites");
+		library.removeSongs(List.of(library.getSong(new File("/music/b", "Other 1.mp3"))));
+		// Removed from the playlist with the song, then added back as a new song
+		Song other = library.getSong(new File("/music/b", "Other 5.mp3"));
+		library.addSongToPlaylist(other, "Mix");
+		library.addSongToPlaylist(library.getSong(new File("/music/b", "Other 3.mp3")), "Mix");
+		library.removeSongs(List.of(other));
+		library.addSong(song("/music/b", "Other 5", "Artist B", "Album B", 5));
+		library.addSongToPlaylist(library.getSong(other.getFile()), "Mix");
+		library.closeJournal();
+		assertTrue(journal.length() > emptyLength);
+
+		// Half written record from a crash, which should be ignored and cut off
+		Files.write(journal.toPath(), new byte[]{0, 0, 0, 40, 1, 2}, StandardOpenOption.APPEND);
+
+		Library loaded = testLibrary(f);
+		assertEquals(20, loaded.getSongs().size());
+		assertEquals(List.of(new File("/music/b", "Other 3.mp3"), other.getFile()),
+			List.of(loaded.getPlaylist("Mix").getTrack(1).getFile(), loaded.getPlaylist("Mix").getTrack(2).getFile()));
+		assertEquals(2, loaded.getPlaylist("Mix").getAllTracks().size());
+		assertNull(loaded.getSong(new File("/music/b", "Other 1.mp3")));
+		assertEquals(4.5, loaded.getSong(added.getFile()).getRating());
+		assertEquals("Album Z", loaded.getSong(edited.getFile()).getOriginalAlbum());
+		assertEquals(2001, loaded.getSong(edited.getFile()).getYear());
+		assertEquals(1, loaded.getPlaylist("Favourites").getAllTracks().size());
+		assertSame(loaded.getSong(added.getFile()), loaded.getPlaylist("New Playlist").getTrack(1));
+
+		// Changes after the torn record still replay, and saving starts the journal over
+		loaded.createPlaylist("After");
+		assertTrue(testLibrary(f).playlistExists("After"));
+		loaded.save(f);
+		assertEquals(emptyLength, journal.length());
+		loaded.closeJournal();
+		Library reloaded = testLibrary(f);
+		assertEquals(20, reloaded.getSongs().size());
+		assertTrue(reloaded.playlistExists("After"));
+		reloaded.createPlaylist("Stale");
+		reloaded.closeJournal();
+
+		// A journal from a different save of the file is not replayed onto it
+		File copy = tempDir.resolve("copy.library").toFile();
+		sampleLibrary().save(copy);
+		Files.copy(journal.toPath(), new File(copy.getPath() + ".journal").toPath(), StandardCopyOption.REPLACE_EXISTING);
+		assertTrue(testLibrary(f).playlistExists("Stale"));
+		assertFalse(testLibrary(copy).playlistExists("Stale"));
+	}
+
+	// A library whose edits are never written to the (made up) song files
+	private static Library testLibrary(){
+		return new Library(new TagWriter(1, song -> true));
+	}
+
+	private static Library testLibrary(File f) throws IOException{
+		Library library = testLibrary();
+		library.load(f);
+		return library;
+	}
+
+	@Test
+	public void test008_Loader() throws Exception{
+		File f = tempDir.resolve("stream.library").toFile();
+		Library library = sampleLibrary();
+		library.save(f);
+		library.createPlaylist("Journaled");
+		library.closeJournal();
+
+		Library loaded = testLibrary();
+		loaded.addSong(song("/music/old", "Old", "Someone", "Gone", 1));
+		List<Integer> progress = new ArrayList<Integer>();
+		assertTrue(new LibraryLoader(loaded, Runnable::run).load(f, (done, total) -> progress.add(done)));
+		assertEquals(library.getSongs(), loaded.getSongs());
+		assertEquals(2, loaded.getAlbums().size());
+		assertTrue(loaded.playlistExists("Journaled"));
+		assertEquals(2, loaded.getPlaylist("Favourites").getAllTracks().size());
+		assertEquals(20, (int)progress.get(progress.size() - 1));
+		assertTrue(loaded.hasJournal());
+		loaded.closeJournal();
+
+		LibraryLoader cancelled = new LibraryLoader(loaded, Runnable::run);
+		cancelled.cancel();
+		assertFalse(cancelled.load(f, null));
+		assertTrue(loaded.getSongs().isEmpty());
+		assertTrue(loaded.getAlbums().isEmpty());
+	}
+
+	@Test
+	public void test009_Album_Graph() throws Exception{
+		File f = tempDir.resolve("graph.library").toFile();
+		Library library = sampleLibrary();
+		// Track order on an album is kept as it is, not worked out again
+		Album a = library.getAlbum("Album A", "Artist A");
+		Song first = a.getTrack(1);
+		a.removeTrack(first);
+		a.addTrack(first);
+		library.save(f);
+		library.closeJournal();
+
+		Library loaded = testLibrary(f);
+		assertEquals(library.getAlbums(), loaded.getAlbums());
+		assertEquals(library.getArtists(), loaded.getArtists());
+		assertArrayEquals(a.getAllTracks(), loaded.getAlbum("Album A", "Artist A").getAllTracks());
+		assertSame(loaded.getAlbum("Album B", "Artist B"), loaded.getArtist("Artist B").getAlbum("Album B"));
+		assertTrue(loaded.checkIntegrity());
+		// And the same loading in batches
+		Library streamed = testLibrary();
+		assertTrue(new LibraryLoader(streamed, Runnable::run).load(f, null));
+		streamed.closeJournal();
+		assertEquals(library.getAlbums(), streamed.getAlbums());
+		assertArrayEquals(a.getAllTracks(), streamed.getAlbum("Album A", "Artist A").getAllTracks());
+		assertSame(streamed.getAlbum("Album B", "Artist B"), streamed.getArtist("Artist B").getAlbum("Album B"));
+		assertTrue(streamed.checkIntegrity());
+
+		// A change replayed from the journal moves the song to its new album
+		Song moved = loaded.getSong(first.getFile());
+		loaded.updateSongs(List.of(moved), "Album C", null, null, null);
+		loaded.closeJournal();
+		Library replayed = testLibrary(f);
+		assertEquals(9, replayed.getAlbum("Album A", "Artist A").numTracks());
+		assertEquals(1, replayed.getAlbum("Album C", "Artist A").numTracks());
+		assertTrue(replayed.checkIntegrity());
+		replayed.closeJournal();
+		assertTrue(new LibraryLoader(streamed, Runnable::run).load(f, null));
+		streamed.closeJournal();
+		assertEquals(9, streamed.getAlbum("Album A", "Artist A").numTracks());
+		assertEquals(1, streamed.getAlbum("Album C", "Artist A").numTracks());
+		assertTrue(streamed.checkIntegrity());
+
+		// Songs put on the wrong album are found and fixed
+		replayed.getAlbum("Album B", "Artist B").addTrack(replayed.getSong(first.getFile()));
+		assertFalse(replayed.checkIntegrity());
+		assertEquals(10, replayed.getAlbum("Album B", "Artist B").numTracks());
+		assertTrue(replayed.checkIntegrity());
+	}
+
+	@Test
+	public void test010_Song_Ids() throws IOException{
+		File f = tempDir.resolve("ids.library").toFile();
+		Library library = sampleLibrary();
+		Song removed = library.getSongs().get(1);
+		int removedId = removed.getId();
+		library.removeSongs(List.of(removed));
+		Playlist p = library.getPlaylist("Mix");
+		p.addTrack(library.getSongs().get(4));
+		p.addTrack(library.getSongs().get(2));
+		library.save(f);
+
+		// A song added after the save is journaled with its id, which is never one given out before
+		Song added = song("/music/c", "New", "Artist C", "Album C", 1);
+		library.addSong(added);
+		assertTrue(added.getId() > 0);
+		assertNotEquals(removedId, added.getId());
+		library.closeJournal();
+
+		Library loaded = testLibrary(f);
+		for(Song s : library.getSongs()){
+			assertEquals(s.getId(), loaded.getSong(s.getFile()).getId());
+		}
+		Playlist mix = loaded.getPlaylist("Mix");
+		assertEquals(library.getSongs().get(4).getId(), mix.getTrack(1).getId());
+		assertSame(loaded.getSong(library.getSongs().get(2).getFile()), mix.getTrack(2));
+
+		// Removing a song from the library takes it out of the playlist view in one change
+		int[] changes = {0};
+		mix.getAllTracks().addListener((ListChangeListener<Song>)c -> changes[0]++);
+		loaded.removeSongs(List.of(mix.getTrack(1), mix.getTrack(2)));
+		assertTrue(mix.getAllTracks().isEmpty());
+		assertEquals(1, changes[0]);
+
+		// Not even the id of the last song added, once it is removed and the library saved and loaded again
+		loaded.removeSongs(List.of(loaded.getSong(added.getFile())));
+		loaded.save(f);
+		loaded.closeJournal();
+		Library reloaded = testLibrary(f);
+		Song another = song("/music/d", "Another", "Artist D", "Album D", 1);
+		reloaded.addSong(another);
+		assertTrue(another.getId() > added.getId());
+		reloaded.closeJournal();
+	}
+
+	@Test
+	public void test011_Remove_Songs(){
+		Library library = sampleLibrary();
+		Album albumB = library.getAlbum("Album B", "Artist B");
+		List<Song> otherSongs = Arrays.asList(albumB.getAllTracks());
+		library.addSongToPlaylist(otherSongs.get(2), "Favourites");
+		library.addSongToPlaylist(otherSongs.get(2), "Mix");
+		library.addSongToPlaylist(otherSongs.get(5), "Mix");
+
+		library.removeSong(otherSongs.get(0));
+		assertEquals(9, albumB.numTracks());
+		assertEquals(19, library.getSongs().size());
+
+		// Removing the rest of the album takes the album, its artist and its playlist tracks with it
+		library.removeSongs(otherSongs);
+		assertEquals(10, library.getSongs().size());
+		assertFalse(library.getAlbums().contains(albumB));
+		assertEquals("Artist A", library.getArtists().get(0).getName());
+		assertEquals(1, library.getArtists().size());
+		assertEquals(1, library.getPlaylist("Favourites").getAllTracks().size());
+		assertTrue(library.getPlaylist("Mix").getAllTracks().isEmpty());
+		assertTrue(library.checkIntegrity());
+
+		// Moving every song off an album drops it as well
+		Album albumA = library.getAlbum("Album A", "Artist A");
+		library.updateSongs(library.getSongs(), "Renamed", "Artist R", null, null);
+		assertEquals(1, library.getAlbums().size());
+		assertEquals("Renamed", library.getAlbums().get(0).getTitle());
+		assertFalse(library.getAlbums().contains(albumA));
+		assertEquals(1, library.getArtists().size());
+		assertEquals("Song 1", library.getAlbums().get(0).getTrack(1).getTitle());
+		assertTrue(library.checkIntegrity());
+
+		// Removing thousands of songs is reported as removals, so views keep what is left selected
+		List<Song> many = new ArrayList<Song>();
+		for(int i = 0; i < 3000; i++){
+			many.add(song("/music/many", "Many " + i, "Artist M", "Album M", i % 10 + 1));
+		}
+		library.addSongs(many);
+		List<ListChangeListener.Change<? extends Song>> changes = new ArrayList<ListChangeListener.Change<? extends Song>>();
+		library.getSongs().addListener((ListChangeListener<Song>)changes::add);
+		library.removeSongs(many.subList(0, 2000));
+		assertEquals(1, changes.size());
+		ListChangeListener.Change<? extends Song> change = changes.get(0);
+		change.reset();
+		while(change.next()){
+			assertTrue(change.wasRemoved());
+			assertFalse(change.wasAdded());
+		}
+		assertEquals(1010, library.getSongs().size());
+	}
+
+	@Test
+	public void test012_Health_Check() throws Exception{
+		Path music = Files.createDirectory(tempDir.resolve("music"));
+		Path moved = Files.createDirectory(tempDir.resolve("moved"));
+		Path keep = music.resolve("keep.mp3");
+		Path move = music.resolve("move.mp3");
+		Files.copy(Paths.get("src/test/java/com/verban/media/test.mp3"), keep);
+		Files.copy(keep, move);
+		// Make the two files different, so they do not share a fingerprint
+		Files.write(move, new byte[]{1, 2, 3}, StandardOpenOption.APPEND);
+
+		TagCache cache = new TagCache();
+		Library library = testLibrary();
+		library.addSong(cache.read(keep.toFile()));
+		library.addSong(cache.read(move.toFile()));
+		library.addSong(song(music.toString(), "Gone", "Artist A", "Album A", 1));
+		Song moving = library.getSong(move.toFile());
+		library.addSongToPlaylist(moving, "Mix");
+		File f = tempDir.resolve("health.library").toFile();
+		library.save(f);
+
+		Files.move(move, moved.resolve("move.mp3"));
+		LibraryHealthCheck check = new LibraryHealthCheck(4);
+		check.setTagCache(cache);
+		LibraryHealthCheck.Report report = check.check(library.getSongs(), List.of(tempDir.toFile()), null);
+		assertEquals(3, report.getChecked());
+		assertEquals(Map.of(moving, moved.resolve("move.mp3").toFile()), report.getMoved());
+		assertEquals(1, report.getMissing().size());
+		assertEquals("Gone", report.getMissing().get(0).getTitle());
+
+		// Without the cache it is matched by name and tags instead
+		assertEquals(report.getMoved(), new LibraryHealthCheck(4).check(library.getSongs(), List.of(tempDir.toFile()), null).getMoved());
+
+		report.apply(library, true);
+		assertEquals(2, library.getSongs().size());
+		assertSame(moving, library.getSong(moved.resolve("move.mp3").toFile()));
+		assertSame(moving, library.getPlaylist("Mix").getTrack(1));
+		assertTrue(new LibraryHealthCheck(4).check(library.getSongs(), List.of(), null).isHealthy());
+
+		// The move is journaled
+		library.closeJournal();
+		Library loaded = testLibrary(f);
+		assertNotNull(loaded.getSong(moved.resolve("move.mp3").toFile()));
+		assertNull(loaded.getSong(move.toFile()));
+		assertEquals(moved.resolve("move.mp3").toFile(), loaded.getPlaylist("Mix").getTrack(1).getFile());
+		loaded.closeJournal();
+
+		// A file that fits two missing songs is not given to either of them
+		Path twin = Files.createDirectory(music.resolve("twin"));
+		Files.copy(keep, twin.resolve("twin.mp3"));
+		Song tags = cache.read(twin.resolve("twin.mp3").toFile());
+		Library twins = testLibrary();
+		for(String folder : new String[]{"a", "b"}){
+			twins.addSong(new Song(music.resolve(folder).resolve("twin.mp3").toFile(), tags.getTitle(), tags.getArtistName(),
+				tags.getOriginalAlbum(), tags.getGenre(), tags.getRuntime(), tags.getYear(), tags.getAlbumTrackNumber(), tags.getAlbumTracks()));
+		}
+		LibraryHealthCheck twinCheck = new LibraryHealthCheck(4);
+		twinCheck.cancel();
+		assertThrows(CancellationException.class, () -> twinCheck.check(twins.getSongs(), List.of(twin.toFile()), null));
+		// Cancelling only stops the check that was running
+		LibraryHealthCheck.Report twinReport = twinCheck.check(twins.getSongs(), List.of(twin.toFile()), null);
+		assertTrue(twinReport.getMoved().isEmpty());
+		assertEquals(2, twinReport.getMissing().size());
+	}
+
+	@Test
+	public void test013_Duplicates() throws Exception{
+		Path music = Files.createDirectory(tempDir.resolve("music"));
+		byte[] original = Files.readAllBytes(Paths.get("src/test/java/com/verban/media/test.mp3"));
+		Path a = Files.write(music.resolve("a.mp3"), original);
+		// The same audio without its ID3v2 tag, so only the ID3v1 tag is left to read
+		int id3v2 = 10 + ((original[6] & 0x7F) << 21 | (original[7] & 0x7F) << 14 | (original[8] & 0x7F) << 7 | (original[9] & 0x7F));
+		Path b = Files.write(music.resolve("b.mp3"), Arrays.copyOfRange(original, id3v2, original.length));
+		// Same length and runtime, different audio
+		byte[] changed = original.clone();
+		changed[changed.length / 2] ^= 1;
+		Path c = Files.write(music.resolve("c.mp3"), changed);
+
+		Library library = testLibrary();
+		for(Path p : List.of(a, b, c)){
+			library.addSong(new Song(p.toFile()));
+		}
+		library.addSong(song(music.toString(), "Other", "Artist A", "Album A", 1));
+		Song songA = library.getSong(a.toFile());
+		Song songB = library.getSong(b.toFile());
+		assertEquals(songA.getRuntime(), songB.getRuntime());
+		library.setRating(songB, 4);
+		library.addSongToPlaylist(library.getSong(c.toFile()), "Mix");
+		library.addSongToPlaylist(songB, "Mix");
+		File f = tempDir.resolve("duplicates.library").toFile();
+		library.save(f);
+
+		File cacheFile = tempDir.resolve("hashes.cache").toFile();
+		ContentHashCache cache = new ContentHashCache(cacheFile);
+		DuplicateFinder finder = new DuplicateFinder(2);
+		finder.setHashCache(cache);
+		List<List<Song>> found = finder.find(library.getSongs(), null);
+		assertEquals(List.of(List.of(songA, songB)), found);
+		// The made up song has no file, and a runtime of its own, so it is never read
+		assertEquals(3, cache.size());
+		cache.save();
+		ContentHashCache reloaded = new ContentHashCache(cacheFile);
+		assertEquals(cache.hash(a.toFile()), reloaded.hash(a.toFile()));
+		assertEquals(reloaded.hash(a.toFile()), reloaded.hash(b.toFile()));
+
+		library.mergeDuplicates(found);
+		assertEquals(3, library.getSongs().size());
+		assertNull(library.getSong(b.toFile()));
+		assertEquals(4, songA.getRating());
+		assertSame(songA, library.getPlaylist("Mix").getTrack(2));
+
+		library.closeJournal();
+		Library loaded = testLibrary(f);
+		assertNull(loaded.getSong(b.toFile()));
+		assertEquals(a.toFile(), loaded.getPlaylist("Mix").getTrack(2).getFile());
+		assertEquals(4, loaded.getSong(a.toFile()).getRating());
+		loaded.closeJournal();
+	}
+
+	@Test
+	public void test014_Shared_Strings() throws IOException{
+		Library library = testLibrary();
+		// Every song gets its own copies, as if each had been read from its file
+		for(int i = 1; i <= 3; i++){
+			library.addSong(song(new String("/music/a"), "Song " + i, new String("Artist A"), new String("Album A"), i));
+		}
+		Song first = library.getSongs().get(0);
+		for(Song s : library.getSongs()){
+			assertSame(first.getArtistName(), s.getArtistName());
+			assertSame(first.getOriginalAlbum(), s.getOriginalAlbum());
+			assertSame(first.getGenre(), s.getGenre());
+			assertSame(first.getFolder(), s.getFolder());
+		}
+		assertSame(first.getArtistName(), library.getArtist("Artist A").getName());
+		assertEquals(new File("/music/a", "Song 1.mp3"), first.getFile());
+		assertSame(first, library.getSong(new File("/music/a/Song 1.mp3")));
+
+		// Edits are pooled too
+		library.updateSongs(library.getSongs(), null, new String("Artist B"), null, null);
+		assertSame(first.getArtistName(), library.getSongs().get(2).getArtistName());
+
+		// Songs from elsewhere are still equal to the library's by file
+		Song copy = song("/music/a", "Song 2", "Other", "Other", 2);
+		assertEquals(library.getSongs().get(1), copy);
+		assertEquals(library.getSongs().get(1).hashCode(), copy.hashCode());
+		library.removeSong(copy);
+		assertEquals(2, library.getSongs().size());
+	}
+
+	@Test
+	public void test015_Columns(){
+		Library library = sampleLibrary();
+		SongColumns columns = library.getColumns();
+		assertEquals(20, columns.size());
+		// Track numbers 1 to 10 on each album, so runtimes 201 to 210 twice
+		assertEquals(2 * (201 + 210) * 10 / 2, columns.sum(SongColumns.Column.RUNTIME));
+		int rock = columns.code(SongColumns.Column.GENRE, "Rock");
+		assertEquals(20, columns.countByCode(SongColumns.Column.GENRE)[rock]);
+
+		// Kept in step with edits, ratings and removals
+		Song first = library.getSongs().get(0);
+		library.updateSong(first, "Song 1", "Album A", "Artist C", 1975, "Jazz", 1, 10);
+		library.setRating(first, 5);
+		assertEquals(1975, columns.get(SongColumns.Column.YEAR, first.getId()));
+		assertEquals("Artist C", columns.decode(SongColumns.Column.ARTIST, columns.get(SongColumns.Column.ARTIST, first.getId())));
+		assertEquals(5, columns.getRating(first.getId()));
+		assertEquals(first.getId(), columns.sortedIds(SongColumns.Column.YEAR)[0]);
+		assertEquals(1, columns.countByCode(SongColumns.Column.GENRE)[columns.code(SongColumns.Column.GENRE, "Jazz")]);
+
+		library.removeSong(first);
+		assertFalse(columns.contains(first.getId()));
+		assertEquals(19, columns.sortedIds(SongColumns.Column.YEAR).length);
+		library.addSong(song("/music/c", "New", "Artist D", "Album D", 3));
+		assertEquals(20, columns.size());
+		assertEquals(-1, columns.code(SongColumns.Column.GENRE, "Polka"));
+		assertThrows(IllegalArgumentException.class, () -> columns.code(SongColumns.Column.YEAR, "1999"));
+
+		// Editing songs that are not in the library leaves its columns alone
+		Song outside = song("/music/e", "Outside", "Artist E", "Album E", 4);
+		Song other = sampleLibrary().getSongs().get(1);
+		Song same = library.getSongs().stream().filter(s -> s.getId() == other.getId()).findFirst().get();
+		library.updateSong(outside, "Outside", "Album E", "Artist E", 1960, "Polka", 4, 10);
+		library.updateSong(other, "Other 1", "Album B", "Artist B", 1960, "Polka", 1, 10);
+		assertEquals(20, columns.size());
+		assertFalse(columns.contains(0));
+		assertEquals(1999, columns.get(SongColumns.Column.YEAR, same.getId()));
+		assertFalse(library.getFacets().counts(SongFacets.Facet.YEAR).containsKey("1960"));
+	}
+
+	@Test
+	public void test016_Applier() throws Exception{
+		ExecutorService ui = Executors.newSingleThreadExecutor();
+		AtomicInteger runs = new AtomicInteger();
+		try{
+			Library library = sampleLibrary();
+			ui.submit(() -> library.setOwner(Thread.currentThread())).get();
+			assertThrows(IllegalStateException.class, () -> library.addSong(song("/music/c", "Off", "Artist C", "Album C", 1)));
+			LibraryApplier applier = new LibraryApplier(library, r -> {
+				runs.incrementAndGet();
+				ui.execute(r);
+			});
+			LibrarySnapshot before = applier.snapshot().get();
+			assertEquals(20, before.getSongs().size());
+			// Nothing changed, so the same snapshot comes straight back
+			assertSame(before, applier.snapshot().get());
+
+			// Hold up the UI thread while four imports queue their batches, so they are all run together
+			CountDownLatch held = new CountDownLatch(1);
+			ui.execute(() -> {
+				try{
+					held.await();
+				}catch(InterruptedException e){}
+			});
+			runs.set(0);
+			Thread[] imports = new Thread[4];
+			for(int t = 0; t < imports.length; t++){
+				imports[t] = new Thread(() -> {
+					for(int b = 0; b < 50; b++){
+						List<Song> batch = new ArrayList<Song>();
+						for(int i = 0; i < 20; i++){
+							// Every import reads the same files, each batch spread over shared albums and artists
+							int n = b * 20 + i;
+							batch.add(song("/music/d", "Shared " + n, "Artist " + (n % 3), "Album " + (n % 7), n % 10 + 1));
+						}
+						applier.execute(() -> library.mergeSongs(batch));
+					}
+				});
+				imports[t].start();
+			}
+			for(Thread t : imports){
+				t.join();
+			}
+			CompletableFuture<LibrarySnapshot> after = applier.snapshot();
+			assertFalse(after.isDone());
+			held.countDown();
+
+			LibrarySnapshot snapshot = after.get();
+			assertTrue(runs.get() < 200);
+			assertEquals(1020, snapshot.getSongs().size());
+			assertEquals(new HashSet<Song>(snapshot.getSongs()).size(), snapshot.getSongs().size());
+			assertEquals(20, before.getSongs().size());
+			assertTrue(ui.submit(library::checkIntegrity).get());
+			assertEquals(2 + 7 * 3, snapshot.getAlbumTitles().size());
+			assertEquals(2 + 3, snapshot.getArtistNames().size());
+
+			// Songs are copied, so editing them afterwards does not reach into the snapshot
+			Song first = library.getSongs().get(0);
+			String title = first.getTitle();
+			ui.submit(() -> library.updateSong(first, "Edited", "Album X", "Artist X", 2001, "Jazz", 1, 10)).get();
+			Song copy = snapshot.getSongs().get(0);
+			assertNotSame(first, copy);
+			assertEquals(first.getId(), copy.getId());
+			assertEquals(title, copy.getTitle());
+			assertEquals("Album A", copy.getOriginalAlbum());
+			Song edited = applier.snapshot().get().getSongs().stream().filter(s -> s.getId() == first.getId()).findFirst().get();
+			assertEquals("Edited", edited.getTitle());
+		}finally{
+			ui.shutdown();
+		}
+	}
+
+	@Test
+	public void test017_Batch() throws Exception{
+		Library library = sampleLibrary();
+		List<ListChangeListener.Change<? extends Song>> changes = new ArrayList<ListChangeListener.Change<? extends Song>>();
+		library.getSongs().addListener((ListChangeListener<Song>)changes::add);
+		int[] albumChanges = new int[1];
+		library.getAlbums().addListener((ListChangeListener<Album>)c -> albumChanges[0]++);
+
+		// An edit is an update in place, not a remove and add
+		Song edited = library.getSongs().get(2);
+		library.updateSong(edited, "Edited", "Album A", "Artist A", 2001, "Rock", 3, 10);
+		assertEquals(1, changes.size());
+		ListChangeListener.Change<? extends Song> update = changes.get(0);
+		assertTrue(update.next());
+		assertTrue(update.wasUpdated());
+		assertEquals(2, update.getFrom());
+		assertSame(edited, library.getSongs().get(2));
+
+		changes.clear();
+		library.batch(() -> {
+			for(int i = 1; i <= 50; i++){
+				library.addSong(song("/music/e", "Batched " + i, "Artist E", "Album E" + i % 5, i));
+			}
+			library.updateSong(library.getSongs().get(0), "Song 1", "Album F", "Artist A", 1999, "Rock", 1, 10);
+			library.setRating(library.getSongs().get(1), 5);
+			library.removeSong(library.getSongs().get(3));
+			// Still readable as usual inside the batch
+			assertEquals(69, library.getSongs().size());
+			assertTrue(changes.isEmpty());
+		});
+		assertEquals(1, changes.size());
+		assertEquals(1, albumChanges[0]);
+		assertEquals(69, library.getSongs().size());
+		assertTrue(library.checkIntegrity());
+
+		// Ten thousand files through an applier, with the UI thread busy until they are all queued
+		ExecutorService ui = Executors.newSingleThreadExecutor();
+		try{
+			LibraryApplier applier = new LibraryApplier(library, ui);
+			CountDownLatch held = new CountDownLatch(1);
+			ui.execute(() -> {
+				try{
+					held.await();
+				}catch(InterruptedException e){}
+			});
+			changes.clear();
+			for(int b = 0; b < 500; b++){
+				List<Song> batch = new ArrayList<Song>();
+				for(int i = 0; i < 20; i++){
+					int n = b * 20 + i;
+					batch.add(song("/music/g", "Imported " + n, "Artist " + n % 40, "Album " + n % 400, n % 10 + 1));
+				}
+				applier.execute(() -> library.mergeSongs(batch));
+			}
+			held.countDown();
+			assertEquals(10069, applier.snapshot().get().getSongs().size());
+			assertTrue(changes.size() < 20, changes.size() + " changes");
+		}finally{
+			ui.shutdown();
+		}
+	}
+
+	@Test
+	public void test018_Query(){
+		Library library = testLibrary();
+		String[] genres = {"Rock", "Pop", "Jazz", "Blues", "Folk", "Metal", "Soul", "Funk", "Punk", "Ska"};
+		Random random = new Random(18);
+		for(int i = 0; i < 2000; i++){
+			Song s = new Song(new File("/music/q", i + ".mp3"), "Query " + i, "Artist " + i % 50, "Album " + i % 200,
+				genres[i % genres.length], 120 + random.nextInt(400), 1960 + random.nextInt(60), i % 12 + 1, 12);
+			s.setRating(random.nextInt(11) / 2.0);
+			library.addSong(s);
+		}
+
+		// Rock songs from the nineties over five minutes, best rated first
+		SongQuery nineties = new SongQuery().genre("Rock").years(1990, 1999).runtimes(300, Integer.MAX_VALUE)
+			.sortBy(SongQuery.Order.RATING, true);
+		assertTrue(library.explain(nineties).startsWith("genre index, 200 "), library.explain(nineties));
+		List<Song> expected = new ArrayList<Song>();
+		for(Song s : library.getSongs()){
+			if(s.getGenre().equals("Rock") && s.getYear() >= 1990 && s.getYear() <= 1999 && s.getRuntime() >= 300)
+				expected.add(s);
+		}
+		// Stable, so songs with the same rating stay in the order they were added
+		expected.sort((a, b) -> Double.compare(b.getRating(), a.getRating()));
+		assertFalse(expected.isEmpty());
+		assertEquals(expected, library.query(nineties));
+		assertEquals(expected.subList(2, 5), library.query(nineties.offset(2).limit(3)));
+
+		// Most songs are not rated below 5, so going through the rating index would cost more than a scan
+		assertTrue(library.explain(new SongQuery().ratings(0, 4.5)).startsWith("full scan"));
+		assertEquals(expected.size(), library.query(new SongQuery().genre("Rock").years(1990, 1999).runtimes(300, 1000)
+			.ratings(0, 5)).size());
+		assertTrue(library.query(new SongQuery().genre("Polka")).isEmpty());
+		assertTrue(library.query(new SongQuery().years(2000, 1990)).isEmpty());
+
+		// The indexes follow edits, ratings and removals
+		Song top = expected.get(0);
+		library.setRating(top, 0);
+		assertNotEquals(top, library.query(nineties.offset(0).limit(1)).get(0));
+		library.updateSong(top, top.getTitle(), top.getOriginalAlbum(), top.getArtistName(), 1975, "Jazz", 1, 12);
+		assertFalse(library.query(nineties.limit(Integer.MAX_VALUE)).contains(top));
+		assertTrue(library.query(new SongQuery().genre("Jazz").years(1975, 1975)).contains(top));
+		library.removeSong(top);
+		assertFalse(library.query(new SongQuery().genre("Jazz").years(1975, 1975)).contains(top));
+		List<Song> byYear = library.query(new SongQuery().artist("Artist 7").sortBy(SongQuery.Order.YEAR, false));
+		assertEquals(40, byYear.size());
+		for(int i = 1; i < byYear.size(); i++){
+			assertTrue(byYear.get(i - 1).getYear() <= byYear.get(i).getYear());
+		}
+	}
+
+	@Test
+	public void test019_Smart_Playlists() throws IOException{
+		Library library = testLibrary();
+		String[] genres = {"Rock", "Jazz", "Blues", "Folk"};
+		Random random = new Random(19);
+		for(int i = 0; i < 400; i++){
+			Song s = new Song(new File("/music/smart", i + ".mp3"), "Smart " + i, "Artist " + i % 20, "Album " + i % 40,
+				genres[i % genres.length], 120 + random.nextInt(400), 1950 + random.nextInt(50), i % 12 + 1, 12);
+			s.setRating(random.nextInt(11) / 2.0);
+			library.addSong(s);
+		}
+
+		SmartPlaylist goodJazz = library.createSmartPlaylist("Good Jazz", new SongQuery().genre("Jazz").ratings(4, 5));
+		SmartPlaylist old = library.createSmartPlaylist("Old", new SongQuery().years(Integer.MIN_VALUE, 1969));
+		SmartPlaylist longSongs = library.createSmartPlaylist("Long", new SongQuery().runtimes(480, Integer.MAX_VALUE));
+		assertFalse(goodJazz.getAllTracks().isEmpty());
+		assertSmart(library, goodJazz, old, longSongs);
+
+		// Edits, ratings, additions and removals move songs on and off the playlists
+		Song jazz = goodJazz.getAllTracks().get(0);
+		library.setRating(jazz, 1);
+		assertFalse(goodJazz.getAllTracks().contains(jazz));
+		library.setRating(jazz, 5);
+		assertTrue(goodJazz.getAllTracks().contains(jazz));
+		Song rock = library.query(new SongQuery().genre("Rock").years(1970, 1999).ratings(4, 5)).get(0);
+		library.updateSong(rock, rock.getTitle(), rock.getOriginalAlbum(), rock.getArtistName(), 1965, "Jazz", 1, 12);
+		assertTrue(goodJazz.getAllTracks().contains(rock));
+		assertTrue(old.getAllTracks().contains(rock));
+		Song added = new Song(new File("/music/smart/new.mp3"), "New", "Artist 1", "Album 1", "Jazz", 600, 1960, 1, 12);
+		added.setRating(4.5);
+		library.addSong(added);
+		assertEquals(added, goodJazz.getAllTracks().get(goodJazz.getAllTracks().size() - 1));
+		library.removeSong(jazz);
+		assertFalse(goodJazz.getAllTracks().contains(jazz));
+		assertSmart(library, goodJazz, old, longSongs);
+
+		assertThrows(UnsupportedOperationException.class, () -> goodJazz.addTrack(jazz));
+		assertThrows(IllegalArgumentException.class, () -> library.addSongToPlaylist(rock, "Good Jazz"));
+		assertThrows(IllegalArgumentException.class, () -> library.removeSongFromPlaylist(rock, "Good Jazz"));
+		assertTrue(goodJazz.getAllTracks().contains(rock));
+		assertThrows(IllegalArgumentException.class, () -> library.createSmartPlaylist("Sorted",
+			new SongQuery().genre("Rock").sortBy(SongQuery.Order.YEAR, false)));
+		assertThrows(IllegalArgumentException.class, () -> library.createSmartPlaylist("Old", new SongQuery()));
+
+		// Only the rules are saved, the tracks are found again on loading, and ones made since come from the journal
+		File f = tempDir.resolve("smart.library").toFile();
+		library.addSongToPlaylist(rock, "Mix");
+		library.save(f);
+		library.createSmartPlaylist("Blues", new SongQuery().genre("Blues"));
+		Library loaded = testLibrary(f);
+		SmartPlaylist[] reloaded = new SmartPlaylist[4];
+		String[] titles = {"Good Jazz", "Old", "Long", "Blues"};
+		for(int i = 0; i < titles.length; i++){
+			reloaded[i] = (SmartPlaylist)loaded.getPlaylist(titles[i]);
+			assertEquals(library.getPlaylist(titles[i]).getAllTracks(), reloaded[i].getAllTracks());
+		}
+		assertSmart(loaded, reloaded);
+		// Playlists keep their order, whatever their kind
+		List<String> order = List.of("Good Jazz", "Old", "Long", "Mix", "Blues");
+		assertEquals(order, titlesOf(loaded.getPlaylists()));
+		File again = tempDir.resolve("smart-again.library").toFile();
+		loaded.save(again);
+		assertEquals(order, titlesOf(testLibrary(again).getPlaylists()));
+		assertEquals(List.of(rock), loaded.getPlaylist("Mix").getAllTracks());
+		Song folk = loaded.query(new SongQuery().genre("Folk")).get(0);
+		loaded.setRating(folk, 5);
+		loaded.updateSong(folk, folk.getTitle(), folk.getOriginalAlbum(), folk.getArtistName(), folk.getYear(), "Jazz", 1, 12);
+		assertSmart(loaded, reloaded);
+	}
+
+	@Test
+	public void test020_Facets(){
+		Library library = testLibrary();
+		String[] genres = {"Rock", "Jazz", "Blues", "Folk", "Soul"};
+		Random random = new Random(20);
+		for(int i = 0; i < 1000; i++){
+			library.addSong(new Song(new File("/music/facets", i + ".mp3"), "Facet " + i, "Artist " + i % 30,
+				"Album " + i % 90, genres[i % genres.length], 200, 1955 + random.nextInt(60), i % 12 + 1, 12));
+		}
+		SongFacets facets = library.getFacets();
+		assertEquals(List.of("Blues", "Folk", "Jazz", "Rock", "Soul"),
+			new ArrayList<String>(facets.counts(SongFacets.Facet.GENRE).keySet()));
+		assertEquals(200, facets.counts(SongFacets.Facet.GENRE).get("Rock"));
+		assertFacets(library, Map.of());
+
+		// Picking values counts the rest within them, and values no song has match nothing
+		Map<SongFacets.Facet, String> rockNineties = Map.of(SongFacets.Facet.GENRE, "Rock", SongFacets.Facet.DECADE, "1990s");
+		assertFalse(facets.matching(rockNineties).isEmpty());
+		assertFalse(facets.drillDown(rockNineties).containsKey(SongFacets.Facet.GENRE));
+		assertFacets(library, rockNineties);
+		assertFacets(library, Map.of(SongFacets.Facet.ARTIST, "Artist 3", SongFacets.Facet.YEAR, "1980"));
+		assertFacets(library, Map.of(SongFacets.Facet.ALBUM, "Album 7", SongFacets.Facet.ARTIST, "Artist 7"));
+		assertTrue(facets.matching(Map.of(SongFacets.Facet.GENRE, "Polka")).isEmpty());
+		assertTrue(facets.matching(Map.of(SongFacets.Facet.DECADE, "1990")).isEmpty());
+		assertTrue(facets.drillDown(Map.of(SongFacets.Facet.YEAR, "nineteen")).get(SongFacets.Facet.ARTIST).isEmpty());
+
+		// The counts follow edits, additions and removals
+		Song song = library.getSongs().get(0);
+		library.updateSong(song, song.getTitle(), "Album New", "Artist New", 1999, "Rock", 1, 12);
+		library.addSong(new Song(new File("/music/facets/new.mp3"), "New", "Artist New", "Album New", "Polka", 200, 2021, 1, 1));
+		library.removeSong(library.getSongs().get(1));
+		assertEquals(2, facets.counts(SongFacets.Facet.ARTIST).get("Artist New"));
+		assertEquals(1, facets.counts(SongFacets.Facet.DECADE).get("2020s"));
+		assertFacets(library, Map.of());
+		assertFacets(library, rockNineties);
+		assertFacets(library, Map.of(SongFacets.Facet.ARTIST, "Artist New"));
+		library.removeSong(library.getSong(new File("/music/facets/new.mp3")));
+		assertFalse(facets.counts(SongFacets.Facet.GENRE).containsKey("Polka"));
+	}
+
+	private static List<String> titlesOf(List<Playlist> playlists){
+		List<String> titles = new ArrayList<String>();
+		for(Playlist p : playlists){
+			titles.add(p.getTitle());
+		}
+		return titles;
+	}
+
+	// Checks the facet counts within the values picked against counting the songs themselves
+	private static void assertFacets(Library library, Map<SongFacets.Facet, String> picked){
+		Map<SongFacets.Facet, Map<String, Integer>> expected =
+			new EnumMap<SongFacets.Facet, Map<String, Integer>>(SongFacets.Facet.class);
+		for(SongFacets.Facet f : SongFacets.Facet.values()){
+			if(!picked.containsKey(f))
+				expected.put(f, new HashMap<String, Integer>());
+		}
+		int matching = 0;
+		for(Song s : library.getSongs()){
+			Map<SongFacets.Facet, String> values = Map.of(SongFacets.Facet.GENRE, s.getGenre(),
+				SongFacets.Facet.DECADE, s.getYear() / 10 * 10 + "s", SongFacets.Facet.YEAR, Integer.toString(s.getYear()),
+				SongFacets.Facet.ARTIST, s.getArtistName(), SongFacets.Facet.ALBUM, s.getOriginalAlbum());
+			if(!values.entrySet().containsAll(picked.entrySet()))
+				continue;
+			matching++;
+			for(Map.Entry<SongFacets.Facet, Map<String, Integer>> e : expected.entrySet()){
+				e.getValue().merge(values.get(e.getKey()), 1, Integer::sum);
+			}
+		}
+		assertEquals(matching, library.getFacets().matching(picked).cardinality());
+		assertEquals(expected, library.getFacets().drillDown(picked));
+	}
+
+	// Checks each smart playlist holds exactly the songs matching its rule, in the order they were added
+	private static void assertSmart(Library library, SmartPlaylist... playlists){
+		for(SmartPlaylist p : playlists){
+			List<Song> expected = new ArrayList<Song>();
+			for(Song s : library.getSongs()){
+				if(p.getRule().matches(s))
+					expected.add(s);
+			}
+			expected.sort(Comparator.comparingInt(Song::getId));
+			assertEquals(expected, p.getAllTracks(), p.getTitle());
+		}
+	}
+
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException{
+		long end = System.currentTimeMillis() + 15000;
+		while(!condition.getAsBoolean()){
+			if(System.currentTimeMillis() > end)
+				fail("Timed out waiting");
+			Thread.sleep(50);
+		}
+	}
+}
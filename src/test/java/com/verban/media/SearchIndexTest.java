@@ -0,0 +1,51 @@
+package com.verban.media;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import java.io.File;
+import java.util.*;
+
+/**
+ * Tests for searching songs through the Library's search index.
+ */
+public class SearchIndexTest {
+
+	private static Song song(String title, String artist, String album, String genre){
+		return new Song(new File("/music", title + ".mp3"), title, artist, album, genre, 180, 2000, 1, 10);
+	}
+
+	@Test
+	public void test001_Normalize(){
+		assertEquals("beyonce", SearchIndex.normalize("Beyoncé"));
+		assertEquals(Arrays.asList("motorhead", "cafe", "del", "mar"), SearchIndex.tokenize("Motörhead / Café del Mar"));
+	}
+
+	@Test
+	public void test002_Search(){
+		// Edits are never written to the made up song files
+		Library library = new Library(new TagWriter(1, song -> true));
+		Song halo = song("Halo", "Beyoncé", "I Am... Sasha Fierce", "Pop");
+		Song hallo = song("Hallowed Be Thy Name", "Iron Maiden", "The Number of the Beast", "Metal");
+		Song beast = song("Beast of Burden", "The Rolling Stones", "Some Girls", "Rock");
+		library.addSongs(Arrays.asList(halo, hallo, beast));
+
+		assertEquals(Arrays.asList(halo), library.search("beyonce", 10));
+		// Half typed words match, equally good matches go alphabetically
+		assertEquals(Arrays.asList(hallo, halo), library.search("hal", 10));
+		assertEquals(Arrays.asList(halo), library.search("halo", 10));
+		// A title match ranks above an album match
+		assertEquals(Arrays.asList(beast, hallo), library.search("beast", 10));
+		// Every word has to match
+		assertEquals(Arrays.asList(hallo), library.search("beast iron", 10));
+		assertTrue(library.search("jazz", 10).isEmpty());
+		assertEquals(1, library.search("hal", 1).size());
+
+		// Edits and removals are picked up without rebuilding
+		library.updateSong(beast, "Miss You", "Some Girls", "The Rolling Stones", 1978, "Rock", 1, 10);
+		assertEquals(Arrays.asList(hallo), library.search("beast", 10));
+		assertEquals(Arrays.asList(beast), library.search("miss", 10));
+		library.removeSongs(Arrays.asList(hallo));
+		assertTrue(library.search("beast", 10).isEmpty());
+	}
+}
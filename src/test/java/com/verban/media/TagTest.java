@@ -51,4 +51,57 @@ public class TagTest {
 			fail("Exception thrown when not expected in Test002");
 		}
 	}
+
+	@Test
+	public void test003_Tag_Cache() throws IOException{
+		File cacheFile = File.createTempFile("tags", ".cache");
+		cacheFile.delete();
+		try{
+			File mp3 = new File("src/test/java/com/verban/media/test.mp3");
+			TagCache cache = new TagCache(cacheFile);
+			Song first = cache.read(mp3);
+			assertEquals(1, cache.size());
+			cache.save();
+
+			// A reloaded cache should give back the same tags without needing the file to be parsed
+			TagCache reloaded = new TagCache(cacheFile);
+			assertEquals(1, reloaded.size());
+			Song cached = reloaded.read(mp3);
+			assertEquals(first, cached);
+			assertEquals("Test MP3", cached.getTitle());
+			assertEquals(30, cached.getRuntime());
+			assertEquals("Test Files", cached.getOriginalAlbum());
+			assertEquals(2020, cached.getYear());
+		}finally{
+			cacheFile.delete();
+		}
+	}
+
+	@Test
+	public void test004_Tag_Writer() throws Exception{
+		File copy = File.createTempFile("write", ".mp3");
+		try{
+			java.nio.file.Files.copy(new File("src/test/java/com/verban/media/test.mp3").toPath(), copy.toPath(),
+				java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+			Library library = new Library();
+			Song s = new Song(copy);
+			library.addSong(s);
+
+			// Several quick edits should all be accepted, and the last one should end up in the file
+			library.updateSong(s, "First", "Test Files", "Michael", 2020, "Silence", 1, 1);
+			library.updateSong(s, "Second", "Test Files", "Michael", 2020, "Silence", 1, 1);
+			library.updateSongs(java.util.Arrays.asList(s), "Other Album", null, 2021, null);
+			assertEquals("Other Album", s.getOriginalAlbum());
+			library.getTagWriter().flush();
+			assertEquals(0, library.getTagWriter().failureCount());
+
+			Song reread = new Song(copy);
+			assertEquals("Second", reread.getTitle());
+			assertEquals("Other Album", reread.getOriginalAlbum());
+			assertEquals("Michael", reread.getArtistName());
+			assertEquals(2021, reread.getYear());
+		}finally{
+			copy.delete();
+		}
+	}
 }
@@ -0,0 +1,179 @@
+package com.verban.media.tags;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import org.jaudiotagger.audio.*;
+import org.jaudiotagger.tag.*;
+
+/**
+ * Tests the fast tag readers, against jaudiotagger for the test mp3, and against small hand built files for the rest.
+ */
+public class FastTagReaderTest {
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	public void test001_Mp3_Matches_Jaudiotagger() throws Exception{
+		File mp3 = new File("src/test/java/com/verban/media/test.mp3");
+		TagData data = FastTagReader.read(mp3);
+		assertNotNull(data);
+
+		AudioFile f = AudioFileIO.read(mp3);
+		Tag tag = f.getTag();
+		assertEquals(f.getAudioHeader().getTrackLength(), data.getRuntime());
+		assertEquals(tag.getFirst(FieldKey.TITLE), data.getTitle());
+		assertEquals(tag.getFirst(FieldKey.ARTIST), data.getArtistName());
+		assertEquals(tag.getFirst(FieldKey.ALBUM), data.getOriginalAlbum());
+		assertEquals(tag.getFirst(FieldKey.GENRE), data.getGenre());
+		assertEquals(Integer.parseInt(tag.getFirst(FieldKey.YEAR)), data.getYear());
+		assertEquals(Integer.parseInt(tag.getFirst(FieldKey.TRACK)), data.getAlbumTrackNumber());
+	}
+
+	@Test
+	public void test002_Flac() throws IOException{
+		ByteArrayOutputStream file = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(file);
+		out.writeBytes("fLaC");
+		// STREAMINFO: 44100Hz, 2 channels, 16 bits, 44100 * 185 samples
+		out.writeInt(18);
+		out.write(new byte[10]);
+		out.writeLong(44100L << 44 | 1L << 41 | 15L << 36 | 44100L * 185);
+		byte[] comments = vorbisComments("TITLE=Flac Song", "ARTIST=Somebody", "ALBUM=Lossless", "GENRE=Jazz",
+			"DATE=1959-08-17", "TRACKNUMBER=2", "TRACKTOTAL=5");
+		out.writeInt(0x84000000 | comments.length);
+		out.write(comments);
+
+		TagData data = FastTagReader.read(write("test.flac", file.toByteArray()));
+		assertNotNull(data);
+		assertEquals(185, data.getRuntime());
+		assertEquals("Flac Song", data.getTitle());
+		assertEquals("Somebody", data.getArtistName());
+		assertEquals("Lossless", data.getOriginalAlbum());
+		assertEquals("Jazz", data.getGenre());
+		assertEquals(1959, data.getYear());
+		assertEquals(2, data.getAlbumTrackNumber());
+		assertEquals(5, data.getAlbumTracks());
+	}
+
+	@Test
+	public void test003_Ogg() throws IOException{
+		ByteBuffer identification = ByteBuffer.allocate(30).order(ByteOrder.LITTLE_ENDIAN);
+		identification.put((byte)1).put("vorbis".getBytes(StandardCharsets.US_ASCII)).putInt(0).put((byte)2).putInt(48000);
+		byte[] comments = vorbisComments("TITLE=Ogg Song", "ARTIST=Nobody", "TRACKNUMBER=7/9");
+		ByteBuffer commentPacket = ByteBuffer.allocate(7 + comments.length + 1);
+		commentPacket.put((byte)3).put("vorbis".getBytes(StandardCharsets.US_ASCII)).put(comments).put((byte)1);
+
+		ByteArrayOutputStream file = new ByteArrayOutputStream();
+		file.write(oggPage(0, identification.array()));
+		file.write(oggPage(0, commentPacket.array()));
+		file.write(oggPage(48000L * 61, new byte[100]));
+
+		TagData data = FastTagReader.read(write("test.ogg", file.toByteArray()));
+		assertNotNull(data);
+		assertEquals(61, data.getRuntime());
+		assertEquals("Ogg Song", data.getTitle());
+		assertEquals("Nobody", data.getArtistName());
+		assertEquals(7, data.getAlbumTrackNumber());
+		assertEquals(9, data.getAlbumTracks());
+	}
+
+	@Test
+	public void test004_M4a() throws IOException{
+		ByteArrayOutputStream mvhd = new ByteArrayOutputStream();
+		DataOutputStream m = new DataOutputStream(mvhd);
+		m.writeInt(0); // version and flags
+		m.writeInt(0);
+		m.writeInt(0);
+		m.writeInt(600); // timescale
+		m.writeInt(600 * 242); // duration
+
+		byte[] ilst = concat(
+			item(0xA96E616D, text("M4a Song")),
+			item(0xA9415254, text("Artiste")),
+			item(0xA9616C62, text("Album")),
+			item(0xA9646179, text("2011-02-03T08:00:00Z")),
+			item(0x74726B6E, new byte[]{0, 0, 0, 4, 0, 12, 0, 0}));
+		byte[] meta = concat(new byte[4], atom("hdlr", new byte[25]), atom("ilst", ilst));
+		byte[] moov = atom("moov", concat(atom("mvhd", mvhd.toByteArray()), atom("udta", atom("meta", meta))));
+
+		// Put the audio before the moov atom, it should be skipped over
+		byte[] file = concat(atom("ftyp", "M4A ".getBytes(StandardCharsets.US_ASCII)), atom("mdat", new byte[5000]), moov);
+		TagData data = FastTagReader.read(write("test.m4a", file));
+		assertNotNull(data);
+		assertEquals(242, data.getRuntime());
+		assertEquals("M4a Song", data.getTitle());
+		assertEquals("Artiste", data.getArtistName());
+		assertEquals("Album", data.getOriginalAlbum());
+		assertEquals(2011, data.getYear());
+		assertEquals(4, data.getAlbumTrackNumber());
+		assertEquals(12, data.getAlbumTracks());
+	}
+
+	@Test
+	public void test005_Unsupported_Falls_Back() throws IOException{
+		assertNull(FastTagReader.read(write("test.wma", new byte[100])));
+		assertNull(FastTagReader.read(write("garbage.flac", new byte[100])));
+		assertNull(FastTagReader.read(write("garbage.mp3", new byte[100])));
+	}
+
+	private File write(String name, byte[] bytes) throws IOException{
+		Path p = tempDir.resolve(name);
+		Files.write(p, bytes);
+		return p.toFile();
+	}
+
+	private static byte[] vorbisComments(String... comments){
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ByteBuffer b = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+		byte[] vendor = "test".getBytes(StandardCharsets.UTF_8);
+		out.write(b.putInt(0, vendor.length).array(), 0, 4);
+		out.write(vendor, 0, vendor.length);
+		out.write(b.putInt(0, comments.length).array(), 0, 4);
+		for(String c : comments){
+			byte[] bytes = c.getBytes(StandardCharsets.UTF_8);
+			out.write(b.putInt(0, bytes.length).array(), 0, 4);
+			out.write(bytes, 0, bytes.length);
+		}
+		return out.toByteArray();
+	}
+
+	// A single page holding one packet shorter than 255 bytes
+	private static byte[] oggPage(long granule, byte[] packet){
+		ByteBuffer page = ByteBuffer.allocate(28 + packet.length).order(ByteOrder.LITTLE_ENDIAN);
+		page.put("OggS".getBytes(StandardCharsets.US_ASCII)).put((byte)0).put((byte)0).putLong(granule)
+			.putInt(1).putInt(0).putInt(0).put((byte)1).put((byte)packet.length).put(packet);
+		return page.array();
+	}
+
+	private static byte[] atom(String type, byte[] contents){
+		ByteBuffer b = ByteBuffer.allocate(8 + contents.length);
+		b.putInt(8 + contents.length).put(type.getBytes(StandardCharsets.ISO_8859_1)).put(contents);
+		return b.array();
+	}
+
+	private static byte[] item(int type, byte[] data){
+		byte[] dataAtom = atom("data", concat(new byte[8], data));
+		ByteBuffer b = ByteBuffer.allocate(8 + dataAtom.length);
+		b.putInt(8 + dataAtom.length).putInt(type).put(dataAtom);
+		return b.array();
+	}
+
+	private static byte[] text(String s){
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] concat(byte[]... parts){
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for(byte[] p : parts){
+			out.write(p, 0, p.length);
+		}
+		return out.toByteArray();
+	}
+}